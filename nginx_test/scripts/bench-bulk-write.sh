@@ -0,0 +1,66 @@
+#!/bin/bash
+
+# Bulk Write Benchmark Script
+# PUT /api/cache (pipelined batches) vs. one PUT /api/cache/{key} per key
+# on the Spring Boot WAS (was-4)
+#
+# Both runs write the same number of keys. The batch size is the
+# server's cache.bulk-write.batch-size (CACHE_BULK_WRITE_BATCH_SIZE in
+# its environment); restart was-4 with other values to compare them.
+
+set -e
+
+BASE_URL="${1:-http://localhost:8084}"
+KEYS="${2:-100000}"
+CONCURRENCY="${3:-50}"
+VALUE_BYTES="${4:-256}"
+TTL=600
+
+echo "=========================================="
+echo "Bulk Write Benchmark - Spring Boot WAS"
+echo "=========================================="
+echo "Target: $BASE_URL"
+echo "Keys: $KEYS"
+echo "Single-key concurrency: $CONCURRENCY"
+echo "Value size: ${VALUE_BYTES} bytes"
+echo ""
+
+if ! command -v hey &> /dev/null; then
+    echo "Please install 'hey': go install github.com/rakyll/hey@latest"
+    exit 1
+fi
+
+VALUE=$(head -c "$VALUE_BYTES" /dev/zero | tr '\0' 'x')
+BODY=$(mktemp)
+RESPONSE=$(mktemp)
+trap 'rm -f "$BODY" "$RESPONSE"' EXIT
+
+# One PUT per key, $CONCURRENCY at a time
+echo "[single] PUT /api/cache/{key} x ${KEYS}"
+echo "---"
+hey -n "$KEYS" -c "$CONCURRENCY" -m PUT -T application/json \
+    -d "{\"value\":\"${VALUE}\",\"ttl\":${TTL}}" "${BASE_URL}/api/cache/bench-bulk-single" 2>/dev/null \
+    | grep -E "Total:|Requests/sec:|Average:|99% in|Status code|\[[0-9]+\]"
+echo ""
+
+# The same number of keys in one streamed NDJSON body
+awk -v n="$KEYS" -v value="$VALUE" -v ttl="$TTL" \
+    'BEGIN { for (i = 0; i < n; i++) printf "{\"key\":\"bench-bulk-%d\",\"value\":\"%s\",\"ttl\":%d}\n", i, value, ttl }' \
+    > "$BODY"
+
+echo "[bulk] PUT /api/cache with ${KEYS} NDJSON items"
+echo "---"
+SECONDS_TAKEN=$(curl -s -o "$RESPONSE" -w "%{time_total}" -X PUT \
+    -H "Content-Type: application/x-ndjson" --data-binary @"$BODY" "${BASE_URL}/api/cache")
+echo "  Total:        ${SECONDS_TAKEN} secs"
+echo "  Keys/sec:     $(awk -v n="$KEYS" -v s="$SECONDS_TAKEN" 'BEGIN { printf "%.1f", n / s }')"
+echo "  Summary:      $(grep -o '"count":[0-9]*,"succeeded":[0-9]*,"failed":[0-9]*' "$RESPONSE" || echo "(no summary)")"
+echo ""
+
+echo "=========================================="
+echo "Benchmark Complete"
+echo "=========================================="
+echo ""
+echo "Compare the single run's Requests/sec with the bulk run's Keys/sec:"
+echo "each single PUT costs an HTTP exchange and a Redis round trip, each"
+echo "bulk batch one round trip per Redis node."
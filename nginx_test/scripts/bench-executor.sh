@@ -0,0 +1,64 @@
+#!/bin/bash
+
+# Executor Benchmark Script
+# Virtual-thread executor vs. the classic platform pool on the Tomcat WAS
+#
+# Needs two Tomcat instances running the same webapp:
+#   - one as configured in server.xml (VirtualThreadExecutor)
+#   - one started with CATALINA_OPTS="-Dtomcat.executor=none", which keeps
+#     the connectors on their own 200-thread pools
+# Leave RATE_LIMIT_PER_SECOND unset (RateLimitFilter off): behind nginx the
+# whole run is one client. ConcurrencyLimitFilter still answers 503 long
+# before the thread pool saturates, so raise its ceiling with CONCURRENCY_MAX_LIMIT
+# on both instances for the run.
+
+set -e
+
+VIRTUAL_URL="${1:-http://localhost:8081}"
+PLATFORM_URL="${2:-http://localhost:8082}"
+DURATION="${3:-30}"
+CONCURRENCY="${4:-1000}"
+KEY="bench-executor"
+
+echo "=========================================="
+echo "Executor Benchmark - Tomcat WAS"
+echo "=========================================="
+echo "Virtual threads: $VIRTUAL_URL"
+echo "Platform pool:   $PLATFORM_URL"
+echo "Duration: ${DURATION}s"
+echo "Concurrency: $CONCURRENCY"
+echo ""
+
+if ! command -v hey &> /dev/null; then
+    echo "Please install 'hey': go install github.com/rakyll/hey@latest"
+    exit 1
+fi
+
+run() {
+    local name=$1
+    local base=$2
+
+    curl -s -o /dev/null -X PUT --data "benchmark value" "${base}/api/cache/${KEY}"
+
+    # GET /api/cache/{key} blocks its request thread on the Redis round trip
+    echo "[$name] GET /api/cache/${KEY}"
+    echo "---"
+    hey -z "${DURATION}s" -c "$CONCURRENCY" -m GET "${base}/api/cache/${KEY}" 2>/dev/null \
+        | grep -E "Requests/sec:|Average:|Slowest:|99% in|Status code|\[[0-9]+\]"
+    echo ""
+
+    echo "[$name] executor and thread pool after the run"
+    echo "---"
+    curl -s "${base}/metrics" | grep -E "^(tomcat_executor_|tomcat_threads_)" || echo "(no executor metrics)"
+    echo ""
+}
+
+run "virtual" "$VIRTUAL_URL"
+run "platform" "$PLATFORM_URL"
+
+echo "=========================================="
+echo "Benchmark Complete"
+echo "=========================================="
+echo ""
+echo "tomcat_executor_pinned_total shows where virtual threads pinned their"
+echo "carrier; every such site serializes requests on one carrier thread."
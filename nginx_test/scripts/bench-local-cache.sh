@@ -0,0 +1,81 @@
+#!/bin/bash
+
+# Local Cache Benchmark Script
+# GET /api/cache/{key} served from LocalCache vs. a Redis round trip
+#
+# Needs two Tomcat instances running the same webapp against the same
+# Redis Cluster:
+#   - one as configured in web.xml (LOCAL_CACHE on)
+#   - one started with LOCAL_CACHE=false in its environment (or
+#     CATALINA_OPTS="-DLOCAL_CACHE=false"), which reads Redis every time
+# Leave RATE_LIMIT_PER_SECOND unset (RateLimitFilter off): behind nginx the
+# whole run is one client. ConcurrencyLimitFilter still answers 503 long
+# before either path saturates, so raise its ceiling with CONCURRENCY_MAX_LIMIT
+# on both instances for the run.
+
+set -e
+
+LOCAL_URL="${1:-http://localhost:8081}"
+REDIS_URL="${2:-http://localhost:8082}"
+DURATION="${3:-30}"
+CONCURRENCY="${4:-50}"
+REDIS_NODE="${5:-redis-1}"
+KEY="bench-local-cache"
+
+echo "=========================================="
+echo "Local Cache Benchmark - Tomcat WAS"
+echo "=========================================="
+echo "Local cache: $LOCAL_URL"
+echo "Redis only:  $REDIS_URL"
+echo "Duration: ${DURATION}s"
+echo "Concurrency: $CONCURRENCY"
+echo ""
+
+if ! command -v hey &> /dev/null; then
+    echo "Please install 'hey': go install github.com/rakyll/hey@latest"
+    exit 1
+fi
+
+run() {
+    local name=$1
+    local base=$2
+
+    # With keyspace notifications on, the PUT only drops the key from the
+    # tiers (its own notification would evict a written-through value). Once
+    # that notification is in, one GET fills the local cache from Redis and
+    # the next one is a hit
+    curl -s -o /dev/null -X PUT --data "benchmark value" "${base}/api/cache/${KEY}"
+    sleep 0.5
+    curl -s -o /dev/null "${base}/api/cache/${KEY}"
+    echo "[$name] second response: $(curl -s "${base}/api/cache/${KEY}" | grep -o '"source":"[^"]*"')"
+
+    echo "[$name] GET /api/cache/${KEY}"
+    echo "---"
+    hey -z "${DURATION}s" -c "$CONCURRENCY" -m GET "${base}/api/cache/${KEY}" 2>/dev/null \
+        | grep -E "Requests/sec:|Average:|Fastest:|Slowest:|50% in|99% in|Status code|\[[0-9]+\]"
+    echo ""
+
+    echo "[$name] local cache after the run"
+    echo "---"
+    curl -s "${base}/metrics" | grep -E "^local_cache_" || echo "(local cache off)"
+    echo ""
+}
+
+run "local" "$LOCAL_URL"
+run "redis" "$REDIS_URL"
+
+# The bare Redis round trip, without HTTP and servlet overhead
+if command -v redis-cli &> /dev/null; then
+    echo "[redis-cli] PING round trip to ${REDIS_NODE} (ms) over 10s"
+    echo "---"
+    timeout 15 redis-cli -h "$REDIS_NODE" --latency-history -i 10 2>/dev/null | head -1 || echo "(unreachable)"
+    echo ""
+fi
+
+echo "=========================================="
+echo "Benchmark Complete"
+echo "=========================================="
+echo ""
+echo "The difference between the two runs is the Redis round trip plus its"
+echo "pool borrow; local_cache_requests_total{result=\"hit\"} should account"
+echo "for almost every request on the local instance."
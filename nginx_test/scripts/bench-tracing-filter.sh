@@ -0,0 +1,56 @@
+#!/bin/bash
+
+# TracingFilter Microbenchmark Script
+# ns/op and bytes/op of TracingFilter's per-request setup (extracting the
+# trace context and wrapping the request), per git revision of was-1
+#
+# Each revision's TracingFilter is compiled from git against the
+# dependencies of the working tree's pom.xml and timed by
+# bench/TracingFilterBench.java in its own JVM. Give a commit and its
+# parent to see what the commit changed:
+#   scripts/bench-tracing-filter.sh <commit>^ <commit>
+# With no revisions, HEAD is measured. OPS sets the iterations per round.
+
+set -e
+
+SCRIPT_DIR=$(cd "$(dirname "$0")" && pwd)
+PROJECT_DIR=$(cd "$SCRIPT_DIR/.." && pwd)
+OPS="${OPS:-2000000}"
+if [ $# -eq 0 ]; then
+    set -- HEAD
+fi
+
+echo "=========================================="
+echo "TracingFilter Microbenchmark - Tomcat WAS"
+echo "=========================================="
+echo "Revisions: $*"
+echo "Iterations per round: $OPS"
+echo ""
+
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+(cd "$PROJECT_DIR/was-1-tomcat" && mvn -q dependency:build-classpath -Dmdep.outputFile="$WORK/classpath.txt")
+DEPENDENCIES=$(cat "$WORK/classpath.txt")
+# git archive has to run from the top of the repository
+TOPLEVEL=$(git -C "$PROJECT_DIR" rev-parse --show-toplevel)
+PREFIX=$(git -C "$PROJECT_DIR" rev-parse --show-prefix)
+
+for revision in "$@"; do
+    dir="$WORK/$(git -C "$PROJECT_DIR" rev-parse --short "$revision")"
+    mkdir -p "$dir/src" "$dir/classes"
+    git -C "$TOPLEVEL" archive "$revision:${PREFIX}was-1-tomcat/src/java" | tar -x -C "$dir/src"
+
+    # Only TracingFilter and what it references are compiled
+    javac -nowarn -encoding UTF-8 -d "$dir/classes" -cp "$DEPENDENCIES" -sourcepath "$dir/src" \
+        "$SCRIPT_DIR/bench/TracingFilterBench.java" "$dir/src/com/nginx/test/TracingFilter.java"
+
+    echo "[$revision] $(git -C "$PROJECT_DIR" log -1 --format=%s "$revision")"
+    echo "---"
+    java -Xms512m -Xmx512m -cp "$dir/classes:$DEPENDENCIES" TracingFilterBench "$OPS"
+    echo ""
+done
+
+echo "=========================================="
+echo "Benchmark Complete"
+echo "=========================================="
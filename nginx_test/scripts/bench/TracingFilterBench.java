@@ -0,0 +1,205 @@
+import com.nginx.test.TracingFilter;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+
+/**
+ * Times TracingFilter's per-request setup: extracting (or creating) the
+ * trace context and wrapping the request with the trace headers. Both are
+ * private, so they are looked up by name, which keeps the harness working
+ * on revisions before and after the wrapper became TraceHeadersRequest.
+ *
+ * Usage: TracingFilterBench [ops]. bench-tracing-filter.sh compiles it
+ * against the TracingFilter of each revision given.
+ */
+public class TracingFilterBench {
+
+    private static final String TRACE_PARENT = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Throwable {
+        int ops = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        TracingFilter filter = new TracingFilter();
+        PrintStream out = System.out;
+        // init() logs, and older revisions print every span
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            filter.init(stub(FilterConfig.class, Map.of(
+                    "getInitParameter", Map.of("samplingRatio", "1.0"),
+                    "getServletContext", stub(ServletContext.class, Map.of()))));
+
+            MethodHandle extract = extractHandle();
+            MethodHandle wrap = wrapHandle();
+            report(out, "new root trace", filter, extract, wrap, new Request(Map.of()), ops);
+            report(out, "with traceparent", filter, extract, wrap,
+                    new Request(Map.of("traceparent", TRACE_PARENT)), ops);
+        } finally {
+            filter.destroy();
+            System.setOut(out);
+        }
+    }
+
+    private static void report(PrintStream out, String name, TracingFilter filter, MethodHandle extract,
+                               MethodHandle wrap, HttpServletRequest request, int ops) throws Throwable {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up until the loop is compiled, then keep the fastest of the timed rounds
+        for (int round = 0; round < 3; round++) {
+            loop(filter, extract, wrap, request, ops);
+        }
+        double bestNanos = Double.MAX_VALUE;
+        double bytes = 0;
+        for (int round = 0; round < 5; round++) {
+            long allocatedStart = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            loop(filter, extract, wrap, request, ops);
+            long elapsed = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedStart;
+            bestNanos = Math.min(bestNanos, (double) elapsed / ops);
+            bytes = (double) allocated / ops;
+        }
+        out.printf("  %-18s %8.1f ns/op %8.0f B/op%n", name, bestNanos, bytes);
+    }
+
+    private static void loop(TracingFilter filter, MethodHandle extract, MethodHandle wrap,
+                             HttpServletRequest request, int ops) throws Throwable {
+        for (int i = 0; i < ops; i++) {
+            Object context = (Object) extract.invokeExact(filter, request);
+            sink = (HttpServletRequest) wrap.invokeExact(filter, request, context);
+        }
+    }
+
+    /**
+     * (TracingFilter, HttpServletRequest) -> TraceContext, as Object.
+     */
+    private static MethodHandle extractHandle() throws ReflectiveOperationException {
+        Method method = TracingFilter.class.getDeclaredMethod("extractOrCreateTraceContext",
+                HttpServletRequest.class);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method)
+                .asType(MethodType.methodType(Object.class, TracingFilter.class, HttpServletRequest.class));
+    }
+
+    /**
+     * (TracingFilter, HttpServletRequest, TraceContext) -> the wrapped
+     * request: the wrapRequestWithTraceHeaders() method of older revisions,
+     * or the TraceHeadersRequest constructor.
+     */
+    private static MethodHandle wrapHandle() throws ReflectiveOperationException {
+        MethodType type = MethodType.methodType(HttpServletRequest.class, TracingFilter.class,
+                HttpServletRequest.class, Object.class);
+        for (Method method : TracingFilter.class.getDeclaredMethods()) {
+            if (method.getName().equals("wrapRequestWithTraceHeaders")) {
+                method.setAccessible(true);
+                return MethodHandles.lookup().unreflect(method).asType(type);
+            }
+        }
+        Class<?> wrapper = Class.forName(TracingFilter.class.getName() + "$TraceHeadersRequest");
+        Constructor<?> constructor = wrapper.getDeclaredConstructors()[0];
+        constructor.setAccessible(true);
+        MethodHandle create = MethodHandles.lookup().unreflectConstructor(constructor)
+                .asType(MethodType.methodType(HttpServletRequest.class, HttpServletRequest.class, Object.class));
+        return MethodHandles.dropArguments(create, 0, TracingFilter.class);
+    }
+
+    /**
+     * A GET /api/info carrying the given headers. Everything the filter
+     * reads on this path is overridden, so the proxy underneath (and its
+     * argument arrays) stays off the timed loop.
+     */
+    private static final class Request extends HttpServletRequestWrapper {
+        private final Map<String, String> headers;
+
+        Request(Map<String, String> headers) {
+            super(stub(HttpServletRequest.class, Map.of()));
+            this.headers = headers;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            String value = getHeader(name);
+            return value != null ? Collections.enumeration(Collections.singletonList(value))
+                    : Collections.emptyEnumeration();
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            return Collections.enumeration(headers.keySet());
+        }
+
+        @Override
+        public String getMethod() {
+            return "GET";
+        }
+
+        @Override
+        public String getRequestURI() {
+            return "/api/info";
+        }
+
+        @Override
+        public String getServletPath() {
+            return "/api";
+        }
+
+        @Override
+        public String getPathInfo() {
+            return "/info";
+        }
+    }
+
+    /**
+     * An implementation of type answering the named methods from answers
+     * (a Map answers by its first argument), and the rest with null, false
+     * or 0.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Map<String, Object> answers) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            Object answer = answers.get(method.getName());
+            if (answer instanceof Map) {
+                return args != null && args.length > 0 ? ((Map<?, ?>) answer).get(args[0]) : null;
+            }
+            if (answer != null) {
+                return answer;
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) {
+                return false;
+            }
+            if (returnType == void.class || !returnType.isPrimitive()) {
+                return null;
+            }
+            return returnType == long.class ? 0L : returnType == double.class ? 0.0
+                    : returnType == float.class ? 0.0f : 0;
+        });
+    }
+}
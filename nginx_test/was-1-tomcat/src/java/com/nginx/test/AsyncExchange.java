@@ -0,0 +1,262 @@
+package com.nginx.test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * One asynchronous request/response cycle with a body: non-blocking read
+ * into a pooled BodyBuffer, a handler that may finish on any thread, then
+ * a non-blocking write of the JSON response
+ *
+ * No container thread is held while the client is uploading, while the
+ * handler waits on a backend, or while the client is reading the
+ * response. A body over maxBodyBytes is answered with 413 as soon as the
+ * limit is crossed, without reading the rest.
+ */
+final class AsyncExchange implements ReadListener, WriteListener, AsyncListener {
+
+    interface BodyHandler {
+        /**
+         * Called once the whole body is in. Must eventually call
+         * json() and send(), on this or any other thread.
+         */
+        void handle(AsyncExchange exchange, String body) throws IOException;
+    }
+
+    private static final int READING = 0;
+    private static final int PROCESSING = 1;
+    private static final int WRITING = 2;
+    private static final int DONE = 3;
+
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final AsyncContext async;
+    private final int maxBodyBytes;
+    private final BodyHandler handler;
+    private final BodyBuffer buffer = BodyBuffer.acquire();
+    private final AtomicInteger state = new AtomicInteger(READING);
+    private ServletInputStream in;
+    private ServletOutputStream out;
+    // Set when a timeout or error took the exchange away from a running
+    // handler; the buffer is then left to the GC instead of being pooled
+    private volatile boolean abandoned;
+
+    private AsyncExchange(HttpServletRequest request, HttpServletResponse response, AsyncContext async,
+                          int maxBodyBytes, BodyHandler handler) {
+        this.request = request;
+        this.response = response;
+        this.async = async;
+        this.maxBodyBytes = maxBodyBytes;
+        this.handler = handler;
+    }
+
+    /**
+     * Puts the request into async mode and starts reading its body.
+     */
+    static void start(HttpServletRequest request, HttpServletResponse response, int maxBodyBytes, long timeoutMs,
+                      BodyHandler handler) throws IOException {
+        AsyncContext async = request.startAsync(request, response);
+        async.setTimeout(timeoutMs);
+        AsyncExchange exchange = new AsyncExchange(request, response, async, maxBodyBytes, handler);
+        async.addListener(exchange);
+
+        if (request.getContentLengthLong() > maxBodyBytes) {
+            exchange.rejectTooLarge();
+            return;
+        }
+        exchange.in = request.getInputStream();
+        exchange.in.setReadListener(exchange);
+    }
+
+    HttpServletRequest request() {
+        return request;
+    }
+
+    HttpServletResponse response() {
+        return response;
+    }
+
+    /**
+     * False once the exchange timed out or failed; handlers can skip
+     * backend work then.
+     */
+    boolean isOpen() {
+        return state.get() == PROCESSING;
+    }
+
+    /**
+     * Sets the JSON content type and returns a writer over the response
+     * buffer. Status and headers must be set before send().
+     */
+    JsonWriter json() {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        JsonWriter json = new JsonWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+        json.setHtmlSafe(false);
+        if (JsonResponses.isPretty(request)) {
+            json.setIndent("  ");
+        }
+        return json;
+    }
+
+    /**
+     * Starts writing the rendered response; the exchange completes once
+     * the client has taken all of it.
+     */
+    void send() throws IOException {
+        if (!state.compareAndSet(PROCESSING, WRITING)) {
+            return;
+        }
+        response.setContentLength(buffer.length());
+        out = response.getOutputStream();
+        out.setWriteListener(this);
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        if (state.get() == READING && !buffer.readFrom(in, maxBodyBytes)) {
+            rejectTooLarge();
+        }
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException {
+        if (!state.compareAndSet(READING, PROCESSING)) {
+            return;
+        }
+        String body = buffer.toString(charset());
+        buffer.reset();
+        try {
+            handler.handle(this, body);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        if (buffer.writeTo(out) && state.compareAndSet(WRITING, DONE)) {
+            async.complete();
+        }
+    }
+
+    /**
+     * ReadListener / WriteListener error: the client went away or the
+     * connection broke; nothing can be sent any more.
+     */
+    @Override
+    public void onError(Throwable t) {
+        abandon();
+        complete();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        int previous = abandon();
+        if (previous != DONE && previous != WRITING && !response.isCommitted()) {
+            // Still uploading: the client is too slow; otherwise the backend is
+            response.setStatus(previous == READING ? HttpServletResponse.SC_REQUEST_TIMEOUT
+                    : HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            if (previous == READING) {
+                response.setHeader("Connection", "close");
+            }
+        }
+        complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        abandon();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        if (!abandoned) {
+            BodyBuffer.release(buffer);
+        }
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private int abandon() {
+        int previous = state.getAndSet(DONE);
+        if (previous == PROCESSING) {
+            abandoned = true;
+        }
+        return previous;
+    }
+
+    private void complete() {
+        try {
+            async.complete();
+        } catch (IllegalStateException e) {
+            // Already completed by the container
+        }
+    }
+
+    private void rejectTooLarge() throws IOException {
+        if (!state.compareAndSet(READING, PROCESSING)) {
+            return;
+        }
+        buffer.reset();
+        response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        // The rest of the body is never read
+        response.setHeader("Connection", "close");
+        JsonWriter json = json();
+        json.beginObject();
+        json.name("error").value("Request body too large");
+        json.name("maxBytes").value(maxBodyBytes);
+        JsonResponses.writeTraceContext(json, request);
+        json.endObject();
+        json.flush();
+        send();
+    }
+
+    /**
+     * Answers 500 with the exception message, unless the exchange is no
+     * longer open.
+     */
+    void fail(Exception e) throws IOException {
+        if (!isOpen()) {
+            return;
+        }
+        buffer.reset();
+        response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        JsonWriter json = json();
+        json.beginObject();
+        json.name("success").value(false);
+        json.name("error").value(e.getMessage());
+        JsonResponses.writeTraceContext(json, request);
+        json.endObject();
+        json.flush();
+        send();
+    }
+
+    private Charset charset() {
+        String encoding = request.getCharacterEncoding();
+        if (encoding != null) {
+            try {
+                return Charset.forName(encoding);
+            } catch (IllegalArgumentException e) {
+                // fall through to UTF-8
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
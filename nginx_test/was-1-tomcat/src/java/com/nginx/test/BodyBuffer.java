@@ -0,0 +1,129 @@
+package com.nginx.test;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pooled byte buffer for request and response bodies on the async paths
+ *
+ * Reading and writing only move as many bytes as the servlet streams
+ * report ready, so a buffer can be filled and drained from
+ * ReadListener / WriteListener callbacks without blocking. Buffers that
+ * grew past RETAINED_BYTES are dropped instead of pooled, so one large
+ * upload does not pin memory.
+ */
+final class BodyBuffer extends OutputStream {
+
+    private static final int INITIAL_BYTES = 8 * 1024;
+    private static final int RETAINED_BYTES = 64 * 1024;
+    private static final int MAX_POOLED = 256;
+    private static final int WRITE_CHUNK_BYTES = 8 * 1024;
+
+    private static final ConcurrentLinkedQueue<BodyBuffer> POOL = new ConcurrentLinkedQueue<>();
+    // ConcurrentLinkedQueue.size() walks the queue
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private byte[] bytes = new byte[INITIAL_BYTES];
+    private int length;
+    private int position;
+
+    private BodyBuffer() {
+    }
+
+    static BodyBuffer acquire() {
+        BodyBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            return new BodyBuffer();
+        }
+        POOLED.decrementAndGet();
+        return buffer;
+    }
+
+    static void release(BodyBuffer buffer) {
+        if (buffer.bytes.length > RETAINED_BYTES) {
+            return;
+        }
+        if (POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        buffer.reset();
+        POOL.offer(buffer);
+    }
+
+    void reset() {
+        length = 0;
+        position = 0;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Reads whatever the stream has ready. Returns false as soon as the
+     * body would exceed maxBytes; the caller should then reject it.
+     */
+    boolean readFrom(ServletInputStream in, int maxBytes) throws IOException {
+        while (in.isReady() && !in.isFinished()) {
+            if (length >= Math.min(bytes.length, maxBytes)) {
+                if (length >= maxBytes) {
+                    // Only fail if there really is another byte
+                    return in.read() < 0;
+                }
+                bytes = Arrays.copyOf(bytes, Math.min(Math.max(bytes.length * 2, INITIAL_BYTES), maxBytes));
+            }
+            int read = in.read(bytes, length, Math.min(bytes.length, maxBytes) - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return true;
+    }
+
+    String toString(Charset charset) {
+        return new String(bytes, 0, length, charset);
+    }
+
+    /**
+     * Writes the unsent remainder while the stream accepts it. Returns
+     * true once everything has been written.
+     */
+    boolean writeTo(ServletOutputStream out) throws IOException {
+        while (position < length) {
+            if (!out.isReady()) {
+                return false;
+            }
+            int chunk = Math.min(WRITE_CHUNK_BYTES, length - position);
+            out.write(bytes, position, chunk);
+            position += chunk;
+        }
+        return true;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(data, offset, bytes, length, count);
+        length += count;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+}
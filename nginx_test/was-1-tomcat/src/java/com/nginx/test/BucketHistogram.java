@@ -0,0 +1,88 @@
+package com.nginx.test;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket histogram in Prometheus layout
+ *
+ * Each bucket is a LongAdder, so concurrent request threads update
+ * striped cells instead of contending on one counter. Buckets are stored
+ * non-cumulatively and summed at scrape time.
+ */
+public class BucketHistogram {
+
+    // Latency upper bounds ("le") in seconds; the last bucket is +Inf
+    static final String[] LATENCY_LABELS = {
+            "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05",
+            "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "+Inf"
+    };
+
+    private static final long[] LATENCY_BOUNDS_NANOS = {
+            500_000L, 1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L,
+            5_000_000_000L, 10_000_000_000L
+    };
+
+    // Size upper bounds in bytes, 1 KiB to 64 MiB in steps of 4
+    static final String[] BYTES_LABELS = {
+            "1024", "4096", "16384", "65536", "262144", "1048576", "4194304",
+            "16777216", "67108864", "+Inf"
+    };
+
+    private static final long[] BYTES_BOUNDS = {
+            1024L, 4096L, 16384L, 65536L, 262144L, 1048576L, 4194304L, 16777216L, 67108864L
+    };
+
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    private BucketHistogram(long[] bounds) {
+        this.bounds = bounds;
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /** Durations in nanoseconds, exported in seconds with LATENCY_LABELS. */
+    public static BucketHistogram latency() {
+        return new BucketHistogram(LATENCY_BOUNDS_NANOS);
+    }
+
+    /** Sizes in bytes, exported with BYTES_LABELS. */
+    public static BucketHistogram bytes() {
+        return new BucketHistogram(BYTES_BOUNDS);
+    }
+
+    public void record(long value) {
+        int index = 0;
+        while (index < bounds.length && value > bounds[index]) {
+            index++;
+        }
+        buckets[index].increment();
+        sum.add(value);
+    }
+
+    public int bucketCount() {
+        return buckets.length;
+    }
+
+    /**
+     * Copies the cumulative bucket counts into target (length
+     * bucketCount()) and returns the total count.
+     */
+    public long cumulativeCounts(long[] target) {
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            target[i] = total;
+        }
+        return total;
+    }
+
+    /** Sum of recorded values, in the unit they were recorded in. */
+    public long getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,26 @@
+package com.nginx.test;
+
+import java.util.function.Consumer;
+
+/**
+ * Source of "this key changed in Redis" events for the in-process caches
+ *
+ * KeyspaceInvalidations listens to Redis itself; LocalInvalidations is an
+ * in-process stand-in for running without keyspace notifications.
+ */
+public interface CacheInvalidations {
+
+    /**
+     * Starts delivering changed keys to listener, from any thread.
+     * missed runs when events may have been lost, e.g. after a
+     * reconnect, and should drop everything cached.
+     */
+    void start(Consumer<String> listener, Runnable missed);
+
+    void stop();
+
+    /**
+     * Events delivered so far.
+     */
+    long getEventCount();
+}
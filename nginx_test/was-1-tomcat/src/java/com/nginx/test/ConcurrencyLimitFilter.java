@@ -0,0 +1,114 @@
+package com.nginx.test;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Adaptive concurrency limit for /api/*
+ *
+ * Mapped after TracingFilter, so rejected requests are still traced and
+ * counted. Requests over the limit get an immediate 503 with Retry-After
+ * instead of waiting for a worker thread or in the accept queue; the limit
+ * itself follows observed latency (see ConcurrencyLimiter).
+ */
+public class ConcurrencyLimitFilter implements Filter {
+
+    public static final String CONCURRENCY_LIMITER_ATTRIBUTE = "com.nginx.test.concurrency.limiter";
+
+    private static final byte[] REJECTED_BODY =
+            "{\"error\":\"Server overloaded, retry later\"}".getBytes(StandardCharsets.UTF_8);
+
+    private ConcurrencyLimiter limiter;
+    private String retryAfterSeconds;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        String algorithm = filterConfig.getInitParameter("algorithm");
+        limiter = new ConcurrencyLimiter(
+                algorithm != null
+                        ? ConcurrencyLimiter.Algorithm.valueOf(algorithm.trim().toUpperCase(Locale.ROOT))
+                        : ConcurrencyLimiter.Algorithm.GRADIENT,
+                intParam(filterConfig, "initialLimit", 20),
+                intParam(filterConfig, "minLimit", 4),
+                intParam(filterConfig, "maxLimit", 200),
+                intParam(filterConfig, "windowMs", 250),
+                intParam(filterConfig, "minWindowSamples", 10));
+        retryAfterSeconds = Integer.toString(intParam(filterConfig, "retryAfterSeconds", 1));
+        filterConfig.getServletContext().setAttribute(CONCURRENCY_LIMITER_ATTRIBUTE, limiter);
+
+        System.out.println("[ConcurrencyLimitFilter] Initialized with " + limiter.getAlgorithm() +
+                " limit, starting at " + limiter.getLimit());
+    }
+
+    private static int intParam(FilterConfig filterConfig, String name, int defaultValue) {
+        String value = AppContextListener.resolve(filterConfig.getInitParameter(name), null);
+        return value != null && !value.trim().isEmpty() ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+
+        if (!limiter.tryAcquire()) {
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            httpResponse.setHeader("Retry-After", retryAfterSeconds);
+            httpResponse.setContentType("application/json");
+            httpResponse.setCharacterEncoding("UTF-8");
+            httpResponse.setContentLength(REJECTED_BODY.length);
+            httpResponse.getOutputStream().write(REJECTED_BODY);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        boolean dropped = true;
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            dropped = false;
+            async = request.isAsyncStarted();
+        } finally {
+            if (async) {
+                // The permit is held until the async response completes
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    private boolean failed;
+
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        limiter.release(System.nanoTime() - startNanos, failed);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                        failed = true;
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                        failed = true;
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                limiter.release(System.nanoTime() - startNanos, dropped);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,258 @@
+package com.nginx.test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive concurrency limit for ConcurrencyLimitFilter
+ *
+ * Requests take a permit with a single CAS on the in-flight count and are
+ * rejected outright once it reaches the limit. Completed requests feed
+ * their latency into a sample window; when a window closes, one thread
+ * recomputes the limit with either a gradient (Netflix Gradient2 style:
+ * compare the window's RTT with a long-term average) or a TCP Vegas style
+ * estimate (compare it with the lowest RTT seen, i.e. the no-load RTT).
+ * Both grow the limit while latency stays flat and shrink it as soon as
+ * requests start queueing.
+ */
+public class ConcurrencyLimiter {
+
+    public enum Algorithm {
+        GRADIENT, VEGAS
+    }
+
+    private final Algorithm algorithm;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long windowNanos;
+    private final int minWindowSamples;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+
+    // Current sample window
+    private final LongAdder windowRttNanos = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+    private volatile boolean windowDropped;
+    private final AtomicLong windowEnd;
+    private final AtomicBoolean updating = new AtomicBoolean();
+
+    // Estimator state, only touched by the thread holding "updating"
+    private double estimatedLimit;
+    private double longRttNanos;
+    private long longRttSamples;
+    private long noLoadRttNanos = Long.MAX_VALUE;
+    private long windowsSinceProbe;
+    private volatile long lastRttNanos;
+    private volatile long baselineRttNanos;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    // Gradient2 tuning
+    private static final double GRADIENT_TOLERANCE = 1.5;
+    private static final double GRADIENT_SMOOTHING = 0.2;
+    private static final int LONG_WINDOW = 600;
+    // Vegas re-learns its no-load RTT every this many windows
+    private static final int VEGAS_PROBE_WINDOWS = 300;
+
+    /**
+     * @param windowMs         minimum length of a sample window
+     * @param minWindowSamples samples a window needs before it is used
+     */
+    public ConcurrencyLimiter(Algorithm algorithm, int initialLimit, int minLimit, int maxLimit,
+                              long windowMs, int minWindowSamples) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("invalid limit range: " + minLimit + " - " + maxLimit);
+        }
+        this.algorithm = algorithm;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.minWindowSamples = minWindowSamples;
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+        this.windowEnd = new AtomicLong(System.nanoTime() + windowNanos);
+    }
+
+    /**
+     * Takes a permit, or returns false when the limit is reached. Every
+     * successful call must be paired with release().
+     */
+    public boolean tryAcquire() {
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                accepted.increment();
+                windowMaxInFlight.accumulateAndGet(current + 1, Math::max);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the permit and records the request's latency. dropped marks
+     * a request that failed instead of completing, which only ever lowers
+     * the limit.
+     */
+    public void release(long rttNanos, boolean dropped) {
+        inFlight.decrementAndGet();
+        if (dropped) {
+            windowDropped = true;
+        } else {
+            windowRttNanos.add(rttNanos);
+            windowSamples.increment();
+        }
+
+        long now = System.nanoTime();
+        long end = windowEnd.get();
+        if (now - end >= 0 && updating.compareAndSet(false, true)) {
+            try {
+                closeWindow(now);
+            } finally {
+                updating.set(false);
+            }
+        }
+    }
+
+    private void closeWindow(long now) {
+        long samples = windowSamples.sum();
+        boolean dropped = windowDropped;
+        if (samples < minWindowSamples && !dropped) {
+            // Too quiet to judge; keep collecting into the same window
+            return;
+        }
+        long rtt = samples > 0 ? windowRttNanos.sum() / samples : 0;
+        int maxInFlight = windowMaxInFlight.get();
+
+        windowRttNanos.reset();
+        windowSamples.reset();
+        windowMaxInFlight.set(inFlight.get());
+        windowDropped = false;
+        windowEnd.set(now + windowNanos);
+
+        if (rtt > 0) {
+            lastRttNanos = rtt;
+        }
+        double next = algorithm == Algorithm.VEGAS
+                ? vegas(rtt, maxInFlight, dropped)
+                : gradient(rtt, maxInFlight, dropped);
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, next));
+        limit = (int) estimatedLimit;
+        baselineRttNanos = algorithm == Algorithm.VEGAS
+                ? (noLoadRttNanos == Long.MAX_VALUE ? 0 : noLoadRttNanos)
+                : (long) longRttNanos;
+    }
+
+    private double gradient(long rtt, int maxInFlight, boolean dropped) {
+        if (rtt <= 0) {
+            return dropped ? estimatedLimit * 0.9 : estimatedLimit;
+        }
+        // Long-term RTT: plain average while warming up, then an EMA
+        longRttSamples++;
+        if (longRttSamples <= 10) {
+            longRttNanos += (rtt - longRttNanos) / longRttSamples;
+        } else {
+            longRttNanos += (rtt - longRttNanos) * 2.0 / (LONG_WINDOW + 1);
+        }
+        // After an overload the average is far above the current RTT;
+        // let it come down quickly instead of over-growing the limit
+        if (longRttNanos / rtt > 2.0) {
+            longRttNanos *= 0.95;
+        }
+        // Not using the permits we have, so latency says nothing about the limit
+        if (maxInFlight < estimatedLimit / 2) {
+            return estimatedLimit;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, GRADIENT_TOLERANCE * longRttNanos / rtt));
+        if (dropped) {
+            gradient = Math.min(gradient, 0.9);
+        }
+        double queueSize = Math.sqrt(estimatedLimit);
+        double next = estimatedLimit * gradient + queueSize;
+        return estimatedLimit * (1 - GRADIENT_SMOOTHING) + next * GRADIENT_SMOOTHING;
+    }
+
+    private double vegas(long rtt, int maxInFlight, boolean dropped) {
+        double log = Math.max(1.0, Math.log10(estimatedLimit));
+        if (dropped) {
+            return estimatedLimit - log;
+        }
+        if (rtt <= 0) {
+            return estimatedLimit;
+        }
+        // Periodically forget the no-load RTT so a permanently slower
+        // backend does not pin the limit at the minimum
+        if (++windowsSinceProbe >= VEGAS_PROBE_WINDOWS) {
+            windowsSinceProbe = 0;
+            noLoadRttNanos = rtt;
+            return estimatedLimit;
+        }
+        if (rtt < noLoadRttNanos) {
+            noLoadRttNanos = rtt;
+            return estimatedLimit;
+        }
+        if (maxInFlight * 2 < estimatedLimit) {
+            return estimatedLimit;
+        }
+
+        // Requests estimated to be waiting rather than being served
+        double queueSize = Math.ceil(estimatedLimit * (1 - (double) noLoadRttNanos / rtt));
+        double alpha = 3 * log;
+        double beta = 6 * log;
+        if (queueSize <= log) {
+            return estimatedLimit + beta;
+        }
+        if (queueSize < alpha) {
+            return estimatedLimit + log;
+        }
+        if (queueSize > beta) {
+            return estimatedLimit - log;
+        }
+        return estimatedLimit;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Average RTT of the last closed window.
+     */
+    public long getLastRttNanos() {
+        return lastRttNanos;
+    }
+
+    /**
+     * RTT the current RTT is judged against: the long-term average for
+     * GRADIENT, the no-load estimate for VEGAS.
+     */
+    public long getBaselineRttNanos() {
+        return baselineRttNanos;
+    }
+}
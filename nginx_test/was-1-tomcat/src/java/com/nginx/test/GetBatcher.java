@@ -0,0 +1,180 @@
+package com.nginx.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Turns concurrent single-key GETs into batched reads
+ *
+ * At most maxInFlight batches are being read from Redis at any time. A
+ * GET that finds a batch free takes it on its own thread, so when traffic
+ * is low every GET is still a plain GET with no added wait. A GET that
+ * finds them all busy queues up; whichever batch finishes first sends up
+ * to maxBatch queued keys as the next batch (ClusterMultiGet: one MGET
+ * per slot, one pipelined round trip per node) on one of the batcher's
+ * own maxInFlight threads. The time keys wait to be batched is therefore
+ * the time Redis takes to answer the batches ahead of them, and it only
+ * grows with load. The threads are not shared with anything else, so a
+ * follow-on batch never queues behind other work such as PUTs.
+ */
+final class GetBatcher {
+
+    private final JedisCluster cluster;
+    // Each task holds an in-flight batch, so there is never more than maxInFlight of them
+    private final ExecutorService executor;
+    private final int maxBatch;
+    private final int maxInFlight;
+    private final long timeoutMs;
+
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder keys = new LongAdder();
+
+    GetBatcher(JedisCluster cluster, int maxBatch, int maxInFlight, long timeoutMs) {
+        this.cluster = cluster;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "redis-get-batch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxBatch = maxBatch;
+        this.maxInFlight = maxInFlight;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Same as JedisCluster.get(key), possibly sharing a round trip with
+     * other callers.
+     */
+    String get(String key) {
+        Pending pending = new Pending(key);
+        queue.add(pending);
+        if (tryAcquire()) {
+            runBatch();
+        }
+        try {
+            return pending.value.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof JedisException ? (JedisException) e.getCause()
+                    : new JedisException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new JedisException("No reply in " + timeoutMs + "ms for batched GET");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JedisException("Interrupted waiting for batched GET");
+        }
+    }
+
+    void stop() {
+        executor.shutdown();
+    }
+
+    long getBatchCount() {
+        return batches.sum();
+    }
+
+    long getKeyCount() {
+        return keys.sum();
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reads up to maxBatch queued keys with a batch already acquired, then
+     * releases it and hands what queued up meanwhile to a batcher thread.
+     */
+    private void runBatch() {
+        List<Pending> batch = new ArrayList<>();
+        Pending next;
+        while (batch.size() < maxBatch && (next = queue.poll()) != null) {
+            batch.add(next);
+        }
+        try {
+            if (!batch.isEmpty()) {
+                read(batch);
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        // Checked after the release, so a GET queued while it was taken is never stranded
+        if (!queue.isEmpty() && tryAcquire()) {
+            try {
+                executor.execute(this::runBatch);
+            } catch (RejectedExecutionException e) {
+                // Only once stopped; the keys still get their answer
+                runBatch();
+            }
+        }
+    }
+
+    private void read(List<Pending> batch) {
+        batches.increment();
+        keys.add(batch.size());
+        if (batch.size() == 1) {
+            Pending only = batch.get(0);
+            try {
+                only.value.complete(cluster.get(only.key));
+            } catch (RuntimeException e) {
+                only.value.completeExceptionally(e);
+            }
+            return;
+        }
+
+        List<String> batchKeys = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            batchKeys.add(pending.key);
+        }
+        ClusterMultiGet fetched;
+        try {
+            fetched = ClusterMultiGet.fetch(cluster, batchKeys);
+        } catch (RuntimeException e) {
+            for (Pending pending : batch) {
+                pending.value.completeExceptionally(e);
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            String error = fetched.error(i);
+            if (error == null) {
+                batch.get(i).value.complete(fetched.value(i));
+            } else {
+                batch.get(i).value.completeExceptionally(new JedisException(error));
+            }
+        }
+    }
+
+    private static final class Pending {
+        final String key;
+        final CompletableFuture<String> value = new CompletableFuture<>();
+
+        Pending(String key) {
+            this.key = key;
+        }
+    }
+}
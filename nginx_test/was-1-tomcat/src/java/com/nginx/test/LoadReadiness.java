@@ -0,0 +1,217 @@
+package com.nginx.test;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Load-aware readiness behind /health/ready
+ *
+ * Once per interval a background thread compares three overload signals
+ * against their thresholds: busy connector threads relative to maxThreads,
+ * the rolling p99 of application routes, and the share of wall time spent
+ * in GC. On virtual threads there is no thread limit to compare against,
+ * so /api/* requests in flight relative to the ConcurrencyLimiter's
+ * current limit take its place. The verdict is held for holdMs after the last overloaded
+ * evaluation so the node does not flap, and is published as pre-encoded
+ * JSON; probes only read a volatile field.
+ */
+final class LoadReadiness {
+
+    // Probes and scrapes would otherwise dominate the percentile when idle
+    private static final Route[] APPLICATION_ROUTES =
+            {Route.API_INFO, Route.API_CACHE, Route.API_CACHE_MULTI, Route.API_MESSAGE};
+
+    private final double busyThreadsRatio;
+    private final Supplier<ConcurrencyLimiter> limiter;
+    private final long latencySloMicros;
+    private final int latencySlices;
+    private final long minLatencySamples;
+    private final double gcTimeFraction;
+    private final long holdNanos;
+
+    private final List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+    // Ring of (time, total GC millis) samples spanning the GC window
+    private final long[] gcSampleNanos;
+    private final long[] gcSampleMillis;
+    private int gcSampleHead;
+    private int gcSampleCount;
+
+    private final ScheduledExecutorService evaluator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "readiness-evaluator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Evaluator-thread state
+    private long p99Micros;
+    private boolean overloadedOnce;
+    private long lastOverloadedNanos;
+
+    private volatile Verdict verdict = new Verdict(true, "{\"status\":\"READY\"}".getBytes(StandardCharsets.UTF_8));
+
+    /**
+     * @param busyThreadsRatio  busy / maxThreads at or above which the node is overloaded; also
+     *                          in-flight / limit when the connector has no thread limit
+     * @param limiter           the /api/* ConcurrencyLimiter, or null while it is not set up
+     * @param latencySloMs      rolling p99 limit for application routes
+     * @param latencyWindowSeconds p99 window, rounded up to whole LatencyWindows slices
+     * @param minLatencySamples requests needed in the window before p99 is trusted
+     * @param gcTimeFraction    share of wall time spent in GC (0.0 - 1.0)
+     * @param gcWindowSeconds   window the GC fraction is measured over
+     * @param holdMs            how long the node stays unready after the last overloaded evaluation
+     * @param intervalMs        evaluation interval
+     */
+    LoadReadiness(double busyThreadsRatio, Supplier<ConcurrencyLimiter> limiter, long latencySloMs, int latencyWindowSeconds, long minLatencySamples,
+                  double gcTimeFraction, int gcWindowSeconds, long holdMs, long intervalMs) {
+        this.busyThreadsRatio = busyThreadsRatio;
+        this.limiter = limiter;
+        this.latencySloMicros = latencySloMs * 1000;
+        this.latencySlices = Math.max(1, Math.min(LatencyWindows.FIVE_MINUTE_SLICES,
+                (latencyWindowSeconds + LatencyWindows.SLICE_SECONDS - 1) / LatencyWindows.SLICE_SECONDS));
+        this.minLatencySamples = minLatencySamples;
+        this.gcTimeFraction = gcTimeFraction;
+        this.holdNanos = TimeUnit.MILLISECONDS.toNanos(holdMs);
+
+        int gcSamples = (int) Math.max(2, gcWindowSeconds * 1000L / intervalMs + 1);
+        this.gcSampleNanos = new long[gcSamples];
+        this.gcSampleMillis = new long[gcSamples];
+
+        evaluator.scheduleWithFixedDelay(this::evaluate, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        evaluator.shutdownNow();
+    }
+
+    Verdict current() {
+        return verdict;
+    }
+
+    private void evaluate() {
+        try {
+            long now = System.nanoTime();
+            StringBuilder reasons = new StringBuilder();
+
+            TomcatConnectors.Connector connector = TomcatConnectors.http();
+            long busy = connector != null ? connector.threadsBusy() : -1;
+            long max = connector != null ? connector.maxThreads() : -1;
+            if (busy >= 0 && max > 0 && busy >= busyThreadsRatio * max) {
+                reason(reasons, "threads");
+            }
+            ConcurrencyLimiter concurrency = max > 0 ? null : limiter.get();
+            long inFlight = concurrency != null ? concurrency.getInFlight() : -1;
+            long limit = concurrency != null ? concurrency.getLimit() : -1;
+            if (inFlight >= 0 && limit > 0 && inFlight >= busyThreadsRatio * limit) {
+                reason(reasons, "concurrency");
+            }
+
+            long samples = latencyP99();
+            if (samples >= minLatencySamples && p99Micros > latencySloMicros) {
+                reason(reasons, "latency");
+            }
+
+            double gcFraction = gcFraction(now);
+            if (gcFraction > gcTimeFraction) {
+                reason(reasons, "gc");
+            }
+
+            if (reasons.length() > 0) {
+                lastOverloadedNanos = now;
+                overloadedOnce = true;
+            }
+            boolean ready = !overloadedOnce || now - lastOverloadedNanos > holdNanos;
+
+            Verdict previous = verdict;
+            verdict = new Verdict(ready, encode(ready, reasons, busy, max, inFlight, limit, samples, gcFraction));
+            if (previous.ready != ready) {
+                System.out.println("[LoadReadiness] " + (ready ? "Ready again" : "Not ready: " + reasons));
+            }
+        } catch (Throwable t) {
+            // An escaping exception would cancel the scheduled evaluation
+            System.err.println("[LoadReadiness] Evaluation failed: " + t);
+        }
+    }
+
+    private static void reason(StringBuilder reasons, String reason) {
+        if (reasons.length() > 0) {
+            reasons.append(',');
+        }
+        reasons.append('"').append(reason).append('"');
+    }
+
+    /**
+     * Updates p99Micros from the rolling window and returns its sample count.
+     */
+    private long latencyP99() throws IOException {
+        long[] count = new long[1];
+        MetricsServlet.latencyWindows().read(APPLICATION_ROUTES, latencySlices, histogram -> {
+            count[0] = histogram.getTotalCount();
+            p99Micros = histogram.getValueAtPercentile(99.0);
+        });
+        return count[0];
+    }
+
+    private double gcFraction(long now) {
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean bean : gcBeans) {
+            gcMillis += Math.max(bean.getCollectionTime(), 0);
+        }
+        int length = gcSampleNanos.length;
+        gcSampleHead = (gcSampleHead + 1) % length;
+        gcSampleNanos[gcSampleHead] = now;
+        gcSampleMillis[gcSampleHead] = gcMillis;
+        gcSampleCount = Math.min(gcSampleCount + 1, length);
+        if (gcSampleCount < 2) {
+            return 0.0;
+        }
+
+        // Oldest sample still in the ring
+        int oldest = Math.floorMod(gcSampleHead - gcSampleCount + 1, length);
+        long elapsedNanos = now - gcSampleNanos[oldest];
+        if (elapsedNanos <= 0) {
+            return 0.0;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(gcMillis - gcSampleMillis[oldest]) / (double) elapsedNanos;
+    }
+
+    private byte[] encode(boolean ready, StringBuilder reasons, long busy, long max, long inFlight, long limit,
+                          long samples, double gcFraction) {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"status\":\"").append(ready ? "READY" : "OVERLOADED").append('"');
+        if (reasons.length() > 0) {
+            json.append(",\"reasons\":[").append(reasons).append(']');
+        }
+        json.append(",\"threads\":{\"busy\":").append(busy).append(",\"max\":").append(max)
+                .append(",\"limitRatio\":").append(busyThreadsRatio).append('}');
+        if (limit > 0) {
+            json.append(",\"concurrency\":{\"inFlight\":").append(inFlight).append(",\"limit\":").append(limit)
+                    .append(",\"limitRatio\":").append(busyThreadsRatio).append('}');
+        }
+        json.append(",\"latency\":{\"p99Ms\":").append(String.format(Locale.ROOT, "%.3f", p99Micros / 1000.0))
+                .append(",\"sloMs\":").append(latencySloMicros / 1000)
+                .append(",\"windowSeconds\":").append(latencySlices * LatencyWindows.SLICE_SECONDS)
+                .append(",\"samples\":").append(samples).append('}');
+        json.append(",\"gc\":{\"timeFraction\":").append(String.format(Locale.ROOT, "%.4f", gcFraction))
+                .append(",\"limit\":").append(gcTimeFraction).append('}');
+        json.append('}');
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static final class Verdict {
+        final boolean ready;
+        final byte[] body;
+
+        Verdict(boolean ready, byte[] body) {
+            this.ready = ready;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.nginx.test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process cache tier in front of Redis for /api/cache/*
+ *
+ * Entries live in independently locked segments, each an access-ordered
+ * LinkedHashMap, so eviction is LRU per segment. Memory is bounded by an
+ * entry count and an estimated byte size, both split evenly between
+ * segments; every entry also expires ttlMs after it was written, which
+ * bounds how long a write made directly in Redis (by another service)
+ * can go unseen here.
+ *
+ * Writes carry a version: wall-clock milliseconds with a per-node id in
+ * the low bits. A write or invalidation only replaces an entry with a
+ * lower version, so when both Tomcat nodes write the same key at once
+ * they settle on the same value once each has the other's update.
+ * Values read from Redis on a miss are filled in with version 0 and
+ * never replace an entry, so a slow read cannot undo a newer write. Nor
+ * can it undo an eviction or invalidation: as in NearCache, a fill only
+ * lands if the key's segment saw none since fillToken() was taken.
+ *
+ * write() and invalidate() are forwarded to the peer node when a
+ * PeerCacheReplicator is attached, which AppContextListener only does
+ * with NEAR_CACHE_INVALIDATION=local; fill() and evict() stay local.
+ */
+public class LocalCache {
+
+    private static final int NODE_BITS = 10;
+    // Object headers, the map entry and the Entry itself, roughly
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final long ttlNanos;
+    private final long maxEntries;
+    private final long maxBytes;
+
+    private final long nodeId = ThreadLocalRandom.current().nextInt(1 << NODE_BITS);
+    private final AtomicLong lastVersion = new AtomicLong();
+
+    private volatile PeerCacheReplicator replicator;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sizeEvictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param segments   number of independently locked segments (power of two)
+     * @param maxEntries entries held across all segments
+     * @param maxBytes   estimated key + value bytes held across all segments
+     * @param ttlMs      time an entry is served after it was written
+     */
+    public LocalCache(int segments, long maxEntries, long maxBytes, long ttlMs) {
+        if (Integer.bitCount(segments) != 1 || maxEntries < segments || maxBytes < segments) {
+            throw new IllegalArgumentException("segments must be a power of two, maxEntries and maxBytes at least "
+                    + "one per segment: " + segments + ", " + maxEntries + ", " + maxBytes);
+        }
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment(maxEntries / segments, maxBytes / segments);
+        }
+        this.segmentMask = segments - 1;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    void setReplicator(PeerCacheReplicator replicator) {
+        this.replicator = replicator;
+    }
+
+    public PeerCacheReplicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * The cached value, or null on a miss.
+     */
+    public String get(String key) {
+        String value = segment(key).get(key, System.nanoTime());
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * To be taken before reading the key from Redis (or a lower tier) and
+     * handed to fill().
+     */
+    public long fillToken(String key) {
+        return segment(key).generation;
+    }
+
+    /**
+     * Caches a value just read from Redis, unless the key already has an
+     * entry (which can only be as new or newer) or its segment dropped a
+     * key since fillToken() was taken.
+     */
+    public void fill(String key, String value, long token) {
+        segment(key).fill(key, value, System.nanoTime(), token);
+    }
+
+    /**
+     * Caches a value just written to Redis and sends it to the peer.
+     */
+    public void write(String key, String value) {
+        long version = nextVersion();
+        segment(key).put(key, value, version, System.nanoTime(), false);
+        PeerCacheReplicator current = replicator;
+        if (current != null) {
+            current.replicateWrite(key, value, version);
+        }
+    }
+
+    /**
+     * Drops the key here and on the peer, e.g. after a Redis write of
+     * unknown outcome.
+     */
+    public void invalidate(String key) {
+        long version = nextVersion();
+        segment(key).remove(key, version);
+        PeerCacheReplicator current = replicator;
+        if (current != null) {
+            current.replicateInvalidate(key, version);
+        }
+    }
+
+    /**
+     * Drops the key here only, whatever its version; for changes reported
+     * by Redis, which every node hears about itself.
+     */
+    public void evict(String key) {
+        segment(key).remove(key, Long.MAX_VALUE);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Hands every live entry to visitor, one segment at a time under its
+     * lock, until visit() returns false. For CacheSnapshot.
+     */
+    void forEach(EntryVisitor visitor) {
+        long now = System.nanoTime();
+        long wallNow = System.currentTimeMillis();
+        for (Segment segment : segments) {
+            if (!segment.forEach(visitor, now, wallNow)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * expiresAt is in epoch milliseconds.
+     */
+    interface EntryVisitor {
+        boolean visit(String key, String value, long expiresAt);
+    }
+
+    void applyPeerWrite(String key, String value, long version) {
+        segment(key).put(key, value, version, System.nanoTime(), false);
+    }
+
+    void applyPeerInvalidate(String key, long version) {
+        segment(key).remove(key, version);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getSizeEvictionCount() {
+        return sizeEvictions.sum();
+    }
+
+    public long getExpiredCount() {
+        return expirations.sum();
+    }
+
+    public long getEntryCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.count();
+        }
+        return count;
+    }
+
+    public long getByteCount() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private long nextVersion() {
+        long now = System.currentTimeMillis() << NODE_BITS | nodeId;
+        while (true) {
+            long last = lastVersion.get();
+            // Still unique to this node when the clock stands still or steps back
+            long next = now > last ? now : last + (1 << NODE_BITS);
+            if (lastVersion.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & segmentMask];
+    }
+
+    private static int weigh(String key, String value) {
+        return 2 * (key.length() + value.length()) + ENTRY_OVERHEAD_BYTES;
+    }
+
+    private static final class Entry {
+        final String value;
+        final long version;
+        final long expiresAt;
+        final int weight;
+
+        Entry(String value, long version, long expiresAt, int weight) {
+            this.value = value;
+            this.version = version;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private final long maxEntries;
+        private final long maxBytes;
+        private long bytes;
+        // Bumped by every removal, so fills can tell they raced one
+        private volatile long generation;
+
+        Segment(long maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized String get(String key, long now) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (now - entry.expiresAt >= 0) {
+                entries.remove(key);
+                bytes -= entry.weight;
+                expirations.increment();
+                return null;
+            }
+            return entry.value;
+        }
+
+        synchronized void put(String key, String value, long version, long now, boolean ifAbsent) {
+            Entry existing = entries.get(key);
+            if (existing != null && now - existing.expiresAt < 0
+                    && (ifAbsent || existing.version > version)) {
+                return;
+            }
+            int weight = weigh(key, value);
+            if (existing != null) {
+                entries.remove(key);
+                bytes -= existing.weight;
+            }
+            if (weight > maxBytes) {
+                // Would flush the whole segment; not worth caching
+                return;
+            }
+            entries.put(key, new Entry(value, version, now + ttlNanos, weight));
+            bytes += weight;
+            evict(now);
+        }
+
+        synchronized void fill(String key, String value, long now, long token) {
+            if (token == generation) {
+                put(key, value, 0, now, true);
+            }
+        }
+
+        synchronized void remove(String key, long version) {
+            generation++;
+            Entry existing = entries.get(key);
+            if (existing != null && existing.version <= version) {
+                entries.remove(key);
+                bytes -= existing.weight;
+            }
+        }
+
+        synchronized void clear() {
+            generation++;
+            entries.clear();
+            bytes = 0;
+        }
+
+        synchronized boolean forEach(EntryVisitor visitor, long now, long wallNow) {
+            for (Map.Entry<String, Entry> mapping : entries.entrySet()) {
+                Entry entry = mapping.getValue();
+                long remaining = entry.expiresAt - now;
+                if (remaining <= 0) {
+                    continue;
+                }
+                if (!visitor.visit(mapping.getKey(), entry.value, wallNow + TimeUnit.NANOSECONDS.toMillis(remaining))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        synchronized int count() {
+            return entries.size();
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        /**
+         * Least recently used first; expired entries met on the way are
+         * counted as such.
+         */
+        private void evict(long now) {
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+                Entry entry = eldest.next().getValue();
+                eldest.remove();
+                bytes -= entry.weight;
+                if (now - entry.expiresAt >= 0) {
+                    expirations.increment();
+                } else {
+                    sizeEvictions.increment();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.nginx.test;
+
+/**
+ * Pre-encoded HELP/TYPE header of one metric family in both exposition
+ * formats
+ *
+ * OpenMetrics names a counter family without its "_total" suffix, while
+ * the samples keep it, so the two headers differ for counters.
+ */
+final class MetricFamily {
+
+    private final byte[] textHeader;
+    private final byte[] openMetricsHeader;
+
+    MetricFamily(String name, String type, String help) {
+        String family = "counter".equals(type) && name.endsWith("_total")
+                ? name.substring(0, name.length() - "_total".length())
+                : name;
+        String escapedHelp = help.replace("\\", "\\\\").replace("\n", "\\n");
+        this.textHeader = ExpositionBuffer.ascii(
+                "# HELP " + name + " " + escapedHelp + "\n# TYPE " + name + " " + type + "\n");
+        this.openMetricsHeader = ExpositionBuffer.ascii(
+                "# HELP " + family + " " + escapedHelp + "\n# TYPE " + family + " " + type + "\n");
+    }
+
+    byte[] header(boolean openMetrics) {
+        return openMetrics ? openMetricsHeader : textHeader;
+    }
+
+    /**
+     * Encodes a sample name with its labels, followed by the separating space.
+     */
+    static byte[] sample(String nameAndLabels) {
+        return ExpositionBuffer.ascii(nameAndLabels + " ");
+    }
+}
@@ -0,0 +1,144 @@
+package com.nginx.test;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Per-client rate limit for /api/*
+ *
+ * Clients are identified by X-Real-IP, then the first X-Forwarded-For
+ * entry (both set by nginx's proxy_params), then the socket address.
+ * Over-limit requests get 429 with Retry-After. Mapped between
+ * TracingFilter and ConcurrencyLimitFilter, so a noisy client is turned
+ * away before it takes a concurrency permit.
+ *
+ * Limits are per route: "ratePerSecond" and "burst" are the defaults and
+ * "<route>.ratePerSecond" / "<route>.burst" override them, where route is
+ * a Route constant in lower case (e.g. api_cache). A rate of 0 disables
+ * the limit for that route. Values may be ${NAME:default} placeholders
+ * as in the context parameters; one that resolves to empty counts as
+ * unset, so a route override left empty falls back to the default.
+ */
+public class RateLimitFilter implements Filter {
+
+    public static final String RATE_LIMITER_ATTRIBUTE = "com.nginx.test.ratelimit.limiter";
+
+    private static final byte[] LIMITED_BODY =
+            "{\"error\":\"Rate limit exceeded\"}".getBytes(StandardCharsets.UTF_8);
+
+    private RateLimiter limiter;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        limiter = new RateLimiter(
+                intParam(filterConfig, "stripes", 64),
+                intParam(filterConfig, "slotsPerStripe", 1024),
+                intParam(filterConfig, "idleTimeoutMs", 60000));
+
+        double defaultRate = doubleParam(filterConfig, "ratePerSecond", 0);
+        int defaultBurst = intParam(filterConfig, "burst", 200);
+        StringBuilder summary = new StringBuilder();
+        for (int i = 0; i < Route.count(); i++) {
+            Route route = Route.byIndex(i);
+            String prefix = route.name().toLowerCase(Locale.ROOT) + ".";
+            double rate = doubleParam(filterConfig, prefix + "ratePerSecond", defaultRate);
+            int burst = intParam(filterConfig, prefix + "burst", defaultBurst);
+            limiter.setLimit(route, rate, burst);
+            if (limiter.isLimited(route)) {
+                summary.append(summary.length() > 0 ? ", " : "")
+                        .append(route.template()).append('=').append(rate).append("/s burst ").append(burst);
+            }
+        }
+        filterConfig.getServletContext().setAttribute(RATE_LIMITER_ATTRIBUTE, limiter);
+
+        System.out.println("[RateLimitFilter] Initialized for " + limiter.getCapacity() +
+                " client buckets: " + (summary.length() > 0 ? summary : "off"));
+    }
+
+    private static int intParam(FilterConfig filterConfig, String name, int defaultValue) {
+        String value = param(filterConfig, name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static double doubleParam(FilterConfig filterConfig, String name, double defaultValue) {
+        String value = param(filterConfig, name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    private static String param(FilterConfig filterConfig, String name) {
+        String value = AppContextListener.resolve(filterConfig.getInitParameter(name), null);
+        return value != null && !value.trim().isEmpty() ? value.trim() : null;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        Route route = Route.of(httpRequest);
+        if (!limiter.isLimited(route)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        long waitNanos;
+        String client = nonEmpty(httpRequest.getHeader("X-Real-IP"));
+        if (client != null) {
+            waitNanos = limiter.acquire(route, client, trimStart(client, 0), trimEnd(client, client.length()));
+        } else {
+            client = nonEmpty(httpRequest.getHeader("X-Forwarded-For"));
+            if (client != null) {
+                // The left-most entry is the original client
+                int comma = client.indexOf(',');
+                int end = comma >= 0 ? comma : client.length();
+                waitNanos = limiter.acquire(route, client, trimStart(client, 0), trimEnd(client, end));
+            } else {
+                client = request.getRemoteAddr();
+                waitNanos = limiter.acquire(route, client, 0, client.length());
+            }
+        }
+
+        if (waitNanos > 0) {
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setStatus(429);
+            httpResponse.setHeader("Retry-After", Long.toString(Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L)));
+            httpResponse.setContentType("application/json");
+            httpResponse.setCharacterEncoding("UTF-8");
+            httpResponse.setContentLength(LIMITED_BODY.length);
+            httpResponse.getOutputStream().write(LIMITED_BODY);
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+
+    private static String nonEmpty(String value) {
+        return value != null && !value.isEmpty() ? value : null;
+    }
+
+    private static int trimStart(String value, int start) {
+        while (start < value.length() && value.charAt(start) == ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(String value, int end) {
+        while (end > 0 && value.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
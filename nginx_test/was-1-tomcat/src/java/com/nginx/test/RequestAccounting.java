@@ -0,0 +1,94 @@
+package com.nginx.test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Per-thread allocation and CPU counters used by TracingFilter to account
+ * each request
+ *
+ * Uses the HotSpot extension com.sun.management.ThreadMXBean for
+ * allocated bytes. Either counter is reported as -1 when the JVM does not
+ * support it or accounting is switched off.
+ *
+ * Neither counter exists for virtual threads (both read -1 on JDK 21), and
+ * a carrier thread's counters would mix in every other virtual thread it
+ * ran meanwhile, so requests on virtual threads are not accounted at all.
+ */
+final class RequestAccounting {
+
+    // Thread.isVirtual() from JDK 21 on; null before, where no thread is virtual
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final com.sun.management.ThreadMXBean hotspotThreads;
+    private final boolean cpuEnabled;
+    private final boolean allocationEnabled;
+
+    RequestAccounting(boolean enabled) {
+        this.hotspotThreads = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads
+                : null;
+
+        boolean cpu = false;
+        boolean allocation = false;
+        if (enabled) {
+            if (threads.isCurrentThreadCpuTimeSupported()) {
+                if (!threads.isThreadCpuTimeEnabled()) {
+                    threads.setThreadCpuTimeEnabled(true);
+                }
+                cpu = true;
+            }
+            if (hotspotThreads != null && hotspotThreads.isThreadAllocatedMemorySupported()) {
+                if (!hotspotThreads.isThreadAllocatedMemoryEnabled()) {
+                    hotspotThreads.setThreadAllocatedMemoryEnabled(true);
+                }
+                allocation = true;
+            }
+        }
+        this.cpuEnabled = cpu;
+        this.allocationEnabled = allocation;
+    }
+
+    boolean isEnabled() {
+        return cpuEnabled || allocationEnabled;
+    }
+
+    /** Whether the calling thread's counters can be read, see isEnabled(). */
+    boolean appliesToCurrentThread() {
+        return isEnabled() && !isVirtual(Thread.currentThread());
+    }
+
+    /** Bytes allocated so far by the calling thread, or -1. */
+    long allocatedBytes() {
+        return allocationEnabled ? hotspotThreads.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /** CPU time used so far by the calling thread in nanoseconds, or -1. */
+    long cpuNanos() {
+        return cpuEnabled ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+                    MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.nginx.test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous span exporter backed by a bounded lock-free ring buffer
+ *
+ * Request threads copy a finished span into preallocated primitive slots
+ * (multi-producer / single-consumer, Vyukov-style sequence per slot) and
+ * return immediately. When the ring is full the span is dropped and
+ * counted; recording never blocks or allocates. A single daemon thread
+ * drains the ring in batches and POSTs them as OTLP/HTTP JSON.
+ */
+public class SpanExporter {
+
+    public static final String DEFAULT_ENDPOINT = "http://jaeger:4318/v1/traces";
+
+    private static final int KIND_SERVER = 2;
+    private static final int STATUS_UNSET = 0;
+    private static final int STATUS_ERROR = 2;
+
+    private final String serviceName;
+    private final URI endpoint;
+    private final int capacity;
+    private final int mask;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+
+    // Slot sequence: == position when free for that position, position + 1 when published
+    private final AtomicLongArray sequences;
+    private final long[] traceIdHigh;
+    private final long[] traceIdLow;
+    private final long[] spanId;
+    private final long[] parentSpanId;
+    private final long[] startEpochNanos;
+    private final long[] durationNanos;
+    private final int[] statusCode;
+    // -1 when the request was not heavy enough to report
+    private final long[] allocatedBytes;
+    private final long[] cpuNanos;
+    private final String[] method;
+    private final String[] path;
+
+    private final AtomicLong tail = new AtomicLong();
+    // Only written by the exporter thread; volatile so getQueuedCount() can read it
+    private volatile long head;
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder exported = new LongAdder();
+    private final LongAdder exportFailures = new LongAdder();
+
+    private final HttpClient httpClient;
+    private final StringBuilder body = new StringBuilder(64 * 1024);
+    private final char[] hexBuffer = new char[32];
+
+    private volatile boolean running;
+    private Thread exporterThread;
+
+    public SpanExporter(String serviceName, String endpoint, int capacity, int batchSize, long flushIntervalMs) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.serviceName = serviceName;
+        this.endpoint = URI.create(endpoint);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = flushIntervalMs * 1_000_000L;
+
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.traceIdHigh = new long[capacity];
+        this.traceIdLow = new long[capacity];
+        this.spanId = new long[capacity];
+        this.parentSpanId = new long[capacity];
+        this.startEpochNanos = new long[capacity];
+        this.durationNanos = new long[capacity];
+        this.statusCode = new int[capacity];
+        this.allocatedBytes = new long[capacity];
+        this.cpuNanos = new long[capacity];
+        this.method = new String[capacity];
+        this.path = new String[capacity];
+
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(2))
+                .build();
+    }
+
+    public void start() {
+        running = true;
+        exporterThread = new Thread(this::run, "span-exporter");
+        exporterThread.setDaemon(true);
+        exporterThread.start();
+    }
+
+    /**
+     * Stops the exporter thread after a final drain of whatever is buffered.
+     */
+    public void stop() {
+        running = false;
+        Thread thread = exporterThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Records a finished server span. Returns false if the ring was full
+     * and the span was dropped. allocated and cpu are attached as
+     * thread.* attributes unless negative.
+     */
+    public boolean record(long traceIdHi, long traceIdLo, long span, long parentSpan,
+                          long startNanos, long duration, int status, String httpMethod, String httpPath,
+                          long allocated, long cpu) {
+        long position = tail.get();
+        int index;
+        for (;;) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The consumer has not freed this slot yet: ring is full
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        traceIdHigh[index] = traceIdHi;
+        traceIdLow[index] = traceIdLo;
+        spanId[index] = span;
+        parentSpanId[index] = parentSpan;
+        startEpochNanos[index] = startNanos;
+        durationNanos[index] = duration;
+        statusCode[index] = status;
+        allocatedBytes[index] = allocated;
+        cpuNanos[index] = cpu;
+        method[index] = httpMethod;
+        path[index] = httpPath;
+        // Publishes the slot fields to the consumer
+        sequences.lazySet(index, position + 1);
+
+        recorded.increment();
+        return true;
+    }
+
+    public long getRecordedCount() {
+        return recorded.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getExportedCount() {
+        return exported.sum();
+    }
+
+    public long getExportFailureCount() {
+        return exportFailures.sum();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Approximate number of spans waiting in the ring.
+     */
+    public long getQueuedCount() {
+        return Math.max(0, tail.get() - head);
+    }
+
+    private void run() {
+        while (running) {
+            int count = drainAndExport();
+            if (count < batchSize) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+        // Final drain on shutdown
+        while (drainAndExport() > 0) {
+            // keep going until the ring is empty
+        }
+    }
+
+    /**
+     * Moves up to batchSize published spans into an OTLP request body
+     * and sends it. Returns the number of spans taken from the ring.
+     */
+    private int drainAndExport() {
+        body.setLength(0);
+        body.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        appendStringAttribute("service.name", serviceName);
+        body.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"com.nginx.test.TracingFilter\"},\"spans\":[");
+
+        int count = 0;
+        while (count < batchSize) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            if (count > 0) {
+                body.append(',');
+            }
+            appendSpan(index);
+            method[index] = null;
+            path[index] = null;
+            // Hands the slot back to producers for the next lap
+            sequences.lazySet(index, head + capacity);
+            head++;
+            count++;
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        body.append("]}]}]}");
+        send(count);
+        return count;
+    }
+
+    private void appendSpan(int index) {
+        long start = startEpochNanos[index];
+        int status = statusCode[index];
+
+        body.append("{\"traceId\":\"");
+        appendHex(traceIdHigh[index], traceIdLow[index]);
+        body.append("\",\"spanId\":\"");
+        appendHex(spanId[index]);
+        body.append('"');
+        if (parentSpanId[index] != 0) {
+            body.append(",\"parentSpanId\":\"");
+            appendHex(parentSpanId[index]);
+            body.append('"');
+        }
+        body.append(",\"name\":\"");
+        appendEscaped(method[index]);
+        body.append(' ');
+        appendEscaped(path[index]);
+        body.append("\",\"kind\":").append(KIND_SERVER);
+        body.append(",\"startTimeUnixNano\":\"").append(start);
+        body.append("\",\"endTimeUnixNano\":\"").append(start + durationNanos[index]);
+        body.append("\",\"attributes\":[");
+        appendStringAttribute("http.method", method[index]);
+        body.append(',');
+        appendStringAttribute("http.target", path[index]);
+        appendIntAttribute("http.status_code", status);
+        if (allocatedBytes[index] >= 0) {
+            appendIntAttribute("thread.allocated_bytes", allocatedBytes[index]);
+        }
+        if (cpuNanos[index] >= 0) {
+            appendIntAttribute("thread.cpu_time_ns", cpuNanos[index]);
+        }
+        body.append("],\"status\":{\"code\":").append(status >= 500 ? STATUS_ERROR : STATUS_UNSET).append("}}");
+    }
+
+    private void appendIntAttribute(String key, long value) {
+        body.append(",{\"key\":\"").append(key).append("\",\"value\":{\"intValue\":\"").append(value).append("\"}}");
+    }
+
+    private void appendStringAttribute(String key, String value) {
+        body.append("{\"key\":\"").append(key).append("\",\"value\":{\"stringValue\":\"");
+        appendEscaped(value);
+        body.append("\"}}");
+    }
+
+    private void appendEscaped(String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                body.append('\\').append(c);
+            } else if (c < 0x20) {
+                body.append(String.format("\\u%04x", (int) c));
+            } else {
+                body.append(c);
+            }
+        }
+    }
+
+    private void appendHex(long high, long low) {
+        appendHex(high);
+        appendHex(low);
+    }
+
+    private void appendHex(long value) {
+        for (int i = 15; i >= 0; i--) {
+            hexBuffer[i] = Character.forDigit((int) (value & 0xf), 16);
+            value >>>= 4;
+        }
+        body.append(hexBuffer, 0, 16);
+    }
+
+    private void send(int count) {
+        HttpRequest request = HttpRequest.newBuilder(endpoint)
+                .timeout(Duration.ofSeconds(5))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString(), StandardCharsets.UTF_8))
+                .build();
+        try {
+            HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() / 100 == 2) {
+                exported.add(count);
+            } else {
+                exportFailures.add(count);
+            }
+        } catch (IOException e) {
+            exportFailures.add(count);
+        } catch (InterruptedException e) {
+            // Only happens when the container tears the thread down
+            exportFailures.add(count);
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.nginx.test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the Catalina ThreadPool and GlobalRequestProcessor MBeans of each
+ * connector (e.g. "http-nio-8080"), and the Executor MBeans of executors
+ * shared between connectors
+ *
+ * A connector running on a shared executor reports maxThreads -1 on its
+ * ThreadPool MBean; its thread limit is read from the executor instead.
+ *
+ * Names are looked up once; attribute reads go straight to the platform
+ * MBeanServer and return -1 when an attribute is unavailable.
+ */
+final class TomcatConnectors {
+
+    private static final MBeanServer SERVER = ManagementFactory.getPlatformMBeanServer();
+
+    private static volatile List<Connector> connectors = Collections.emptyList();
+    private static volatile List<Executor> executors = Collections.emptyList();
+
+    private TomcatConnectors() {
+    }
+
+    /**
+     * Connectors register their MBeans when Tomcat starts them, so an empty
+     * result is retried on the next call.
+     */
+    static List<Connector> list() {
+        List<Connector> current = connectors;
+        if (current.isEmpty()) {
+            current = discover();
+            connectors = current;
+        }
+        return current;
+    }
+
+    private static List<Connector> discover() {
+        try {
+            List<Connector> found = new ArrayList<>();
+            for (ObjectName threadPool : SERVER.queryNames(new ObjectName("Catalina:type=ThreadPool,name=*"), null)) {
+                String name = threadPool.getKeyProperty("name");
+                ObjectName requestProcessor = new ObjectName("Catalina:type=GlobalRequestProcessor,name=" + name);
+                String unquoted = ObjectName.unquote(name);
+                found.add(new Connector(unquoted, threadPool,
+                        SERVER.isRegistered(requestProcessor) ? requestProcessor : null, executorOf(unquoted)));
+            }
+            return Collections.unmodifiableList(found);
+        } catch (Exception e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * The shared executor of the connector named e.g. "http-nio-8080", from
+     * the executorName of its Connector MBean ("Internal" for its own pool).
+     */
+    private static Executor executorOf(String connectorName) {
+        String port = connectorName.substring(connectorName.lastIndexOf('-') + 1);
+        try {
+            for (ObjectName connector : SERVER.queryNames(new ObjectName("Catalina:type=Connector,*"), null)) {
+                if (!port.equals(connector.getKeyProperty("port"))) {
+                    continue;
+                }
+                Object executorName = SERVER.getAttribute(connector, "executorName");
+                for (Executor executor : executors()) {
+                    if (executor.name.equals(executorName)) {
+                        return executor;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // Treated as the connector's own pool
+        }
+        return null;
+    }
+
+    /**
+     * The first HTTP connector, which is the one nginx talks to.
+     */
+    static Connector http() {
+        for (Connector connector : list()) {
+            if (connector.name.startsWith("http-")) {
+                return connector;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Executors declared in server.xml (e.g. VirtualThreadExecutor); empty
+     * while the connectors run their own thread pools.
+     */
+    static List<Executor> executors() {
+        List<Executor> current = executors;
+        if (current.isEmpty()) {
+            current = discoverExecutors();
+            executors = current;
+        }
+        return current;
+    }
+
+    private static List<Executor> discoverExecutors() {
+        try {
+            List<Executor> found = new ArrayList<>();
+            for (ObjectName executor : SERVER.queryNames(new ObjectName("Catalina:type=Executor,name=*"), null)) {
+                // Unlike connector names, executor names are not quoted
+                String name = executor.getKeyProperty("name");
+                found.add(new Executor(name.startsWith("\"") ? ObjectName.unquote(name) : name, executor));
+            }
+            return Collections.unmodifiableList(found);
+        } catch (Exception e) {
+            return Collections.emptyList();
+        }
+    }
+
+    static final class Connector {
+        final String name;
+        private final ObjectName threadPool;
+        private final ObjectName requestProcessor;
+        private final Executor executor;
+
+        private Connector(String name, ObjectName threadPool, ObjectName requestProcessor, Executor executor) {
+            this.name = name;
+            this.threadPool = threadPool;
+            this.requestProcessor = requestProcessor;
+            this.executor = executor;
+        }
+
+        /**
+         * The shared executor the connector runs requests on, or null for
+         * its own thread pool.
+         */
+        Executor executor() {
+            return executor;
+        }
+
+        long threadsBusy() {
+            return read(threadPool, "currentThreadsBusy");
+        }
+
+        long threadsCurrent() {
+            return read(threadPool, "currentThreadCount");
+        }
+
+        /**
+         * maxThreads of the connector's pool or of its shared executor; -1
+         * when that executor runs virtual threads, which have no limit.
+         */
+        long maxThreads() {
+            return executor != null ? executor.maxThreads() : read(threadPool, "maxThreads");
+        }
+
+        long connectionCount() {
+            return read(threadPool, "connectionCount");
+        }
+
+        long maxConnections() {
+            return read(threadPool, "maxConnections");
+        }
+
+        long acceptCount() {
+            return read(threadPool, "acceptCount");
+        }
+
+        long requestCount() {
+            return read(requestProcessor, "requestCount");
+        }
+
+        long errorCount() {
+            return read(requestProcessor, "errorCount");
+        }
+
+        long bytesSent() {
+            return read(requestProcessor, "bytesSent");
+        }
+
+        long bytesReceived() {
+            return read(requestProcessor, "bytesReceived");
+        }
+
+        long processingTimeMillis() {
+            return read(requestProcessor, "processingTime");
+        }
+
+    }
+
+    static final class Executor {
+        final String name;
+        private final ObjectName executor;
+
+        private Executor(String name, ObjectName executor) {
+            this.name = name;
+            this.executor = executor;
+        }
+
+        long activeCount() {
+            return read(executor, "activeCount");
+        }
+
+        /**
+         * -1 for virtual threads: VirtualThreadExecutor's maxThreads only
+         * sizes the platform pool it falls back to before JDK 21.
+         */
+        long maxThreads() {
+            return virtualThreads() == 1 ? -1 : read(executor, "maxThreads");
+        }
+
+        long completedTaskCount() {
+            return read(executor, "completedTaskCount");
+        }
+
+        /**
+         * 1 for virtual threads, 0 for platform threads, -1 if the
+         * executor does not say.
+         */
+        long virtualThreads() {
+            try {
+                Object value = SERVER.getAttribute(executor, "virtualThreads");
+                return value instanceof Boolean ? ((Boolean) value ? 1 : 0) : -1;
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        long pinnedMaxNanos() {
+            return read(executor, "pinnedMaxNanos");
+        }
+
+        /**
+         * "count nanos site" entries, see VirtualThreadExecutor.getPinnedSites().
+         */
+        String[] pinnedSites() {
+            try {
+                Object value = SERVER.getAttribute(executor, "pinnedSites");
+                return value instanceof String[] ? (String[]) value : new String[0];
+            } catch (Exception e) {
+                return new String[0];
+            }
+        }
+    }
+
+    private static long read(ObjectName objectName, String attribute) {
+        if (objectName == null) {
+            return -1;
+        }
+        try {
+            Object value = SERVER.getAttribute(objectName, attribute);
+            return value instanceof Number ? ((Number) value).longValue() : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.nginx.test;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -9,17 +11,25 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletRequestWrapper;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * OpenTelemetry-compatible tracing filter
  * Implements W3C Trace Context propagation
+ *
+ * Runs on every request (/health and /metrics included), so the hot path
+ * avoids UUID/SecureRandom, regex splitting and per-request maps: IDs come
+ * from ThreadLocalRandom and are hex-encoded into a per-thread buffer, and
+ * traceparent is validated by hand.
+ *
+ * Sampling is decided at the head (see TraceSampler); unsampled requests
+ * still propagate their IDs but never build or export a span.
  */
 public class TracingFilter implements Filter {
 
@@ -30,10 +40,83 @@ public class TracingFilter implements Filter {
     private static final String B3_PARENT_SPAN_ID_HEADER = "X-B3-ParentSpanId";
     private static final String B3_SAMPLED_HEADER = "X-B3-Sampled";
 
+    private static final String TRACE_ID_HEADER = "X-Trace-Id";
+    private static final String SPAN_ID_HEADER = "X-Span-Id";
+    private static final String PARENT_SPAN_ID_HEADER = "X-Parent-Span-Id";
+    private static final String SERVICE_HEADER = "X-Service";
+    // Set by nginx (proxy_params) as "t=<epoch seconds>.<millis>"
+    private static final String REQUEST_START_HEADER = "X-Request-Start";
+
+    // Ignore queue waits beyond this; they point at clock skew, not queueing
+    private static final long MAX_QUEUE_WAIT_MS = 60_000L;
+
+    private static final String SERVICE_NAME = "was-1-tomcat";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // version(2) - trace-id(32) - parent-id(16) - flags(2)
+    private static final int TRACE_PARENT_LENGTH = 55;
+
+    // Large enough for a full traceparent value
+    private static final ThreadLocal<char[]> HEX_BUFFER =
+            ThreadLocal.withInitial(() -> new char[TRACE_PARENT_LENGTH]);
+
+    public static final String SPAN_EXPORTER_ATTRIBUTE = "com.nginx.test.tracing.exporter";
+    public static final String TRACE_SAMPLER_ATTRIBUTE = "com.nginx.test.tracing.sampler";
+
+    private SpanExporter spanExporter;
+    private TraceSampler sampler;
+
+    // Per-request allocation/CPU accounting (resourceAccounting init-param)
+    private RequestAccounting accounting;
+    private long spanAllocationThresholdBytes;
+    private long spanCpuThresholdNanos;
+
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
-        // Initialize OpenTelemetry SDK here in production
-        System.out.println("[TracingFilter] Initialized with OpenTelemetry support");
+        String endpoint = AppContextListener.getConfig(filterConfig.getServletContext(),
+                "JAEGER_ENDPOINT", SpanExporter.DEFAULT_ENDPOINT);
+        spanExporter = new SpanExporter(SERVICE_NAME, endpoint,
+                intParam(filterConfig, "spanBufferSize", 8192),
+                intParam(filterConfig, "exportBatchSize", 512),
+                intParam(filterConfig, "exportIntervalMs", 1000));
+        spanExporter.start();
+        filterConfig.getServletContext().setAttribute(SPAN_EXPORTER_ATTRIBUTE, spanExporter);
+
+        sampler = new TraceSampler(samplingRatio(filterConfig),
+                intParam(filterConfig, "maxTracesPerSecond", 100));
+        filterConfig.getServletContext().setAttribute(TRACE_SAMPLER_ATTRIBUTE, sampler);
+
+        String resourceAccounting = filterConfig.getInitParameter("resourceAccounting");
+        accounting = new RequestAccounting(resourceAccounting == null || Boolean.parseBoolean(resourceAccounting.trim()));
+        spanAllocationThresholdBytes = intParam(filterConfig, "spanAllocationThresholdKb", 1024) * 1024L;
+        spanCpuThresholdNanos = intParam(filterConfig, "spanCpuThresholdMs", 20) * 1_000_000L;
+        MetricsServlet.setResourceAccountingEnabled(accounting.isEnabled());
+
+        System.out.println("[TracingFilter] Initialized, exporting spans to " + endpoint +
+                " (samplingRatio=" + sampler.getProbability() +
+                ", resourceAccounting=" + accounting.isEnabled() + ")");
+    }
+
+    /**
+     * The samplingRatio init-param wins over the otel/samplingRatio
+     * environment entry from context.xml.
+     */
+    private static double samplingRatio(FilterConfig filterConfig) {
+        String value = filterConfig.getInitParameter("samplingRatio");
+        if (value == null) {
+            try {
+                value = (String) new InitialContext().lookup("java:comp/env/otel/samplingRatio");
+            } catch (NamingException e) {
+                value = null;
+            }
+        }
+        return value != null ? Double.parseDouble(value.trim()) : 1.0;
+    }
+
+    private static int intParam(FilterConfig filterConfig, String name, int defaultValue) {
+        String value = filterConfig.getInitParameter(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
     }
 
     @Override
@@ -43,149 +126,523 @@ public class TracingFilter implements Filter {
         HttpServletRequest httpRequest = (HttpServletRequest) request;
         HttpServletResponse httpResponse = (HttpServletResponse) response;
 
+        // Wall clock only anchors the span; durations come from nanoTime
         long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        Route route = Route.of(httpRequest);
+        recordQueueWait(httpRequest.getHeader(REQUEST_START_HEADER), startTime);
 
         // Extract or generate trace context
         TraceContext traceContext = extractOrCreateTraceContext(httpRequest);
 
         // Wrap request to inject trace headers
-        HttpServletRequest wrappedRequest = wrapRequestWithTraceHeaders(httpRequest, traceContext);
-
-        // Add trace headers to response
-        httpResponse.setHeader("X-Trace-Id", traceContext.traceId);
-        httpResponse.setHeader("X-Span-Id", traceContext.spanId);
-        httpResponse.setHeader("X-Service", "was-1-tomcat");
-
-        // Increment metrics
-        MetricsServlet.incrementRequests();
+        HttpServletRequest wrappedRequest = new TraceHeadersRequest(httpRequest, traceContext);
+
+        // Add trace headers to response, including the sampling decision
+        httpResponse.setHeader(TRACE_ID_HEADER, traceContext.traceId);
+        httpResponse.setHeader(SPAN_ID_HEADER, traceContext.spanId);
+        httpResponse.setHeader(SERVICE_HEADER, SERVICE_NAME);
+        httpResponse.setHeader(TRACE_PARENT_HEADER, toTraceParent(traceContext));
+        httpResponse.setHeader(B3_SAMPLED_HEADER, traceContext.sampled ? "1" : "0");
+
+        // Increment metrics (and the route's in-flight gauge)
+        MetricsServlet.requestStarted(route);
+
+        // Thread counters at the start; the reads themselves are timed as overhead.
+        // Skipped on virtual threads, which have no counters of their own
+        boolean accounted = accounting.appliesToCurrentThread();
+        long allocatedStart = -1;
+        long cpuStart = -1;
+        long accountingNanos = 0;
+        if (accounted) {
+            long readStart = System.nanoTime();
+            allocatedStart = accounting.allocatedBytes();
+            cpuStart = accounting.cpuNanos();
+            accountingNanos = System.nanoTime() - readStart;
+        }
 
+        int status = 500;
+        boolean async = false;
         try {
             chain.doFilter(wrappedRequest, httpResponse);
-
-            // Record span on success
-            long duration = System.currentTimeMillis() - startTime;
-            MetricsServlet.addRequestDuration(duration);
-
-            // Log span (in production, send to Jaeger)
-            logSpan(traceContext, httpRequest, httpResponse.getStatus(), duration);
-
+            status = httpResponse.getStatus();
+            async = httpRequest.isAsyncStarted();
         } catch (Exception e) {
             MetricsServlet.incrementErrors();
+            throw e;
+        } finally {
+            long duration = System.nanoTime() - startNanos;
+            if (!async) {
+                MetricsServlet.recordRequest(route, status, duration);
+            }
 
-            long duration = System.currentTimeMillis() - startTime;
-            logSpan(traceContext, httpRequest, 500, duration);
+            long allocated = -1;
+            long cpu = -1;
+            if (accounted) {
+                long readStart = System.nanoTime();
+                long allocatedEnd = accounting.allocatedBytes();
+                long cpuEnd = accounting.cpuNanos();
+                accountingNanos += System.nanoTime() - readStart;
+
+                allocated = allocatedStart >= 0 ? allocatedEnd - allocatedStart : -1;
+                cpu = cpuStart >= 0 ? cpuEnd - cpuStart : -1;
+                MetricsServlet.recordResources(route, allocated, cpu, accountingNanos);
+            }
 
-            throw e;
+            // Only the heavy requests carry their resource usage on the span
+            long spanAllocated = allocated >= spanAllocationThresholdBytes ? allocated : -1;
+            long spanCpu = cpu >= spanCpuThresholdNanos ? cpu : -1;
+            if (async) {
+                // The response is finished on another thread; count and trace the
+                // request when it completes. Allocation/CPU cover this dispatch only.
+                httpRequest.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        long asyncDuration = System.nanoTime() - startNanos;
+                        int asyncStatus = httpResponse.getStatus();
+                        MetricsServlet.recordRequest(route, asyncStatus, asyncDuration);
+                        if (traceContext.sampled) {
+                            recordSpan(traceContext, httpRequest, startTime, asyncStatus, asyncDuration,
+                                    spanAllocated, spanCpu);
+                        }
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                        MetricsServlet.incrementErrors();
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else if (traceContext.sampled) {
+                recordSpan(traceContext, httpRequest, startTime, status, duration, spanAllocated, spanCpu);
+            }
         }
     }
 
+    private static void recordQueueWait(String requestStart, long nowMs) {
+        long startMs = parseRequestStart(requestStart);
+        if (startMs <= 0) {
+            return;
+        }
+        long waitMs = nowMs - startMs;
+        if (waitMs >= 0 && waitMs <= MAX_QUEUE_WAIT_MS) {
+            MetricsServlet.recordQueueWait(waitMs * 1_000_000L);
+        }
+    }
+
+    /**
+     * Parses X-Request-Start into epoch millis. Accepts nginx's $msec
+     * ("t=1700000000.123") as well as integer seconds, millis or micros.
+     * Returns -1 when absent or malformed.
+     */
+    static long parseRequestStart(String header) {
+        if (header == null) {
+            return -1;
+        }
+        int i = header.startsWith("t=") ? 2 : 0;
+        long whole = 0;
+        int wholeDigits = 0;
+        for (; i < header.length() && header.charAt(i) != '.'; i++) {
+            char c = header.charAt(i);
+            if (c < '0' || c > '9' || ++wholeDigits > 18) {
+                return -1;
+            }
+            whole = whole * 10 + (c - '0');
+        }
+        if (wholeDigits == 0) {
+            return -1;
+        }
+        if (i < header.length()) {
+            // Seconds with a fraction: keep up to three fraction digits
+            long millis = 0;
+            int fractionDigits = 0;
+            for (i++; i < header.length() && fractionDigits < 3; i++, fractionDigits++) {
+                char c = header.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                millis = millis * 10 + (c - '0');
+            }
+            for (; fractionDigits < 3; fractionDigits++) {
+                millis *= 10;
+            }
+            return whole * 1000 + millis;
+        }
+        if (whole > 100_000_000_000_000L) {
+            return whole / 1000;
+        }
+        if (whole > 100_000_000_000L) {
+            return whole;
+        }
+        return whole * 1000;
+    }
+
     private TraceContext extractOrCreateTraceContext(HttpServletRequest request) {
         TraceContext context = new TraceContext();
 
         // Try W3C Trace Context format first
         String traceparent = request.getHeader(TRACE_PARENT_HEADER);
-        if (traceparent != null && !traceparent.isEmpty()) {
-            // Format: 00-traceId-spanId-flags
-            String[] parts = traceparent.split("-");
-            if (parts.length >= 4) {
-                context.traceId = parts[1];
-                context.parentSpanId = parts[2];
-                context.sampled = "01".equals(parts[3]);
-            }
+        if (traceparent != null) {
+            parseTraceParent(traceparent, context);
         }
 
         // Try B3 format (Zipkin compatibility)
         if (context.traceId == null) {
             String b3TraceId = request.getHeader(B3_TRACE_ID_HEADER);
             if (b3TraceId != null) {
-                context.traceId = b3TraceId;
-                context.parentSpanId = request.getHeader(B3_SPAN_ID_HEADER);
-                context.sampled = "1".equals(request.getHeader(B3_SAMPLED_HEADER));
+                parseB3(b3TraceId, request.getHeader(B3_SPAN_ID_HEADER), context);
+                if (context.traceId != null) {
+                    context.sampledFlag = parseB3Sampled(request.getHeader(B3_SAMPLED_HEADER));
+                }
             }
         }
 
         // Generate new trace if none found
         if (context.traceId == null) {
-            context.traceId = generateTraceId();
-            context.sampled = true;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            context.traceIdHigh = random.nextLong();
+            context.traceIdLow = nonZeroRandom(random);
+            context.traceId = toHex(context.traceIdHigh, context.traceIdLow);
         }
 
+        // Honor an upstream decision, otherwise this is a root decision
+        context.sampled = context.sampledFlag >= 0
+                ? sampler.upstream(context.sampledFlag == 1)
+                : sampler.sampleRoot();
+
         // Always generate new span ID for this request
-        context.spanId = generateSpanId();
-        context.serviceName = "was-1-tomcat";
+        context.spanIdValue = nonZeroRandom(ThreadLocalRandom.current());
+        context.spanId = toHex(context.spanIdValue);
+        context.serviceName = SERVICE_NAME;
 
         return context;
     }
 
-    private HttpServletRequest wrapRequestWithTraceHeaders(HttpServletRequest request, TraceContext context) {
-        return new HttpServletRequestWrapper(request) {
-            private final Map<String, String> customHeaders = new HashMap<>();
+    /**
+     * Parses "00-{32 hex trace-id}-{16 hex parent-id}-{2 hex flags}".
+     * Leaves the context untouched when the header is malformed, so the
+     * request falls back to B3 or a new root trace.
+     */
+    static void parseTraceParent(String header, TraceContext context) {
+        int length = header.length();
+        if (length < TRACE_PARENT_LENGTH
+                || header.charAt(2) != '-' || header.charAt(35) != '-' || header.charAt(52) != '-') {
+            return;
+        }
+
+        long version = parseHex(header, 0, 2);
+        // Version ff is forbidden; version 00 has no trailing fields
+        if (version < 0 || version == 0xff || (version == 0 && length != TRACE_PARENT_LENGTH)) {
+            return;
+        }
+        if (length > TRACE_PARENT_LENGTH && header.charAt(TRACE_PARENT_LENGTH) != '-') {
+            return;
+        }
+
+        long traceIdHigh = parseHex(header, 3, 19);
+        long traceIdLow = parseHex(header, 19, 35);
+        long parentSpanId = parseHex(header, 36, 52);
+        long flags = parseHex(header, 53, 55);
+        if (!isValidHex(header, 3, 35) || !isValidHex(header, 36, 52) || flags < 0
+                || (traceIdHigh == 0 && traceIdLow == 0) || parentSpanId == 0) {
+            return;
+        }
+
+        context.traceIdHigh = traceIdHigh;
+        context.traceIdLow = traceIdLow;
+        context.traceId = toHex(traceIdHigh, traceIdLow);
+        context.parentSpanIdValue = parentSpanId;
+        context.parentSpanId = toHex(parentSpanId);
+        context.sampledFlag = (int) (flags & 0x01);
+    }
+
+    /**
+     * Returns 1/0 for an explicit B3 decision, -1 when the header is
+     * absent or unrecognized (deferred to this service).
+     */
+    static int parseB3Sampled(String header) {
+        if (header == null) {
+            return -1;
+        }
+        if ("1".equals(header) || "true".equalsIgnoreCase(header) || "d".equals(header)) {
+            return 1;
+        }
+        if ("0".equals(header) || "false".equalsIgnoreCase(header)) {
+            return 0;
+        }
+        return -1;
+    }
 
-            {
-                customHeaders.put("X-Trace-Id", context.traceId);
-                customHeaders.put("X-Span-Id", context.spanId);
-                if (context.parentSpanId != null) {
-                    customHeaders.put("X-Parent-Span-Id", context.parentSpanId);
-                }
-                customHeaders.put("X-Service", context.serviceName);
+    /**
+     * B3 trace IDs are 16 or 32 hex characters; 64-bit IDs are left-padded
+     * to the 128-bit W3C form.
+     */
+    static void parseB3(String traceIdHeader, String spanIdHeader, TraceContext context) {
+        int length = traceIdHeader.length();
+        long traceIdHigh;
+        long traceIdLow;
+        if (length == 32 && isValidHex(traceIdHeader, 0, 32)) {
+            traceIdHigh = parseHex(traceIdHeader, 0, 16);
+            traceIdLow = parseHex(traceIdHeader, 16, 32);
+        } else if (length == 16 && isValidHex(traceIdHeader, 0, 16)) {
+            traceIdHigh = 0;
+            traceIdLow = parseHex(traceIdHeader, 0, 16);
+        } else {
+            return;
+        }
+        if (traceIdHigh == 0 && traceIdLow == 0) {
+            return;
+        }
+
+        context.traceIdHigh = traceIdHigh;
+        context.traceIdLow = traceIdLow;
+        context.traceId = toHex(traceIdHigh, traceIdLow);
+
+        if (spanIdHeader != null && spanIdHeader.length() == 16 && isValidHex(spanIdHeader, 0, 16)) {
+            long parentSpanId = parseHex(spanIdHeader, 0, 16);
+            if (parentSpanId != 0) {
+                context.parentSpanIdValue = parentSpanId;
+                context.parentSpanId = toHex(parentSpanId);
             }
+        }
+    }
 
-            @Override
-            public String getHeader(String name) {
-                String customValue = customHeaders.get(name);
-                if (customValue != null) {
-                    return customValue;
-                }
-                return super.getHeader(name);
+    /**
+     * Parses up to 16 hex characters; returns -1 on a non-hex character
+     * for short fields. Callers use isValidHex for full 64-bit fields,
+     * where -1 is a legal value.
+     */
+    private static long parseHex(String s, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = hexDigit(s.charAt(i));
+            if (digit < 0) {
+                return -1;
             }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
 
-            @Override
-            public Enumeration<String> getHeaderNames() {
-                List<String> names = Collections.list(super.getHeaderNames());
-                names.addAll(customHeaders.keySet());
-                return Collections.enumeration(names);
+    private static boolean isValidHex(String s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (hexDigit(s.charAt(i)) < 0) {
+                return false;
             }
-        };
+        }
+        return true;
+    }
+
+    /**
+     * Lowercase only: traceparent (and B3) IDs are lower hex, and
+     * Character.digit would also take non-ASCII digits.
+     */
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
     }
 
-    private void logSpan(TraceContext context, HttpServletRequest request, int statusCode, long durationMs) {
-        // In production, this would send to Jaeger via OpenTelemetry
-        String spanLog = String.format(
-                "[SPAN] traceId=%s spanId=%s parentSpanId=%s service=%s " +
-                        "method=%s path=%s status=%d duration=%dms",
-                context.traceId,
-                context.spanId,
-                context.parentSpanId != null ? context.parentSpanId : "root",
-                context.serviceName,
-                request.getMethod(),
-                request.getRequestURI(),
-                statusCode,
-                durationMs
-        );
-        System.out.println(spanLog);
+    private static long nonZeroRandom(ThreadLocalRandom random) {
+        long value;
+        do {
+            value = random.nextLong();
+        } while (value == 0);
+        return value;
     }
 
-    private String generateTraceId() {
-        // 32 hex characters (128 bits)
-        return UUID.randomUUID().toString().replace("-", "") +
-               UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+    static String toHex(long high, long low) {
+        char[] buffer = HEX_BUFFER.get();
+        writeHex(high, buffer, 0);
+        writeHex(low, buffer, 16);
+        return new String(buffer, 0, 32);
     }
 
-    private String generateSpanId() {
-        // 16 hex characters (64 bits)
-        return UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+    static String toHex(long value) {
+        char[] buffer = HEX_BUFFER.get();
+        writeHex(value, buffer, 0);
+        return new String(buffer, 0, 16);
+    }
+
+    /**
+     * Formats "00-{trace-id}-{span-id}-{flags}" for this request's span.
+     */
+    static String toTraceParent(TraceContext context) {
+        char[] buffer = HEX_BUFFER.get();
+        buffer[0] = '0';
+        buffer[1] = '0';
+        buffer[2] = '-';
+        writeHex(context.traceIdHigh, buffer, 3);
+        writeHex(context.traceIdLow, buffer, 19);
+        buffer[35] = '-';
+        writeHex(context.spanIdValue, buffer, 36);
+        buffer[52] = '-';
+        buffer[53] = '0';
+        buffer[54] = context.sampled ? '1' : '0';
+        return new String(buffer, 0, TRACE_PARENT_LENGTH);
+    }
+
+    private static void writeHex(long value, char[] buffer, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            buffer[offset + i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Hands the span to the ring buffer; never blocks, drops when full.
+     */
+    private void recordSpan(TraceContext context, HttpServletRequest request, long startTimeMs,
+                            int statusCode, long durationNanos, long allocatedBytes, long cpuNanos) {
+        spanExporter.record(context.traceIdHigh, context.traceIdLow, context.spanIdValue,
+                context.parentSpanIdValue, startTimeMs * 1_000_000L, durationNanos,
+                statusCode, request.getMethod(), request.getRequestURI(), allocatedBytes, cpuNanos);
     }
 
     @Override
     public void destroy() {
-        System.out.println("[TracingFilter] Destroyed");
+        if (spanExporter != null) {
+            spanExporter.stop();
+            System.out.println("[TracingFilter] Destroyed (spans exported=" + spanExporter.getExportedCount() +
+                    ", dropped=" + spanExporter.getDroppedCount() + ")");
+        }
     }
 
-    private static class TraceContext {
+    static class TraceContext {
+        // Binary IDs, kept alongside the hex strings for span export
+        long traceIdHigh;
+        long traceIdLow;
+        long spanIdValue;
+        long parentSpanIdValue;
+
         String traceId;
         String spanId;
         String parentSpanId;
         String serviceName;
+        // Upstream sampled flag: 1/0 when propagated, -1 when absent
+        int sampledFlag = -1;
         boolean sampled;
     }
+
+    /**
+     * Overlays the four trace headers on the incoming request in fixed
+     * slots instead of copying them into a map. Header names compare
+     * case-insensitively, as HTTP requires.
+     */
+    private static class TraceHeadersRequest extends HttpServletRequestWrapper {
+
+        private static final String[] OVERLAY_NAMES = {
+                TRACE_ID_HEADER, SPAN_ID_HEADER, PARENT_SPAN_ID_HEADER, SERVICE_HEADER
+        };
+
+        private final TraceContext context;
+
+        TraceHeadersRequest(HttpServletRequest request, TraceContext context) {
+            super(request);
+            this.context = context;
+        }
+
+        /**
+         * Returns the overlay slot for a header name: 0-3 when it is one of
+         * ours, -1 otherwise.
+         */
+        private static int slotOf(String name) {
+            if (name == null) {
+                return -1;
+            }
+            for (int i = 0; i < OVERLAY_NAMES.length; i++) {
+                if (OVERLAY_NAMES[i].equalsIgnoreCase(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private String slotValue(int slot) {
+            switch (slot) {
+                case 0: return context.traceId;
+                case 1: return context.spanId;
+                case 2: return context.parentSpanId;
+                case 3: return context.serviceName;
+                default: return null;
+            }
+        }
+
+        @Override
+        public String getHeader(String name) {
+            String value = slotValue(slotOf(name));
+            return value != null ? value : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            String value = slotValue(slotOf(name));
+            return value != null ? Collections.enumeration(Collections.singletonList(value)) : super.getHeaders(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            return new HeaderNames(super.getHeaderNames());
+        }
+
+        /**
+         * Streams the container's header names (minus ones we override)
+         * followed by the overlay names that have a value.
+         */
+        private class HeaderNames implements Enumeration<String> {
+
+            private final Enumeration<String> delegate;
+            private int slot;
+            private String next;
+
+            HeaderNames(Enumeration<String> delegate) {
+                this.delegate = delegate;
+                advance();
+            }
+
+            private void advance() {
+                while (delegate != null && delegate.hasMoreElements()) {
+                    String name = delegate.nextElement();
+                    if (slotValue(slotOf(name)) == null) {
+                        next = name;
+                        return;
+                    }
+                }
+                while (slot < OVERLAY_NAMES.length) {
+                    int current = slot++;
+                    if (slotValue(current) != null) {
+                        next = OVERLAY_NAMES[current];
+                        return;
+                    }
+                }
+                next = null;
+            }
+
+            @Override
+            public boolean hasMoreElements() {
+                return next != null;
+            }
+
+            @Override
+            public String nextElement() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                String current = next;
+                advance();
+                return current;
+            }
+        }
+    }
 }
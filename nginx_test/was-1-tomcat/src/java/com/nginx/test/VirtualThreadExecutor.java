@@ -0,0 +1,351 @@
+package com.nginx.test;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.util.LifecycleMBeanBase;
+import org.apache.tomcat.util.threads.ResizableExecutor;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Tomcat Executor that runs every request on its own virtual thread
+ *
+ * Declared in server.xml and shared by the connectors, so a request
+ * blocked on Redis or Kafka parks its virtual thread instead of holding
+ * one of maxThreads platform threads. There is no thread limit; /api/*
+ * concurrency is bounded by ConcurrencyLimitFilter instead.
+ *
+ * While a virtual thread blocks inside a synchronized block (or a native
+ * frame) it pins its carrier thread, and enough of those at once stall
+ * every request. Pinning is picked up from the jdk.VirtualThreadPinned JFR
+ * event and counted per call site: the first frame outside the JDK, e.g.
+ * a Jedis or Gson method. Counters are MBean attributes of
+ * Catalina:type=Executor,name=..., since this class is loaded from
+ * $CATALINA_BASE/lib and the webapp only sees it through JMX.
+ *
+ * The webapp targets Java 11, so virtual threads and the JFR event stream
+ * are looked up reflectively. Without them the executor falls back to a
+ * platform pool of maxThreads threads.
+ */
+public class VirtualThreadExecutor extends LifecycleMBeanBase
+        implements org.apache.catalina.Executor, ResizableExecutor {
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final int MAX_PINNED_SITES = 32;
+    private static final String OTHER_SITE = "other";
+
+    private String name;
+    private String namePrefix = "tomcat-vt-";
+    private int maxThreads = 200;
+    private long pinnedThresholdMs = 20;
+
+    private volatile ThreadFactory virtualThreads;
+    private volatile ThreadPoolExecutor platformPool;
+    private AutoCloseable pinnedEvents;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+
+    // Only written from the JFR stream's dispatch thread
+    private final Map<String, PinnedSite> pinnedSites = new ConcurrentHashMap<>();
+    private volatile long pinnedCount;
+    private volatile long pinnedNanos;
+    private volatile long pinnedMaxNanos;
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    /**
+     * Size of the platform pool used when virtual threads are unavailable.
+     */
+    @Override
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public long getPinnedThresholdMs() {
+        return pinnedThresholdMs;
+    }
+
+    /**
+     * Pinned periods shorter than this are not recorded; same default as
+     * the JDK's own setting for the event.
+     */
+    public void setPinnedThresholdMs(long pinnedThresholdMs) {
+        this.pinnedThresholdMs = pinnedThresholdMs;
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        virtualThreads = virtualThreadFactory(namePrefix);
+        if (virtualThreads != null) {
+            pinnedEvents = startPinnedEvents();
+            System.out.println("[VirtualThreadExecutor] " + name + " started on virtual threads, pinning " +
+                    (pinnedEvents != null ? "recorded above " + pinnedThresholdMs + "ms" : "not recorded"));
+        } else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), platformThreadFactory(namePrefix));
+            pool.allowCoreThreadTimeOut(true);
+            platformPool = pool;
+            System.out.println("[VirtualThreadExecutor] " + name + ": no virtual threads on Java " +
+                    System.getProperty("java.specification.version") + ", using " + maxThreads + " platform threads");
+        }
+        setState(LifecycleState.STARTING);
+    }
+
+    @Override
+    protected void stopInternal() throws LifecycleException {
+        setState(LifecycleState.STOPPING);
+        virtualThreads = null;
+        ThreadPoolExecutor pool = platformPool;
+        platformPool = null;
+        if (pool != null) {
+            pool.shutdown();
+        }
+        if (pinnedEvents != null) {
+            try {
+                pinnedEvents.close();
+            } catch (Exception e) {
+                System.err.println("[VirtualThreadExecutor] Failed to close JFR stream: " + e.getMessage());
+            }
+            pinnedEvents = null;
+        }
+    }
+
+    @Override
+    protected String getDomainInternal() {
+        return null;
+    }
+
+    @Override
+    protected String getObjectNameKeyProperties() {
+        return "type=Executor,name=" + getName();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        Runnable task = () -> {
+            active.incrementAndGet();
+            try {
+                command.run();
+            } finally {
+                active.decrementAndGet();
+                completed.increment();
+            }
+        };
+        ThreadFactory factory = virtualThreads;
+        if (factory != null) {
+            factory.newThread(task).start();
+            return;
+        }
+        ThreadPoolExecutor pool = platformPool;
+        if (pool == null) {
+            // As StandardThreadExecutor, so the connector's rejection handling applies
+            throw new RejectedExecutionException("Executor " + name + " is not running");
+        }
+        pool.execute(task);
+    }
+
+    @Deprecated
+    @Override
+    public void execute(Runnable command, long timeout, TimeUnit unit) {
+        execute(command);
+    }
+
+    // ResizableExecutor lets the connector's ThreadPool MBean report busy threads
+
+    @Override
+    public int getPoolSize() {
+        ThreadPoolExecutor pool = platformPool;
+        return pool != null ? pool.getPoolSize() : active.get();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    @Override
+    public boolean resizePool(int corePoolSize, int maximumPoolSize) {
+        return false;
+    }
+
+    @Override
+    public boolean resizeQueue(int capacity) {
+        return false;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads != null;
+    }
+
+    public boolean isPinningRecorded() {
+        return pinnedEvents != null;
+    }
+
+    public long getCompletedTaskCount() {
+        return completed.sum();
+    }
+
+    public int getQueueSize() {
+        ThreadPoolExecutor pool = platformPool;
+        return pool != null ? pool.getQueue().size() : 0;
+    }
+
+    public long getPinnedCount() {
+        return pinnedCount;
+    }
+
+    public long getPinnedNanos() {
+        return pinnedNanos;
+    }
+
+    public long getPinnedMaxNanos() {
+        return pinnedMaxNanos;
+    }
+
+    /**
+     * One "count nanos site" entry per call site, at most MAX_PINNED_SITES
+     * plus "other".
+     */
+    public String[] getPinnedSites() {
+        List<String> sites = new ArrayList<>(pinnedSites.size());
+        for (PinnedSite site : pinnedSites.values()) {
+            sites.add(site.count + " " + site.nanos + " " + site.name);
+        }
+        return sites.toArray(new String[0]);
+    }
+
+    private void onPinned(RecordedEvent event) {
+        long nanos = event.getDuration().toNanos();
+        String siteName = site(event.getStackTrace());
+        PinnedSite site = pinnedSites.get(siteName);
+        if (site == null) {
+            if (pinnedSites.size() >= MAX_PINNED_SITES) {
+                siteName = OTHER_SITE;
+                site = pinnedSites.get(siteName);
+            }
+            if (site == null) {
+                site = new PinnedSite(siteName);
+                pinnedSites.put(siteName, site);
+                System.out.println("[VirtualThreadExecutor] Carrier thread pinned for " +
+                        TimeUnit.NANOSECONDS.toMillis(nanos) + "ms in " + siteName);
+            }
+        }
+        site.count++;
+        site.nanos += nanos;
+        pinnedCount++;
+        pinnedNanos += nanos;
+        if (nanos > pinnedMaxNanos) {
+            pinnedMaxNanos = nanos;
+        }
+    }
+
+    /**
+     * The innermost frame outside the JDK, which is the library or
+     * application code that blocked while pinned.
+     */
+    private static String site(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return "unknown";
+        }
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            if (frame.getMethod() == null || frame.getMethod().getType() == null) {
+                continue;
+            }
+            String type = frame.getMethod().getType().getName();
+            if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+                return type + "." + frame.getMethod().getName();
+            }
+        }
+        return "jdk";
+    }
+
+    private static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = Class.forName("java.lang.Thread$Builder$OfVirtual")
+                    .getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Starts an in-process JFR stream with only the pinning event enabled.
+     * Returns null if JFR is unavailable or disabled.
+     */
+    private AutoCloseable startPinnedEvents() {
+        try {
+            Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+            Object stream = streamClass.getConstructor().newInstance();
+            Object settings = streamClass.getMethod("enable", String.class).invoke(stream, PINNED_EVENT);
+            Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings");
+            settingsClass.getMethod("withThreshold", Duration.class)
+                    .invoke(settings, Duration.ofMillis(pinnedThresholdMs));
+            settingsClass.getMethod("withStackTrace").invoke(settings);
+            Consumer<RecordedEvent> handler = this::onPinned;
+            streamClass.getMethod("onEvent", String.class, Consumer.class).invoke(stream, PINNED_EVENT, handler);
+            streamClass.getMethod("startAsync").invoke(stream);
+            return (AutoCloseable) stream;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.err.println("[VirtualThreadExecutor] Pinning detection disabled: " + cause);
+            return null;
+        }
+    }
+
+    private static final class PinnedSite {
+        final String name;
+        volatile long count;
+        volatile long nanos;
+
+        PinnedSite(String name) {
+            this.name = name;
+        }
+    }
+}
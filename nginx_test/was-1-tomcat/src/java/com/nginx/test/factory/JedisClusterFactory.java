@@ -0,0 +1,120 @@
+package com.nginx.test.factory;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.spi.ObjectFactory;
+import java.time.Duration;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisClientConfig;
+import redis.clients.jedis.JedisCluster;
+
+/**
+ * JNDI object factory for the shared Redis Cluster client
+ * Referenced from context.xml as the "redis/cluster" resource
+ *
+ * JedisCluster keeps one connection pool per cluster node and routes each
+ * command by hash slot, so a single instance is shared by the whole webapp.
+ * The slot map is re-read every topologyRefreshMillis so failovers and
+ * resharding are picked up without waiting for MOVED redirects.
+ */
+public class JedisClusterFactory implements ObjectFactory {
+
+    public static final String DEFAULT_HOSTS = "redis-1:6379,redis-2:6379,redis-3:6379";
+
+    @Override
+    public Object getObjectInstance(Object obj, Name name, Context nameCtx, Hashtable<?, ?> environment) {
+        if (!(obj instanceof Reference)) {
+            return null;
+        }
+
+        Reference ref = (Reference) obj;
+        Map<String, String> config = new HashMap<>();
+        Enumeration<RefAddr> addrs = ref.getAll();
+        while (addrs.hasMoreElements()) {
+            RefAddr addr = addrs.nextElement();
+            if (addr.getContent() != null) {
+                config.put(addr.getType(), addr.getContent().toString());
+            }
+        }
+
+        return createCluster(config);
+    }
+
+    /**
+     * Builds a JedisCluster from resource-style attributes
+     * (host, maxTotal, maxIdle, minIdle, maxWaitMillis, ...).
+     * Missing attributes fall back to the defaults used in context.xml.
+     */
+    public static JedisCluster createCluster(Map<String, String> config) {
+        Set<HostAndPort> nodes = parseNodes(config.getOrDefault("host", DEFAULT_HOSTS));
+
+        JedisClientConfig clientConfig = DefaultJedisClientConfig.builder()
+                .connectionTimeoutMillis(intValue(config, "connectionTimeout", 2000))
+                .socketTimeoutMillis(intValue(config, "soTimeout", 2000))
+                .clientName(config.get("clientName"))
+                .build();
+
+        GenericObjectPoolConfig<Connection> poolConfig = new GenericObjectPoolConfig<>();
+        poolConfig.setMaxTotal(intValue(config, "maxTotal", 100));
+        poolConfig.setMaxIdle(intValue(config, "maxIdle", 30));
+        poolConfig.setMinIdle(intValue(config, "minIdle", 10));
+        poolConfig.setMaxWait(Duration.ofMillis(longValue(config, "maxWaitMillis", 3000)));
+        poolConfig.setTestOnBorrow(booleanValue(config, "testOnBorrow", false));
+        poolConfig.setTestWhileIdle(booleanValue(config, "testWhileIdle", true));
+        // The evictor is what tops idle connections back up to minIdle
+        poolConfig.setTimeBetweenEvictionRuns(
+                Duration.ofMillis(longValue(config, "timeBetweenEvictionRunsMillis", 30000)));
+        poolConfig.setJmxEnabled(false);
+
+        Duration topologyRefresh = Duration.ofMillis(longValue(config, "topologyRefreshMillis", 30000));
+        int maxAttempts = intValue(config, "maxAttempts", 5);
+        Duration maxTotalRetries = Duration.ofMillis(longValue(config, "maxTotalRetriesMillis", 10000));
+
+        return new JedisCluster(nodes, clientConfig, poolConfig, topologyRefresh, maxAttempts, maxTotalRetries);
+    }
+
+    static Set<HostAndPort> parseNodes(String hosts) {
+        Set<HostAndPort> nodes = new LinkedHashSet<>();
+        for (String host : hosts.split(",")) {
+            String trimmed = host.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int colon = trimmed.lastIndexOf(':');
+            if (colon > 0) {
+                nodes.add(new HostAndPort(trimmed.substring(0, colon),
+                        Integer.parseInt(trimmed.substring(colon + 1))));
+            } else {
+                nodes.add(new HostAndPort(trimmed, 6379));
+            }
+        }
+        return nodes;
+    }
+
+    private static int intValue(Map<String, String> config, String key, int defaultValue) {
+        String value = config.get(key);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    private static long longValue(Map<String, String> config, String key, long defaultValue) {
+        String value = config.get(key);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    private static boolean booleanValue(Map<String, String> config, String key, boolean defaultValue) {
+        String value = config.get(key);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+}
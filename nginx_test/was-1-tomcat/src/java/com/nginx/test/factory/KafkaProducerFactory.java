@@ -0,0 +1,92 @@
+package com.nginx.test.factory;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.spi.ObjectFactory;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+/**
+ * JNDI object factory for the shared Kafka producer
+ * Referenced from context.xml as the "kafka/producer" resource
+ *
+ * KafkaProducer is thread-safe and batches records per partition, so one
+ * instance serves every request thread. lingerMs/batchSize/compressionType
+ * trade a few milliseconds of latency for fewer, larger produce requests,
+ * and a short maxBlockMs keeps request threads from stalling when the send
+ * buffer is full.
+ */
+public class KafkaProducerFactory implements ObjectFactory {
+
+    public static final String DEFAULT_BOOTSTRAP_SERVERS = "kafka-1:9092,kafka-2:9092,kafka-3:9092";
+
+    @Override
+    public Object getObjectInstance(Object obj, Name name, Context nameCtx, Hashtable<?, ?> environment) {
+        if (!(obj instanceof Reference)) {
+            return null;
+        }
+
+        Reference ref = (Reference) obj;
+        Map<String, String> config = new HashMap<>();
+        Enumeration<RefAddr> addrs = ref.getAll();
+        while (addrs.hasMoreElements()) {
+            RefAddr addr = addrs.nextElement();
+            if (addr.getContent() != null) {
+                config.put(addr.getType(), addr.getContent().toString());
+            }
+        }
+
+        return createProducer(config);
+    }
+
+    /**
+     * Builds a KafkaProducer from resource-style attributes
+     * (bootstrapServers, acks, batchSize, lingerMs, ...).
+     */
+    public static KafkaProducer<String, String> createProducer(Map<String, String> config) {
+        Properties props = new Properties();
+        props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG,
+                config.getOrDefault("bootstrapServers", DEFAULT_BOOTSTRAP_SERVERS));
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG,
+                config.getOrDefault("keySerializer", StringSerializer.class.getName()));
+        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,
+                config.getOrDefault("valueSerializer", StringSerializer.class.getName()));
+        props.put(ProducerConfig.ACKS_CONFIG, config.getOrDefault("acks", "all"));
+        props.put(ProducerConfig.RETRIES_CONFIG, config.getOrDefault("retries", "3"));
+        props.put(ProducerConfig.BATCH_SIZE_CONFIG, config.getOrDefault("batchSize", "65536"));
+        props.put(ProducerConfig.LINGER_MS_CONFIG, config.getOrDefault("lingerMs", "5"));
+        props.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, config.getOrDefault("compressionType", "lz4"));
+        props.put(ProducerConfig.BUFFER_MEMORY_CONFIG, config.getOrDefault("bufferMemory", "33554432"));
+        props.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, config.getOrDefault("maxBlockMs", "100"));
+        props.put(ProducerConfig.DELIVERY_TIMEOUT_MS_CONFIG, config.getOrDefault("deliveryTimeoutMs", "30000"));
+        props.put(ProducerConfig.REQUEST_TIMEOUT_MS_CONFIG, config.getOrDefault("requestTimeoutMs", "10000"));
+        props.put(ProducerConfig.CLIENT_ID_CONFIG, config.getOrDefault("clientId", "was-tomcat"));
+
+        return new KafkaProducer<>(props);
+    }
+
+    /**
+     * Finds a producer-level metric (group "producer-metrics") by name.
+     * The returned Metric stays live, so callers can keep it and read it cheaply.
+     */
+    public static Metric findProducerMetric(KafkaProducer<?, ?> producer, String metricName) {
+        for (Map.Entry<MetricName, ? extends Metric> entry : producer.metrics().entrySet()) {
+            MetricName key = entry.getKey();
+            if ("producer-metrics".equals(key.group()) && metricName.equals(key.name())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+}
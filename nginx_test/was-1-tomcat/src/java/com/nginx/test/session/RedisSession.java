@@ -0,0 +1,233 @@
+package com.nginx.test.session;
+
+import org.apache.catalina.session.StandardSession;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Session whose attributes are decoded on first use and whose changes are
+ * tracked per attribute, so only those are written back to Redis
+ *
+ * Attributes loaded from Redis stay as encoded bytes until getAttribute()
+ * asks for them. setAttribute() and removeAttribute() mark the name dirty
+ * or removed. A value that needed Java serialization may be mutated in
+ * place without setAttribute(), so once decoded it is written back on
+ * every save as well.
+ */
+final class RedisSession extends StandardSession {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(RedisSession.class);
+
+    private final transient Map<String, byte[]> encoded = new ConcurrentHashMap<>();
+    private final transient Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final transient Set<String> removed = ConcurrentHashMap.newKeySet();
+    // Requests on this node currently using the session
+    private final transient AtomicInteger requests = new AtomicInteger();
+    // Set by the valve once it saved; endAccess() then only saves late changes
+    private transient volatile boolean saved;
+
+    RedisSession(RedisSessionManager manager) {
+        super(manager);
+    }
+
+    /**
+     * Fills a new, empty session from its Redis hash.
+     */
+    void restore(String id, long[] metadata, Map<String, byte[]> attributes) {
+        this.id = id;
+        this.creationTime = metadata[0];
+        this.lastAccessedTime = metadata[1];
+        this.thisAccessedTime = metadata[1];
+        this.maxInactiveInterval = (int) metadata[2];
+        this.isNew = false;
+        this.isValid = true;
+        encoded.putAll(attributes);
+    }
+
+    boolean isExpired(long now) {
+        return maxInactiveInterval > 0 && now - lastAccessedTime >= maxInactiveInterval * 1000L;
+    }
+
+    boolean isLive() {
+        return isValidInternal();
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        decode(name);
+        return super.getAttribute(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        Enumeration<String> names = super.getAttributeNames();
+        if (encoded.isEmpty()) {
+            return names;
+        }
+        Set<String> all = new HashSet<>(encoded.keySet());
+        while (names.hasMoreElements()) {
+            all.add(names.nextElement());
+        }
+        return Collections.enumeration(all);
+    }
+
+    @Override
+    protected String[] keys() {
+        decodeAll();
+        return super.keys();
+    }
+
+    @Override
+    public void setAttribute(String name, Object value, boolean notify) {
+        if (value != null) {
+            // The old value is needed for unbinding listeners
+            decode(name);
+        }
+        super.setAttribute(name, value, notify);
+        if (value != null) {
+            dirty.add(name);
+            removed.remove(name);
+        }
+    }
+
+    @Override
+    protected void removeAttributeInternal(String name, boolean notify) {
+        decode(name);
+        super.removeAttributeInternal(name, notify);
+        dirty.remove(name);
+        removed.add(name);
+    }
+
+    /**
+     * A new id is a new Redis key: the whole session is written on the
+     * next save.
+     */
+    @Override
+    public void setId(String id, boolean notify) {
+        super.setId(id, notify);
+        decodeAll();
+        dirty.addAll(attributes.keySet());
+        removed.clear();
+    }
+
+    @Override
+    public void access() {
+        super.access();
+        requests.incrementAndGet();
+        ((RedisSessionManager) manager).accessed(this);
+    }
+
+    @Override
+    public void endAccess() {
+        super.endAccess();
+        RedisSessionManager redisManager = (RedisSessionManager) manager;
+        if (redisManager == null) {
+            return;
+        }
+        // Async requests, or changes after the valve saved
+        if (isValidInternal() && (!saved || !dirty.isEmpty() || !removed.isEmpty())) {
+            redisManager.save(this);
+        }
+        saved = false;
+        if (requests.decrementAndGet() <= 0) {
+            redisManager.release(this);
+        }
+    }
+
+    boolean isInUse() {
+        return requests.get() > 0;
+    }
+
+    void markSaved() {
+        saved = true;
+    }
+
+    /**
+     * Names to write on this save, with the dirty set cleared. Includes
+     * decoded values that may have changed in place.
+     */
+    List<String> takeDirty() {
+        List<String> names = new ArrayList<>(dirty.size());
+        for (String name : dirty) {
+            dirty.remove(name);
+            names.add(name);
+        }
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            if (!SessionCodec.isImmutable(attribute.getValue()) && !names.contains(attribute.getKey())) {
+                names.add(attribute.getKey());
+            }
+        }
+        return names;
+    }
+
+    List<String> takeRemoved() {
+        List<String> names = new ArrayList<>(removed.size());
+        for (String name : removed) {
+            removed.remove(name);
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Puts back what a failed save took, unless it was changed again since.
+     */
+    void untake(List<String> dirtyNames, List<String> removedNames) {
+        for (String name : dirtyNames) {
+            if (!removed.contains(name)) {
+                dirty.add(name);
+            }
+        }
+        for (String name : removedNames) {
+            if (!dirty.contains(name)) {
+                removed.add(name);
+            }
+        }
+    }
+
+    Object valueOf(String name) {
+        return attributes.get(name);
+    }
+
+    private void decode(String name) {
+        if (encoded.isEmpty() || name == null || !encoded.containsKey(name)) {
+            return;
+        }
+        synchronized (encoded) {
+            byte[] bytes = encoded.get(name);
+            if (bytes == null) {
+                return;
+            }
+            RedisSessionManager redisManager = (RedisSessionManager) manager;
+            try {
+                Object value = SessionCodec.decode(bytes, redisManager.getClassLoader(),
+                        redisManager.getAllowedClassPattern(), log);
+                if (value != null) {
+                    attributes.put(name, value);
+                }
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                System.err.println("[RedisSession] Dropping attribute " + name + " of session " + id + ": " + e);
+            }
+            encoded.remove(name);
+        }
+    }
+
+    private void decodeAll() {
+        for (String name : encoded.keySet()) {
+            decode(name);
+        }
+    }
+}
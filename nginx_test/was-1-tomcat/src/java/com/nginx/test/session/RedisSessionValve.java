@@ -0,0 +1,39 @@
+package com.nginx.test.session;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+/**
+ * Writes back the session a request used, once the request is done with it
+ *
+ * Added to the context pipeline by RedisSessionManager. Only a session the
+ * request actually accessed is saved; asking the request for its session
+ * here would load it from Redis for requests that never touch it.
+ */
+public class RedisSessionValve extends ValveBase {
+
+    private final RedisSessionManager manager;
+
+    public RedisSessionValve(RedisSessionManager manager) {
+        super(true);
+        this.manager = manager;
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        manager.clearAccessed();
+        try {
+            getNext().invoke(request, response);
+        } finally {
+            RedisSession session = manager.takeAccessed();
+            if (session != null) {
+                manager.save(session);
+                session.markSaved();
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.nginx.test.session;
+
+import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.juli.logging.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Binary encoding of session metadata and attribute values
+ *
+ * A value is a one-byte tag followed by its payload: integers are zigzag
+ * varints, doubles are 8 bytes, strings and byte arrays a varint length
+ * plus the bytes. "42" costs 4 bytes and a Long 2-10, against ~80 for
+ * the same objects through ObjectOutputStream. Anything else falls back
+ * to Java serialization under its own tag, read back with the webapp's
+ * class loader and the Manager's sessionAttributeValueClassNameFilter.
+ */
+final class SessionCodec {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte BYTES = 7;
+    private static final byte SERIALIZED = 8;
+
+    private static final byte METADATA_VERSION = 1;
+
+    private SessionCodec() {
+    }
+
+    /**
+     * True for the tagged types that are immutable, so an attribute holding
+     * one only changes through setAttribute. Not byte[]: its contents can
+     * be changed in place like any serialized value.
+     */
+    static boolean isImmutable(Object value) {
+        return value == null || value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Boolean || value instanceof Double;
+    }
+
+    static byte[] encode(Object value) throws IOException {
+        Writer out = new Writer(16);
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof String) {
+            out.write(STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Integer) {
+            out.write(INT);
+            out.writeVarLong(zigzag((Integer) value));
+        } else if (value instanceof Long) {
+            out.write(LONG);
+            out.writeVarLong(zigzag((Long) value));
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            out.write(DOUBLE);
+            long bits = Double.doubleToRawLongBits((Double) value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((byte) (bits >>> shift));
+            }
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.write(BYTES);
+            out.writeVarLong(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else {
+            out.write(SERIALIZED);
+            try (ObjectOutputStream objects = new ObjectOutputStream(out)) {
+                objects.writeObject(value);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static Object decode(byte[] bytes, ClassLoader classLoader, Pattern allowedClasses, Log log)
+            throws IOException, ClassNotFoundException {
+        Reader in = new Reader(bytes);
+        byte tag = in.read();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return in.readString();
+            case INT:
+                return (int) unzigzag(in.readVarLong());
+            case LONG:
+                return unzigzag(in.readVarLong());
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case DOUBLE:
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | (in.read() & 0xFF);
+                }
+                return Double.longBitsToDouble(bits);
+            case BYTES:
+                return in.readBytes((int) in.readVarLong());
+            case SERIALIZED:
+                try (ObjectInputStream objects = new CustomObjectInputStream(
+                        new ByteArrayInputStream(bytes, 1, bytes.length - 1), classLoader, log, allowedClasses, true)) {
+                    return objects.readObject();
+                }
+            default:
+                throw new IOException("Unknown session value tag " + tag);
+        }
+    }
+
+    static byte[] encodeMetadata(long creationTime, long lastAccessedTime, int maxInactiveInterval) {
+        Writer out = new Writer(24);
+        out.write(METADATA_VERSION);
+        out.writeVarLong(creationTime);
+        // Usually a few minutes after creation, so the delta is short
+        out.writeVarLong(lastAccessedTime - creationTime);
+        out.writeVarLong(zigzag(maxInactiveInterval));
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns {creationTime, lastAccessedTime, maxInactiveInterval}.
+     */
+    static long[] decodeMetadata(byte[] bytes) throws IOException {
+        Reader in = new Reader(bytes);
+        byte version = in.read();
+        if (version != METADATA_VERSION) {
+            throw new IOException("Unknown session metadata version " + version);
+        }
+        long creationTime = in.readVarLong();
+        long lastAccessedTime = creationTime + in.readVarLong();
+        long maxInactiveInterval = unzigzag(in.readVarLong());
+        return new long[] {creationTime, lastAccessedTime, maxInactiveInterval};
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Writer extends OutputStream {
+        private byte[] bytes;
+        private int length;
+
+        Writer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        @Override
+        public void write(int b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+            System.arraycopy(data, offset, bytes, length, count);
+            length += count;
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length);
+            write(utf8, 0, utf8.length);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        byte read() throws IOException {
+            if (position >= bytes.length) {
+                throw new IOException("Truncated session value");
+            }
+            return bytes[position++];
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in session value");
+        }
+
+        byte[] readBytes(int count) throws IOException {
+            if (count < 0 || count > bytes.length - position) {
+                throw new IOException("Truncated session value");
+            }
+            byte[] result = Arrays.copyOfRange(bytes, position, position + count);
+            position += count;
+            return result;
+        }
+
+        String readString() throws IOException {
+            int count = (int) readVarLong();
+            if (count < 0 || count > bytes.length - position) {
+                throw new IOException("Truncated session value");
+            }
+            String value = new String(bytes, position, count, StandardCharsets.UTF_8);
+            position += count;
+            return value;
+        }
+    }
+}
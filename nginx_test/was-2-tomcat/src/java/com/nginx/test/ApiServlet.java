@@ -4,225 +4,738 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.StringReader;
 import java.net.InetAddress;
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
-
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.nginx.test.factory.KafkaProducerFactory;
 import redis.clients.jedis.JedisCluster;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
-
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.errors.TimeoutException;
+
+/**
+ * REST API under /api/*
+ *
+ * GETs are served on the request thread. POST /api/message and
+ * PUT /api/cache/{key} run asynchronously (see AsyncExchange): the body is
+ * read without blocking, the Kafka send is already asynchronous, and the
+ * Redis SET runs on a small bounded backend pool, so slow uploads and
+ * slow backends do not pin Tomcat worker threads.
+ *
+ * GET /api/cache/{key} tries LocalCache ("source": "local"), then the
+ * off-heap NearCache ("near-cache"), then the CacheSnapshot left by the
+ * previous run ("snapshot", only for a while after startup), then Redis,
+ * each tier when enabled. Successful PUTs drop the key from the snapshot.
+ * With keyspace notifications on (NEAR_CACHE_INVALIDATION=keyspace) they
+ * are the authority for both tiers: they report this node's own SETs too,
+ * so a PUT drops the key from the tiers rather than writing it through
+ * and the next GET fills it from Redis; LocalCache only evicts locally,
+ * as every node hears the same event. Otherwise PUTs are written through
+ * to both tiers (and LocalCache's peer node, the only setup where one is
+ * attached).
+ *
+ * GET /api/cache?keys=a,b,c (or POST /api/cache with {"keys": [...]} for
+ * long lists) looks up every key the same way and reads all misses with
+ * one pipelined round trip per Redis node (ClusterMultiGet).
+ *
+ * With the getBatching init-param, the Redis reads of concurrent
+ * GET /api/cache/{key} requests share round trips through a GetBatcher.
+ */
 public class ApiServlet extends HttpServlet {
 
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    static final String EVENTS_TOPIC = "nginx-test-events";
+    static final String GET_BATCHER_ATTRIBUTE = "com.nginx.test.redis.getBatcher";
+
+    // Per-record overhead on top of key and value in the producer buffer
+    private static final int RECORD_OVERHEAD_BYTES = 128;
+
     private JedisCluster jedisCluster;
+    private LocalCache localCache;
+    private NearCache nearCache;
+    private CacheSnapshot snapshot;
+    // False while keyspace notifications would evict written-through values right away
+    private boolean writeThrough;
     private KafkaProducer<String, String> kafkaProducer;
+    private Metric kafkaBufferAvailable;
+    private String hostname;
+    private String ip;
+
+    private int maxBodyBytes;
+    private int maxMultiGetKeys;
+    private long asyncTimeoutMs;
+    // Jedis is blocking; SETs for async PUTs run here instead of on Tomcat threads
+    private ThreadPoolExecutor backendExecutor;
+    // Null unless getBatching is on
+    private GetBatcher getBatcher;
 
     @Override
+    @SuppressWarnings("unchecked")
     public void init() throws ServletException {
         super.init();
-        // Initialize Redis and Kafka connections in real implementation
-        // jedisCluster = RedisConfig.getCluster();
-        // kafkaProducer = KafkaConfig.getProducer();
+        // Shared clients are created and warmed by AppContextListener
+        jedisCluster = (JedisCluster) getServletContext()
+                .getAttribute(AppContextListener.REDIS_CLUSTER_ATTRIBUTE);
+        kafkaProducer = (KafkaProducer<String, String>) getServletContext()
+                .getAttribute(AppContextListener.KAFKA_PRODUCER_ATTRIBUTE);
+        localCache = (LocalCache) getServletContext().getAttribute(AppContextListener.LOCAL_CACHE_ATTRIBUTE);
+        nearCache = (NearCache) getServletContext().getAttribute(AppContextListener.NEAR_CACHE_ATTRIBUTE);
+        snapshot = (CacheSnapshot) getServletContext().getAttribute(AppContextListener.CACHE_SNAPSHOT_ATTRIBUTE);
+        writeThrough = !(getServletContext().getAttribute(AppContextListener.CACHE_INVALIDATIONS_ATTRIBUTE)
+                instanceof KeyspaceInvalidations);
+        if (kafkaProducer != null) {
+            kafkaBufferAvailable = KafkaProducerFactory.findProducerMetric(kafkaProducer, "buffer-available-bytes");
+        }
+
+        // Resolved once; getLocalHost() may go to DNS
+        try {
+            InetAddress localHost = InetAddress.getLocalHost();
+            hostname = localHost.getHostName();
+            ip = localHost.getHostAddress();
+        } catch (Exception e) {
+            hostname = "unknown";
+            ip = "unknown";
+        }
+
+        maxBodyBytes = intParam("maxBodyBytes", 1024 * 1024);
+        asyncTimeoutMs = intParam("asyncTimeoutMs", 30000);
+        maxMultiGetKeys = intParam("maxMultiGetKeys", 1000);
+        int backendThreads = intParam("backendThreads", 32);
+        AtomicInteger threadCount = new AtomicInteger();
+        backendExecutor = new ThreadPoolExecutor(backendThreads, backendThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(intParam("backendQueueSize", 1024)), runnable -> {
+                    Thread thread = new Thread(runnable, "api-backend-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        backendExecutor.allowCoreThreadTimeOut(true);
+
+        if (jedisCluster != null && Boolean.parseBoolean(getInitParameter("getBatching"))) {
+            getBatcher = new GetBatcher(jedisCluster, intParam("getBatchMaxKeys", 128),
+                    intParam("getBatchMaxInFlight", 4), asyncTimeoutMs);
+            getServletContext().setAttribute(GET_BATCHER_ATTRIBUTE, getBatcher);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        getServletContext().removeAttribute(GET_BATCHER_ATTRIBUTE);
+        if (getBatcher != null) {
+            getBatcher.stop();
+        }
+        if (backendExecutor != null) {
+            backendExecutor.shutdown();
+        }
+        super.destroy();
+    }
+
+    private int intParam(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
     }
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
 
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
-
         String pathInfo = request.getPathInfo();
-        Map<String, Object> result = new HashMap<>();
 
         if (pathInfo == null || pathInfo.equals("/") || pathInfo.equals("/info")) {
             // GET /api/info - Server information
-            result = getServerInfo(request);
+            writeServerInfo(request, response);
         } else if (pathInfo.startsWith("/cache/")) {
             // GET /api/cache/{key} - Get from Redis
             String key = pathInfo.substring(7);
-            result = getFromCache(key);
+            getFromCache(key, request, response);
+        } else if (pathInfo.equals("/cache")) {
+            // GET /api/cache?keys=a,b,c - Get many from Redis
+            getManyFromCache(request.getParameter("keys"), request, response);
         } else {
-            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-            result.put("error", "Endpoint not found");
-            result.put("path", pathInfo);
+            writeNotFound(request, response, pathInfo);
         }
-
-        // Add trace context
-        addTraceContext(request, result);
-
-        PrintWriter out = response.getWriter();
-        out.print(gson.toJson(result));
-        out.flush();
     }
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
 
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
-
         String pathInfo = request.getPathInfo();
-        Map<String, Object> result = new HashMap<>();
 
         if (pathInfo != null && pathInfo.equals("/message")) {
             // POST /api/message - Send message to Kafka
-            String body = readRequestBody(request);
-            result = sendToKafka(body);
+            AsyncExchange.start(request, response, maxBodyBytes, asyncTimeoutMs, this::sendToKafka);
+        } else if (pathInfo != null && pathInfo.equals("/cache")) {
+            // POST /api/cache {"keys": [...]} - Get many from Redis, for key lists too long for a URL
+            AsyncExchange.start(request, response, maxBodyBytes, asyncTimeoutMs, this::submitMultiGet);
         } else {
-            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-            result.put("error", "Endpoint not found");
+            writeNotFound(request, response, pathInfo);
         }
-
-        addTraceContext(request, result);
-
-        PrintWriter out = response.getWriter();
-        out.print(gson.toJson(result));
-        out.flush();
     }
 
     @Override
     protected void doPut(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
 
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
-
         String pathInfo = request.getPathInfo();
-        Map<String, Object> result = new HashMap<>();
 
         if (pathInfo != null && pathInfo.startsWith("/cache/")) {
             // PUT /api/cache/{key} - Set to Redis
             String key = pathInfo.substring(7);
-            String body = readRequestBody(request);
-            result = setToCache(key, body);
+            AsyncExchange.start(request, response, maxBodyBytes, asyncTimeoutMs,
+                    (exchange, body) -> submitSetToCache(key, body, exchange));
         } else {
-            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-            result.put("error", "Endpoint not found");
+            writeNotFound(request, response, pathInfo);
         }
+    }
 
-        addTraceContext(request, result);
+    private void writeServerInfo(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        JsonWriter json = JsonResponses.open(request, response);
+        json.beginObject();
+        json.name("service").value("was-1-tomcat");
+        json.name("type").value("legacy-onpremise");
+        json.name("framework").value("Tomcat 9 + Servlet");
+        json.name("timestamp").value(Instant.now().toString());
+        json.name("hostname").value(hostname);
+        json.name("ip").value(ip);
+
+        json.name("request").beginObject();
+        json.name("remoteAddr").value(request.getRemoteAddr());
+        json.name("method").value(request.getMethod());
+        json.name("uri").value(request.getRequestURI());
+        json.name("protocol").value(request.getProtocol());
+        json.endObject();
+
+        JsonResponses.writeTraceContext(json, request);
+        json.endObject();
+        json.flush();
+    }
 
-        PrintWriter out = response.getWriter();
-        out.print(gson.toJson(result));
-        out.flush();
+    private void getFromCache(String key, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        // Taken before any tier is read; a read from a lower tier races invalidations like one from Redis
+        long localToken = localCache != null ? localCache.fillToken(key) : 0;
+        long nearToken = nearCache != null ? nearCache.fillToken(key) : 0;
+        TierHit hit = readTiers(key, localToken, nearToken);
+        String value = hit != null ? hit.value : null;
+        String source = hit != null ? hit.source : "redis-cluster";
+        String error = null;
+
+        if (hit == null) {
+            if (jedisCluster == null) {
+                error = "Redis cluster not available";
+            } else {
+                try {
+                    value = getBatcher != null ? getBatcher.get(key) : jedisCluster.get(key);
+                    if (value != null) {
+                        fillTiers(key, value, localToken, nearToken);
+                    }
+                } catch (Exception e) {
+                    error = e.getMessage();
+                }
+            }
+        }
+
+        JsonWriter json = JsonResponses.open(request, response);
+        json.beginObject();
+        json.name("operation").value("GET");
+        json.name("key").value(key);
+        if (error == null) {
+            json.name("value").value(value);
+            json.name("found").value(value != null);
+            json.name("source").value(source);
+            json.name("success").value(true);
+        } else {
+            json.name("success").value(false);
+            json.name("error").value(error);
+        }
+        JsonResponses.writeTraceContext(json, request);
+        json.endObject();
+        json.flush();
+    }
+
+    /**
+     * LocalCache, then NearCache, then the snapshot, each when enabled; a
+     * hit is filled into the tiers above it. Null when all of them miss.
+     */
+    private TierHit readTiers(String key, long localToken, long nearToken) {
+        String value = localCache != null ? localCache.get(key) : null;
+        if (value != null) {
+            return new TierHit(value, "local");
+        }
+        if (nearCache != null) {
+            value = nearCache.get(key);
+            if (value != null) {
+                if (localCache != null) {
+                    localCache.fill(key, value, localToken);
+                }
+                return new TierHit(value, "near-cache");
+            }
+        }
+        if (snapshot != null) {
+            value = snapshot.get(key);
+            if (value != null) {
+                fillTiers(key, value, localToken, nearToken);
+                return new TierHit(value, "snapshot");
+            }
+        }
+        return null;
     }
 
-    private Map<String, Object> getServerInfo(HttpServletRequest request) {
-        Map<String, Object> info = new HashMap<>();
-        info.put("service", "was-1-tomcat");
-        info.put("type", "legacy-onpremise");
-        info.put("framework", "Tomcat 9 + Servlet");
-        info.put("timestamp", Instant.now().toString());
+    private void fillTiers(String key, String value, long localToken, long nearToken) {
+        if (nearCache != null) {
+            nearCache.fill(key, value, nearToken);
+        }
+        if (localCache != null) {
+            localCache.fill(key, value, localToken);
+        }
+    }
 
+    private static final class TierHit {
+        final String value;
+        final String source;
+
+        TierHit(String value, String source) {
+            this.value = value;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Runs on the backend pool for POST, on the request thread for GET.
+     * Every key goes through the cache tiers as in getFromCache(); the
+     * misses are read from Redis together, one pipelined batch per node.
+     * Results come back in request order.
+     */
+    private void writeMultiGet(JsonWriter json, List<String> keys, HttpServletRequest request) throws IOException {
+        int count = keys.size();
+        String[] values = new String[count];
+        String[] sources = new String[count];
+        String[] errors = new String[count];
+        long[] localTokens = new long[count];
+        long[] nearTokens = new long[count];
+        List<String> misses = new ArrayList<>();
+        List<Integer> missIndexes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String key = keys.get(i);
+            localTokens[i] = localCache != null ? localCache.fillToken(key) : 0;
+            nearTokens[i] = nearCache != null ? nearCache.fillToken(key) : 0;
+            TierHit hit = readTiers(key, localTokens[i], nearTokens[i]);
+            if (hit != null) {
+                values[i] = hit.value;
+                sources[i] = hit.source;
+            } else {
+                sources[i] = "redis-cluster";
+                misses.add(key);
+                missIndexes.add(i);
+            }
+        }
+
+        if (!misses.isEmpty()) {
+            ClusterMultiGet fetched = jedisCluster != null ? ClusterMultiGet.fetch(jedisCluster, misses) : null;
+            for (int j = 0; j < misses.size(); j++) {
+                int i = missIndexes.get(j);
+                if (fetched == null) {
+                    errors[i] = "Redis cluster not available";
+                } else if (fetched.error(j) != null) {
+                    errors[i] = fetched.error(j);
+                } else if (fetched.value(j) != null) {
+                    values[i] = fetched.value(j);
+                    fillTiers(keys.get(i), values[i], localTokens[i], nearTokens[i]);
+                }
+            }
+        }
+
+        int found = 0;
+        json.beginObject();
+        json.name("operation").value("MGET");
+        json.name("count").value(count);
+        json.name("results").beginArray();
+        for (int i = 0; i < count; i++) {
+            json.beginObject();
+            json.name("key").value(keys.get(i));
+            if (errors[i] == null) {
+                json.name("value").value(values[i]);
+                json.name("found").value(values[i] != null);
+                json.name("source").value(sources[i]);
+                found += values[i] != null ? 1 : 0;
+            } else {
+                json.name("found").value(false);
+                json.name("error").value(errors[i]);
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.name("found").value(found);
+        json.name("success").value(true);
+        JsonResponses.writeTraceContext(json, request);
+        json.endObject();
+        json.flush();
+    }
+
+    private void submitMultiGet(AsyncExchange exchange, String body) throws IOException {
+        List<String> keys;
         try {
-            info.put("hostname", InetAddress.getLocalHost().getHostName());
-            info.put("ip", InetAddress.getLocalHost().getHostAddress());
-        } catch (Exception e) {
-            info.put("hostname", "unknown");
+            keys = parseKeys(body);
+        } catch (IOException | IllegalStateException e) {
+            exchange.response().setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            writeMultiGetError(exchange.json(), exchange.request(), "Expected {\"keys\": [...]}: " + e.getMessage());
+            exchange.send();
+            return;
         }
+        String invalid = checkKeyCount(keys);
+        if (invalid != null) {
+            exchange.response().setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            writeMultiGetError(exchange.json(), exchange.request(), invalid);
+            exchange.send();
+            return;
+        }
+        try {
+            backendExecutor.execute(() -> {
+                try {
+                    if (!exchange.isOpen()) {
+                        return;
+                    }
+                    writeMultiGet(exchange.json(), keys, exchange.request());
+                    exchange.send();
+                } catch (Exception e) {
+                    failQuietly(exchange, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectBusy(exchange.response());
+            writeMultiGetError(exchange.json(), exchange.request(), "Backend queue full");
+            exchange.send();
+        }
+    }
 
-        Map<String, Object> requestInfo = new HashMap<>();
-        requestInfo.put("remoteAddr", request.getRemoteAddr());
-        requestInfo.put("method", request.getMethod());
-        requestInfo.put("uri", request.getRequestURI());
-        requestInfo.put("protocol", request.getProtocol());
-        info.put("request", requestInfo);
+    private void getManyFromCache(String keysParameter, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        List<String> keys = new ArrayList<>();
+        if (keysParameter != null) {
+            for (String key : keysParameter.split(",")) {
+                if (!key.isEmpty()) {
+                    keys.add(key);
+                }
+            }
+        }
+        String invalid = checkKeyCount(keys);
+        if (invalid != null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            writeMultiGetError(JsonResponses.open(request, response), request, invalid);
+            return;
+        }
+        writeMultiGet(JsonResponses.open(request, response), keys, request);
+    }
 
-        return info;
+    private String checkKeyCount(List<String> keys) {
+        if (keys.isEmpty()) {
+            return "No keys given";
+        }
+        if (keys.size() > maxMultiGetKeys) {
+            return keys.size() + " keys, at most " + maxMultiGetKeys + " per request";
+        }
+        return null;
     }
 
-    private Map<String, Object> getFromCache(String key) {
-        Map<String, Object> result = new HashMap<>();
-        result.put("operation", "GET");
-        result.put("key", key);
+    /**
+     * The "keys" array of a JSON object; other members are ignored.
+     */
+    private static List<String> parseKeys(String body) throws IOException {
+        List<String> keys = new ArrayList<>();
+        JsonReader reader = new JsonReader(new StringReader(body));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"keys".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String key = reader.nextString();
+                if (!key.isEmpty()) {
+                    keys.add(key);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return keys;
+    }
+
+    private static void writeMultiGetError(JsonWriter json, HttpServletRequest request, String error)
+            throws IOException {
+        json.beginObject();
+        json.name("operation").value("MGET");
+        json.name("success").value(false);
+        json.name("error").value(error);
+        JsonResponses.writeTraceContext(json, request);
+        json.endObject();
+        json.flush();
+    }
 
+    private void submitSetToCache(String key, String value, AsyncExchange exchange) throws IOException {
         try {
-            // Simulated Redis get
-            // String value = jedisCluster.get(key);
-            String value = "simulated_value_for_" + key;
-            result.put("value", value);
-            result.put("source", "redis-cluster");
-            result.put("success", true);
-        } catch (Exception e) {
-            result.put("success", false);
-            result.put("error", e.getMessage());
+            backendExecutor.execute(() -> {
+                try {
+                    setToCache(key, value, exchange);
+                } catch (Exception e) {
+                    failQuietly(exchange, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectBusy(exchange.response());
+            writeSetResult(exchange, key, value, "Backend queue full");
         }
+    }
+
+    /**
+     * Runs on the backend pool.
+     */
+    private void setToCache(String key, String value, AsyncExchange exchange) throws IOException {
+        if (!exchange.isOpen()) {
+            // Timed out while queued
+            return;
+        }
+        String error = null;
+
+        if (jedisCluster == null) {
+            error = "Redis cluster not available";
+        } else {
+            try {
+                jedisCluster.set(key, value);
+                if (!writeThrough) {
+                    // Our own keyspace event follows; dropping now keeps this node from serving the old value meanwhile
+                    dropFromTiers(key);
+                } else {
+                    if (snapshot != null) {
+                        snapshot.invalidate(key);
+                    }
+                    if (nearCache != null) {
+                        nearCache.write(key, value);
+                    }
+                    if (localCache != null) {
+                        localCache.write(key, value);
+                    }
+                }
+            } catch (Exception e) {
+                error = e.getMessage();
+                // The SET may still have been applied
+                dropFromTiers(key);
+            }
+        }
+        writeSetResult(exchange, key, value, error);
+    }
 
-        return result;
+    private void dropFromTiers(String key) {
+        if (snapshot != null) {
+            snapshot.invalidate(key);
+        }
+        if (nearCache != null) {
+            nearCache.invalidate(key);
+        }
+        if (localCache != null) {
+            if (writeThrough) {
+                localCache.invalidate(key);
+            } else {
+                // The peers get the keyspace event themselves
+                localCache.evict(key);
+            }
+        }
     }
 
-    private Map<String, Object> setToCache(String key, String value) {
-        Map<String, Object> result = new HashMap<>();
-        result.put("operation", "SET");
-        result.put("key", key);
-        result.put("value", value);
+    private void writeSetResult(AsyncExchange exchange, String key, String value, String error) throws IOException {
+        JsonWriter json = exchange.json();
+        json.beginObject();
+        json.name("operation").value("SET");
+        json.name("key").value(key);
+        json.name("value").value(value);
+        if (error == null) {
+            json.name("success").value(true);
+            json.name("destination").value("redis-cluster");
+        } else {
+            json.name("success").value(false);
+            json.name("error").value(error);
+        }
+        JsonResponses.writeTraceContext(json, exchange.request());
+        json.endObject();
+        json.flush();
+        exchange.send();
+    }
 
+    private static void failQuietly(AsyncExchange exchange, Exception e) {
         try {
-            // Simulated Redis set
-            // jedisCluster.set(key, value);
-            result.put("success", true);
-            result.put("destination", "redis-cluster");
-        } catch (Exception e) {
-            result.put("success", false);
-            result.put("error", e.getMessage());
+            exchange.fail(e);
+        } catch (IOException ignored) {
+            // The client is gone; the exchange completes on its own
         }
+    }
 
-        return result;
+    /**
+     * Hands the message to the shared producer and returns without waiting
+     * for broker acks (202). When the producer buffer is full the request is
+     * rejected with 503 right away instead of parking the Tomcat thread.
+     */
+    private void sendToKafka(AsyncExchange exchange, String message) throws IOException {
+        HttpServletResponse response = exchange.response();
+        String messageId = null;
+        String error = null;
+
+        if (kafkaProducer == null) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            error = "Kafka producer not available";
+        } else {
+            messageId = UUID.randomUUID().toString();
+            error = publish(messageId, message, response);
+        }
+
+        JsonWriter json = exchange.json();
+        json.beginObject();
+        json.name("operation").value("PUBLISH");
+        json.name("topic").value(EVENTS_TOPIC);
+        json.name("message").value(message);
+        if (messageId != null) {
+            json.name("messageId").value(messageId);
+        }
+        if (error == null) {
+            json.name("success").value(true);
+            json.name("broker").value("kafka-cluster");
+        } else {
+            json.name("success").value(false);
+            json.name("error").value(error);
+        }
+        JsonResponses.writeTraceContext(json, exchange.request());
+        json.endObject();
+        json.flush();
+        exchange.send();
     }
 
-    private Map<String, Object> sendToKafka(String message) {
-        Map<String, Object> result = new HashMap<>();
-        result.put("operation", "PUBLISH");
-        result.put("topic", "nginx-test-events");
-        result.put("message", message);
+    /**
+     * Sends one record and sets the response status.
+     * Returns null on success, otherwise the error message.
+     */
+    private String publish(String messageId, String message, HttpServletResponse response) {
+        if (!hasBufferCapacity(utf8Length(messageId) + utf8Length(message) + RECORD_OVERHEAD_BYTES)) {
+            MetricsServlet.incrementKafkaRejected();
+            rejectBusy(response);
+            return "Kafka send buffer full";
+        }
 
+        SendCallback callback = new SendCallback();
+        Future<RecordMetadata> future;
+        MetricsServlet.kafkaSendStarted();
         try {
-            String messageId = UUID.randomUUID().toString();
-            // Simulated Kafka send
-            // kafkaProducer.send(new ProducerRecord<>("nginx-test-events", messageId, message));
-            result.put("messageId", messageId);
-            result.put("success", true);
-            result.put("broker", "kafka-cluster");
-        } catch (Exception e) {
-            result.put("success", false);
-            result.put("error", e.getMessage());
+            future = kafkaProducer.send(new ProducerRecord<>(EVENTS_TOPIC, messageId, message), callback);
+        } catch (RuntimeException e) {
+            // Thrown without calling back: producer closed, interrupted, serialization failed
+            MetricsServlet.kafkaSendCompleted(false);
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return e.getMessage();
         }
 
-        return result;
+        // Errors raised inside send() (buffer or metadata wait exceeded
+        // max.block.ms) come back as an already-completed future
+        if (future.isDone()) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                boolean busy = e.getCause() instanceof TimeoutException;
+                if (callback.raisedBySend) {
+                    if (busy) {
+                        MetricsServlet.kafkaSendRejected();
+                    } else {
+                        MetricsServlet.kafkaSendCompleted(false);
+                    }
+                }
+                if (busy) {
+                    rejectBusy(response);
+                } else {
+                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+                return e.getCause().getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        return null;
     }
 
-    private String readRequestBody(HttpServletRequest request) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        try (BufferedReader reader = request.getReader()) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
+    /**
+     * Counts acks and failures reported by the producer's I/O thread. send()
+     * calls back on the calling thread for errors it raises itself, which
+     * publish() counts instead, so a send is never counted twice.
+     */
+    private static final class SendCallback implements Callback {
+        private final Thread sender = Thread.currentThread();
+        private volatile boolean raisedBySend;
+
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception exception) {
+            if (Thread.currentThread() == sender) {
+                raisedBySend = true;
+            } else {
+                MetricsServlet.kafkaSendCompleted(exception == null);
             }
         }
-        return sb.toString();
     }
 
-    private void addTraceContext(HttpServletRequest request, Map<String, Object> result) {
-        String traceId = request.getHeader("X-Trace-Id");
-        String spanId = request.getHeader("X-Span-Id");
-        String parentSpanId = request.getHeader("X-Parent-Span-Id");
+    /**
+     * Bytes the producer buffers for s, without encoding it.
+     */
+    private static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                // Three bytes, or four for a surrogate pair (two chars)
+                length += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
 
-        if (traceId != null) {
-            Map<String, String> trace = new HashMap<>();
-            trace.put("traceId", traceId);
-            if (spanId != null) trace.put("spanId", spanId);
-            if (parentSpanId != null) trace.put("parentSpanId", parentSpanId);
-            result.put("trace", trace);
+    private boolean hasBufferCapacity(int recordBytes) {
+        if (kafkaBufferAvailable == null) {
+            return true;
         }
+        Object available = kafkaBufferAvailable.metricValue();
+        return !(available instanceof Number) || ((Number) available).doubleValue() >= recordBytes;
+    }
+
+    private void rejectBusy(HttpServletResponse response) {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "1");
+    }
+
+    private void writeNotFound(HttpServletRequest request, HttpServletResponse response, String pathInfo)
+            throws IOException {
+        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+
+        JsonWriter json = JsonResponses.open(request, response);
+        json.beginObject();
+        json.name("error").value("Endpoint not found");
+        json.name("path").value(pathInfo);
+        JsonResponses.writeTraceContext(json, request);
+        json.endObject();
+        json.flush();
     }
 }
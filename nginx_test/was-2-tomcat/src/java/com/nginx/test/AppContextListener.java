@@ -0,0 +1,392 @@
+package com.nginx.test;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.nginx.test.factory.JedisClusterFactory;
+import com.nginx.test.factory.KafkaProducerFactory;
+import org.apache.catalina.tribes.Channel;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.ConnectionPool;
+import redis.clients.jedis.JedisCluster;
+
+/**
+ * Application lifecycle listener
+ * Creates the shared Redis and Kafka clients, warms them before the
+ * first request is served and closes everything on undeploy
+ */
+public class AppContextListener implements ServletContextListener {
+
+    public static final String REDIS_CLUSTER_ATTRIBUTE = "com.nginx.test.redis.cluster";
+    public static final String KAFKA_PRODUCER_ATTRIBUTE = "com.nginx.test.kafka.producer";
+    public static final String LOCAL_CACHE_ATTRIBUTE = "com.nginx.test.cache.local";
+    public static final String NEAR_CACHE_ATTRIBUTE = "com.nginx.test.cache.near";
+    public static final String CACHE_INVALIDATIONS_ATTRIBUTE = "com.nginx.test.cache.invalidations";
+    public static final String CACHE_SNAPSHOT_ATTRIBUTE = "com.nginx.test.cache.snapshot";
+    public static final String CACHE_CHECKPOINTER_ATTRIBUTE = "com.nginx.test.cache.checkpointer";
+
+    private static final String REDIS_JNDI_NAME = "java:comp/env/redis/cluster";
+    private static final String KAFKA_JNDI_NAME = "java:comp/env/kafka/producer";
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+
+        JedisCluster jedisCluster = lookupOrCreateCluster(context);
+        if (jedisCluster != null) {
+            warmUp(jedisCluster);
+            context.setAttribute(REDIS_CLUSTER_ATTRIBUTE, jedisCluster);
+        }
+
+        KafkaProducer<String, String> kafkaProducer = lookupOrCreateProducer(context);
+        if (kafkaProducer != null) {
+            warmUp(kafkaProducer);
+            context.setAttribute(KAFKA_PRODUCER_ATTRIBUTE, kafkaProducer);
+        }
+
+        LocalCache localCache = createLocalCache(context, usesKeyspaceInvalidations(context, jedisCluster));
+        if (localCache != null) {
+            context.setAttribute(LOCAL_CACHE_ATTRIBUTE, localCache);
+        }
+        NearCache nearCache = createNearCache(context);
+        if (nearCache != null) {
+            context.setAttribute(NEAR_CACHE_ATTRIBUTE, nearCache);
+        }
+        CacheSnapshot snapshot = null;
+        CacheCheckpointer checkpointer = null;
+        if ((localCache != null || nearCache != null)
+                && Boolean.parseBoolean(getConfig(context, "CACHE_SNAPSHOT", "false"))) {
+            Path file = snapshotFile(context);
+            snapshot = openSnapshot(context, file);
+            if (snapshot != null) {
+                context.setAttribute(CACHE_SNAPSHOT_ATTRIBUTE, snapshot);
+            }
+            checkpointer = new CacheCheckpointer(file, localCache, nearCache,
+                    Long.parseLong(getConfig(context, "CACHE_SNAPSHOT_INTERVAL_MS", "30000")));
+            checkpointer.start();
+            context.setAttribute(CACHE_CHECKPOINTER_ATTRIBUTE, checkpointer);
+        }
+        CacheInvalidations invalidations = startInvalidations(context, jedisCluster, localCache, nearCache, snapshot);
+        if (invalidations != null) {
+            context.setAttribute(CACHE_INVALIDATIONS_ATTRIBUTE, invalidations);
+        }
+
+        System.out.println("[AppContextListener] Initialized (redis=" +
+                (jedisCluster != null ? "connected" : "unavailable") +
+                ", kafka=" + (kafkaProducer != null ? "connected" : "unavailable") +
+                ", localCache=" + describe(localCache) +
+                ", nearCache=" + (nearCache != null ? (nearCache.getMaxBytes() >> 20) + "MB" : "off") +
+                ", snapshot=" + (snapshot != null ? snapshot.getEntryCount() + " entries"
+                        : checkpointer != null ? "none" : "off") + ")");
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void contextDestroyed(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+
+        CacheInvalidations invalidations = (CacheInvalidations) context.getAttribute(CACHE_INVALIDATIONS_ATTRIBUTE);
+        context.removeAttribute(CACHE_INVALIDATIONS_ATTRIBUTE);
+        if (invalidations != null) {
+            invalidations.stop();
+        }
+        context.removeAttribute(CACHE_SNAPSHOT_ATTRIBUTE);
+        // Before the caches go: the last checkpoint is the one the next start maps
+        CacheCheckpointer checkpointer = (CacheCheckpointer) context.getAttribute(CACHE_CHECKPOINTER_ATTRIBUTE);
+        context.removeAttribute(CACHE_CHECKPOINTER_ATTRIBUTE);
+        if (checkpointer != null) {
+            checkpointer.stop();
+        }
+        // Direct buffers are released by the GC; freeing them here could race late requests
+        context.removeAttribute(NEAR_CACHE_ATTRIBUTE);
+
+        LocalCache localCache = (LocalCache) context.getAttribute(LOCAL_CACHE_ATTRIBUTE);
+        context.removeAttribute(LOCAL_CACHE_ATTRIBUTE);
+        if (localCache != null && localCache.getReplicator() != null) {
+            localCache.getReplicator().stop();
+        }
+
+        // close() flushes records still sitting in open batches
+        KafkaProducer<String, String> kafkaProducer =
+                (KafkaProducer<String, String>) context.getAttribute(KAFKA_PRODUCER_ATTRIBUTE);
+        context.removeAttribute(KAFKA_PRODUCER_ATTRIBUTE);
+        if (kafkaProducer != null) {
+            try {
+                kafkaProducer.close(Duration.ofSeconds(5));
+            } catch (Exception e) {
+                System.err.println("[AppContextListener] Error closing Kafka producer: " + e.getMessage());
+            }
+        }
+
+        JedisCluster jedisCluster = (JedisCluster) context.getAttribute(REDIS_CLUSTER_ATTRIBUTE);
+        context.removeAttribute(REDIS_CLUSTER_ATTRIBUTE);
+        if (jedisCluster != null) {
+            try {
+                jedisCluster.close();
+            } catch (Exception e) {
+                System.err.println("[AppContextListener] Error closing Redis cluster: " + e.getMessage());
+            }
+        }
+
+        System.out.println("[AppContextListener] Destroyed");
+    }
+
+    /**
+     * Uses the container-managed resource from context.xml when present,
+     * otherwise builds a client from the REDIS_HOST context parameter.
+     */
+    private JedisCluster lookupOrCreateCluster(ServletContext context) {
+        try {
+            return (JedisCluster) new InitialContext().lookup(REDIS_JNDI_NAME);
+        } catch (NamingException e) {
+            System.out.println("[AppContextListener] " + REDIS_JNDI_NAME +
+                    " not bound, falling back to REDIS_HOST");
+        }
+
+        try {
+            Map<String, String> config = new HashMap<>();
+            config.put("host", getConfig(context, "REDIS_HOST", JedisClusterFactory.DEFAULT_HOSTS));
+            return JedisClusterFactory.createCluster(config);
+        } catch (Exception e) {
+            System.err.println("[AppContextListener] Redis cluster unavailable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Builds the in-process cache tier unless LOCAL_CACHE is false, and
+     * attaches it to the Tribes channel of the Cluster in server.xml when
+     * TribesChannelListener made one available. Not with keyspace
+     * notifications: every node hears about every change from Redis then,
+     * and PUTs do not write through, so there would be nothing to send.
+     */
+    private LocalCache createLocalCache(ServletContext context, boolean keyspaceInvalidations) {
+        if (!Boolean.parseBoolean(getConfig(context, "LOCAL_CACHE", "false"))) {
+            return null;
+        }
+        LocalCache localCache = new LocalCache(
+                Integer.parseInt(getConfig(context, "LOCAL_CACHE_SEGMENTS", "16")),
+                Long.parseLong(getConfig(context, "LOCAL_CACHE_MAX_ENTRIES", "10000")),
+                Long.parseLong(getConfig(context, "LOCAL_CACHE_MAX_BYTES", "67108864")),
+                Long.parseLong(getConfig(context, "LOCAL_CACHE_TTL_MS", "30000")));
+
+        if (keyspaceInvalidations) {
+            return localCache;
+        }
+        Channel channel = null;
+        try {
+            channel = TribesChannelListener.channel();
+        } catch (LinkageError e) {
+            // Not in $CATALINA_BASE/lib
+        }
+        if (channel != null) {
+            new PeerCacheReplicator(channel, localCache,
+                    Integer.parseInt(getConfig(context, "LOCAL_CACHE_REPLICATION_QUEUE", "10000")),
+                    Integer.parseInt(getConfig(context, "LOCAL_CACHE_REPLICATION_BATCH", "256"))).start();
+        }
+        return localCache;
+    }
+
+    /**
+     * Builds the off-heap near-cache unless NEAR_CACHE is false. Its
+     * budget has to fit under -XX:MaxDirectMemorySize.
+     */
+    private NearCache createNearCache(ServletContext context) {
+        if (!Boolean.parseBoolean(getConfig(context, "NEAR_CACHE", "false"))) {
+            return null;
+        }
+        try {
+            return new NearCache(
+                    Integer.parseInt(getConfig(context, "NEAR_CACHE_SEGMENTS", "64")),
+                    Long.parseLong(getConfig(context, "NEAR_CACHE_MAX_BYTES", "268435456")),
+                    Integer.parseInt(getConfig(context, "NEAR_CACHE_AVERAGE_ENTRY_BYTES", "256")),
+                    Long.parseLong(getConfig(context, "NEAR_CACHE_TTL_MS", "300000")));
+        } catch (OutOfMemoryError e) {
+            System.err.println("[AppContextListener] Near-cache disabled, direct memory: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * CACHE_SNAPSHOT_FILE, by default work/cache.snapshot under
+     * $CATALINA_BASE, which tomcat.service leaves writable.
+     */
+    private static Path snapshotFile(ServletContext context) {
+        String file = getConfig(context, "CACHE_SNAPSHOT_FILE", "");
+        if (!file.isEmpty()) {
+            return Paths.get(file);
+        }
+        String base = System.getProperty("catalina.base", System.getProperty("java.io.tmpdir"));
+        return Paths.get(base, "work", "cache.snapshot");
+    }
+
+    /**
+     * Maps the file the previous run left behind, if it is younger than
+     * CACHE_SNAPSHOT_MAX_AGE_MS. A file that cannot be used is logged and
+     * ignored; the next checkpoint replaces it.
+     */
+    private static CacheSnapshot openSnapshot(ServletContext context, Path file) {
+        try {
+            return CacheSnapshot.open(file,
+                    Long.parseLong(getConfig(context, "CACHE_SNAPSHOT_MAX_AGE_MS", "120000")));
+        } catch (IOException e) {
+            System.err.println("[AppContextListener] Ignoring cache snapshot " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Whether startInvalidations() will listen to Redis keyspace
+     * notifications, the default when there is a cluster.
+     */
+    private static boolean usesKeyspaceInvalidations(ServletContext context, JedisCluster jedisCluster) {
+        return jedisCluster != null && !"local".equals(getConfig(context, "NEAR_CACHE_INVALIDATION", "keyspace"));
+    }
+
+    /**
+     * Routes keys changed in Redis to both cache tiers and the snapshot:
+     * from keyspace notifications by default, or from LocalInvalidations
+     * when NEAR_CACHE_INVALIDATION is "local".
+     */
+    private CacheInvalidations startInvalidations(ServletContext context, JedisCluster jedisCluster,
+                                                  LocalCache localCache, NearCache nearCache,
+                                                  CacheSnapshot snapshot) {
+        if (localCache == null && nearCache == null) {
+            return null;
+        }
+        CacheInvalidations invalidations;
+        if (usesKeyspaceInvalidations(context, jedisCluster)) {
+            invalidations = new KeyspaceInvalidations(jedisCluster, 2000);
+        } else if ("local".equals(getConfig(context, "NEAR_CACHE_INVALIDATION", "keyspace"))) {
+            invalidations = new LocalInvalidations();
+        } else {
+            return null;
+        }
+        invalidations.start(key -> {
+            if (localCache != null) {
+                localCache.evict(key);
+            }
+            if (nearCache != null) {
+                nearCache.invalidate(key);
+            }
+            if (snapshot != null) {
+                snapshot.invalidate(key);
+            }
+        }, () -> {
+            if (localCache != null) {
+                localCache.clear();
+            }
+            if (nearCache != null) {
+                nearCache.clear();
+            }
+            if (snapshot != null) {
+                snapshot.clear();
+            }
+        });
+        return invalidations;
+    }
+
+    private static String describe(LocalCache localCache) {
+        if (localCache == null) {
+            return "off";
+        }
+        return localCache.getReplicator() != null ? "replicated" : "local-only";
+    }
+
+    /**
+     * Uses the container-managed producer from context.xml when present,
+     * otherwise builds one from the KAFKA_BROKERS context parameter.
+     */
+    @SuppressWarnings("unchecked")
+    private KafkaProducer<String, String> lookupOrCreateProducer(ServletContext context) {
+        try {
+            return (KafkaProducer<String, String>) new InitialContext().lookup(KAFKA_JNDI_NAME);
+        } catch (NamingException e) {
+            System.out.println("[AppContextListener] " + KAFKA_JNDI_NAME +
+                    " not bound, falling back to KAFKA_BROKERS");
+        }
+
+        try {
+            Map<String, String> config = new HashMap<>();
+            config.put("bootstrapServers",
+                    getConfig(context, "KAFKA_BROKERS", KafkaProducerFactory.DEFAULT_BOOTSTRAP_SERVERS));
+            return KafkaProducerFactory.createProducer(config);
+        } catch (Exception e) {
+            System.err.println("[AppContextListener] Kafka producer unavailable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Fetches topic metadata up front; otherwise the first send() on each
+     * request thread would block on it for up to max.block.ms.
+     */
+    private void warmUp(KafkaProducer<String, String> kafkaProducer) {
+        try {
+            kafkaProducer.partitionsFor(ApiServlet.EVENTS_TOPIC);
+        } catch (Exception e) {
+            System.err.println("[AppContextListener] Kafka metadata warm-up failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens minIdle connections on every node and round-trips a PING on one
+     * of them, so the first requests do not pay for TCP connects.
+     */
+    private void warmUp(JedisCluster jedisCluster) {
+        for (Map.Entry<String, ConnectionPool> node : jedisCluster.getClusterNodes().entrySet()) {
+            ConnectionPool pool = node.getValue();
+            try {
+                pool.preparePool();
+                try (Connection connection = pool.getResource()) {
+                    connection.ping();
+                }
+            } catch (Exception e) {
+                System.err.println("[AppContextListener] Warm-up failed for " + node.getKey() +
+                        ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads a context parameter, resolving the ${NAME:default} placeholders
+     * used in web.xml against environment variables and system properties.
+     */
+    static String getConfig(ServletContext context, String name, String defaultValue) {
+        return resolve(context.getInitParameter(name), defaultValue);
+    }
+
+    /**
+     * Resolves a ${NAME:default} placeholder the way getConfig() does; also
+     * used for filter init-params. Null stays defaultValue.
+     */
+    static String resolve(String value, String defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.startsWith("${") && value.endsWith("}")) {
+            String expression = value.substring(2, value.length() - 1);
+            int colon = expression.indexOf(':');
+            String key = colon >= 0 ? expression.substring(0, colon) : expression;
+            String resolved = System.getenv(key);
+            if (resolved == null) {
+                resolved = System.getProperty(key);
+            }
+            if (resolved == null) {
+                resolved = colon >= 0 ? expression.substring(colon + 1) : defaultValue;
+            }
+            return resolved;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,97 @@
+package com.nginx.test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes a CacheSnapshot of LocalCache and NearCache every interval on
+ * its own thread, and a last one on stop(), which is the one the next
+ * start of the webapp usually maps.
+ */
+public class CacheCheckpointer {
+
+    private final Path file;
+    private final LocalCache localCache;
+    private final NearCache nearCache;
+    private final long intervalMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cache-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile int lastEntries;
+    private volatile long lastBytes;
+    private volatile long lastDurationNanos;
+
+    public CacheCheckpointer(Path file, LocalCache localCache, NearCache nearCache, long intervalMs) {
+        this.file = file;
+        this.localCache = localCache;
+        this.nearCache = nearCache;
+        this.intervalMs = intervalMs;
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::checkpoint, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for a running checkpoint, then writes the final one on the
+     * calling thread.
+     */
+    public void stop() {
+        // Not shutdownNow(): an interrupt closes the FileChannel mid-write
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        checkpoint();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public int getLastEntryCount() {
+        return lastEntries;
+    }
+
+    public long getLastByteCount() {
+        return lastBytes;
+    }
+
+    public long getLastDurationNanos() {
+        return lastDurationNanos;
+    }
+
+    private void checkpoint() {
+        long start = System.nanoTime();
+        try {
+            lastEntries = CacheSnapshot.write(file, localCache, nearCache);
+            lastBytes = Files.size(file);
+            lastDurationNanos = System.nanoTime() - start;
+            written.increment();
+        } catch (IOException | RuntimeException e) {
+            failed.increment();
+            System.err.println("[CacheCheckpointer] Failed to write " + file + ": " + e);
+        }
+    }
+}
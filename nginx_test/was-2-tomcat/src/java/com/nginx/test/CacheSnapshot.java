@@ -0,0 +1,401 @@
+package com.nginx.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Warm-start file for LocalCache and NearCache
+ *
+ * CacheCheckpointer writes the live entries of both tiers to a file every
+ * interval and once more on undeploy. The next start maps that file and
+ * ApiServlet serves from it ("source": "snapshot") while the tiers fill
+ * up again, so a restart does not send every first read to Redis.
+ * Nothing is read up front: open() checks the header, and get() probes
+ * the file's own hash index, touching only the pages of that entry.
+ *
+ * A file is only used for maxAgeMs after it was written: keyspace
+ * notifications sent while the webapp was down are lost, so the age
+ * (plus the TTL of the tier a value is filled into) bounds how stale a
+ * served value can be. Within that window an entry is served until its
+ * own expiry. Every entry carries a CRC32C of its
+ * lengths, expiry, key and value, checked on each read; one that does not
+ * match is skipped and counted. The mapping is private, so invalidate()
+ * marks the entry gone in memory without touching the file.
+ *
+ * Layout: a 64 byte header (MAGIC, VERSION, written at, slot count, entry
+ * count, data length, CRC32C of the fields before it), the index of slot
+ * count (key hash, entry offset + 1) pairs, then the entries: CRC32C, key
+ * length, value length, expiry (epoch ms), then the UTF-8 key and value.
+ * An offset of -1 marks an entry dropped since the file was mapped.
+ */
+public class CacheSnapshot {
+
+    private static final int MAGIC = 0x4E54_5331; // "NTS1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int HEADER_CHECKED_BYTES = 28;
+    private static final int SLOT_BYTES = 8;
+    private static final int ENTRY_HEADER_BYTES = 20;
+    private static final int DROPPED = -1;
+    // Keeps the index under 512MB and every position an int
+    private static final int MAX_SLOTS = 1 << 26;
+
+    private final long deadline;
+    private final int slotMask;
+    private final int dataOffset;
+    private final int entryCount;
+    // Null once the file is too old to serve
+    private volatile ByteBuffer mapped;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder corrupt = new LongAdder();
+
+    private CacheSnapshot(ByteBuffer mapped, long deadline) {
+        this.mapped = mapped;
+        this.deadline = deadline;
+        this.slotMask = mapped.getInt(16) - 1;
+        this.dataOffset = HEADER_BYTES + mapped.getInt(16) * SLOT_BYTES;
+        this.entryCount = mapped.getInt(20);
+    }
+
+    /**
+     * Maps file, or returns null when there is none or it was written more
+     * than maxAgeMs ago.
+     *
+     * @throws IOException when the file cannot be read or is not a snapshot
+     */
+    public static CacheSnapshot open(Path file, long maxAgeMs) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        MappedByteBuffer mapped;
+        // PRIVATE needs a writable channel; writes stay in this process
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected size " + size);
+            }
+            mapped = channel.map(FileChannel.MapMode.PRIVATE, 0, size);
+        }
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            throw new IOException("Not a version " + VERSION + " cache snapshot");
+        }
+        if (mapped.getInt(HEADER_CHECKED_BYTES) != checksum(mapped, 0, HEADER_CHECKED_BYTES)) {
+            throw new IOException("Header checksum mismatch");
+        }
+        int slots = mapped.getInt(16);
+        if (Integer.bitCount(slots) != 1 || slots > MAX_SLOTS
+                || HEADER_BYTES + (long) slots * SLOT_BYTES + mapped.getInt(24) > mapped.capacity()) {
+            throw new IOException("Truncated: " + slots + " slots, " + mapped.getInt(24) + " data bytes in "
+                    + mapped.capacity());
+        }
+        long deadline = mapped.getLong(8) + maxAgeMs;
+        if (deadline <= System.currentTimeMillis()) {
+            return null;
+        }
+        return new CacheSnapshot(mapped, deadline);
+    }
+
+    /**
+     * The value stored for key, or null when it is not in the file, has
+     * expired, fails its checksum or the whole file is past maxAgeMs.
+     */
+    public String get(String key) {
+        ByteBuffer buffer = buffer();
+        if (buffer == null) {
+            return null;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int slot = find(buffer, keyBytes, NearCache.hash(key));
+        int offset = slot >= 0 ? buffer.getInt(slot + 4) : 0;
+        if (offset <= 0) {
+            // Not there, or invalidated since find()
+            misses.increment();
+            return null;
+        }
+        int position = dataOffset + offset - 1;
+        int valueLength = buffer.getInt(position + 8);
+        if (buffer.getLong(position + 12) <= System.currentTimeMillis()) {
+            buffer.putInt(slot + 4, DROPPED);
+            expirations.increment();
+            misses.increment();
+            return null;
+        }
+        int size = ENTRY_HEADER_BYTES + keyBytes.length + valueLength;
+        if (buffer.getInt(position) != checksum(buffer, position + 4, size - 4)) {
+            buffer.putInt(slot + 4, DROPPED);
+            corrupt.increment();
+            misses.increment();
+            return null;
+        }
+        byte[] value = new byte[valueLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + ENTRY_HEADER_BYTES + keyBytes.length);
+        view.get(value);
+        hits.increment();
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stops serving key, e.g. after it was written or reported changed.
+     */
+    public void invalidate(String key) {
+        ByteBuffer buffer = buffer();
+        if (buffer == null) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int slot = find(buffer, keyBytes, NearCache.hash(key));
+        if (slot >= 0) {
+            buffer.putInt(slot + 4, DROPPED);
+        }
+    }
+
+    /**
+     * Stops serving anything, e.g. when invalidations may have been missed.
+     */
+    public void clear() {
+        mapped = null;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getExpiredCount() {
+        return expirations.sum();
+    }
+
+    public long getCorruptCount() {
+        return corrupt.sum();
+    }
+
+    /**
+     * Entries the file was written with, or 0 once it is no longer served.
+     */
+    public int getEntryCount() {
+        return mapped != null ? entryCount : 0;
+    }
+
+    private ByteBuffer buffer() {
+        ByteBuffer buffer = mapped;
+        if (buffer != null && deadline <= System.currentTimeMillis()) {
+            // Unmapped by the GC once the last reader lets go
+            mapped = null;
+            return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * Byte position of the index slot holding key, or -1. Lengths are
+     * checked against the mapping before the key is compared; the
+     * checksum covers the rest.
+     */
+    private int find(ByteBuffer buffer, byte[] key, int hash) {
+        int home = hash & slotMask;
+        for (int i = 0; i <= slotMask; i++) {
+            int slot = HEADER_BYTES + ((home + i) & slotMask) * SLOT_BYTES;
+            int offset = buffer.getInt(slot + 4);
+            if (offset == 0) {
+                return -1;
+            }
+            if (offset == DROPPED || buffer.getInt(slot) != hash) {
+                continue;
+            }
+            long position = (long) dataOffset + offset - 1;
+            if (position < dataOffset || position + ENTRY_HEADER_BYTES > buffer.capacity()) {
+                continue;
+            }
+            int keyLength = buffer.getInt((int) position + 4);
+            int valueLength = buffer.getInt((int) position + 8);
+            if (keyLength != key.length || valueLength < 0
+                    || position + ENTRY_HEADER_BYTES + keyLength + valueLength > buffer.capacity()) {
+                continue;
+            }
+            if (bytesEqual(buffer, (int) position + ENTRY_HEADER_BYTES, key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean bytesEqual(ByteBuffer buffer, int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int checksum(ByteBuffer buffer, int position, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(position + length).position(position);
+        CRC32C crc = new CRC32C();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the live entries of both tiers to file, LocalCache first: it
+     * holds the newest values, so a key in both keeps LocalCache's. The
+     * file is written under a temporary name, forced to disk and then
+     * moved into place, so a reader sees the old file or the new one.
+     * Entries that arrive while writing and no longer fit are left out.
+     *
+     * @return the number of entries written
+     */
+    static int write(Path file, LocalCache localCache, NearCache nearCache) throws IOException {
+        long localEntries = localCache != null ? localCache.getEntryCount() : 0;
+        long nearEntries = nearCache != null ? nearCache.getEntryCount() : 0;
+        int slots = Integer.highestOneBit(
+                (int) Math.min(MAX_SLOTS, Math.max(16, (localEntries + nearEntries) * 2)) * 2 - 1);
+        // LocalCache weighs 2 bytes per char plus overhead, UTF-8 takes at most 3;
+        // NearCache entries have the same header size as ours
+        long dataBytes = (localCache != null ? localCache.getByteCount() * 3 / 2 : 0)
+                + (nearCache != null ? nearCache.getByteCount() : 0);
+        long size = Math.min(Integer.MAX_VALUE, HEADER_BYTES + (long) slots * SLOT_BYTES + dataBytes);
+
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = parent.resolve(file.getFileName() + ".tmp");
+        Writer writer;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            writer = new Writer(channel.map(FileChannel.MapMode.READ_WRITE, 0, size), slots);
+            if (localCache != null) {
+                localCache.forEach(writer::add);
+            }
+            if (nearCache != null) {
+                nearCache.forEach(writer::add);
+            }
+            writer.finish();
+            channel.truncate(writer.dataOffset + writer.tail);
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return writer.entries;
+    }
+
+    /**
+     * Appends entries at tail and indexes them as it goes; the header is
+     * written last.
+     */
+    private static final class Writer {
+        private final MappedByteBuffer out;
+        private final int slotMask;
+        private final int maxEntries;
+        private final int dataOffset;
+        private int tail;
+        private int entries;
+
+        Writer(MappedByteBuffer out, int slots) {
+            this.out = out;
+            this.slotMask = slots - 1;
+            this.maxEntries = slots / 4 * 3;
+            this.dataOffset = HEADER_BYTES + slots * SLOT_BYTES;
+        }
+
+        boolean add(String key, String value, long expiresAt) {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            int position = reserve(keyBytes.length, valueBytes.length);
+            if (position < 0) {
+                return false;
+            }
+            out.position(position + ENTRY_HEADER_BYTES);
+            out.put(keyBytes);
+            out.put(valueBytes);
+            commit(position, keyBytes.length, valueBytes.length, expiresAt, NearCache.hash(key));
+            return true;
+        }
+
+        boolean add(ByteBuffer source, int keyPosition, int keyLength, int valueLength, long expiresAt, int hash) {
+            int position = reserve(keyLength, valueLength);
+            if (position < 0) {
+                return false;
+            }
+            source.limit(keyPosition + keyLength + valueLength).position(keyPosition);
+            out.position(position + ENTRY_HEADER_BYTES);
+            out.put(source);
+            commit(position, keyLength, valueLength, expiresAt, hash);
+            return true;
+        }
+
+        /**
+         * Where the next entry goes, or -1 when the file or index is full.
+         */
+        private int reserve(int keyLength, int valueLength) {
+            long end = (long) dataOffset + tail + ENTRY_HEADER_BYTES + keyLength + valueLength;
+            return entries < maxEntries && end <= out.capacity() ? dataOffset + tail : -1;
+        }
+
+        /**
+         * Indexes the entry just copied to position unless an entry with
+         * the same key is already indexed, in which case the next entry
+         * overwrites it.
+         */
+        private void commit(int position, int keyLength, int valueLength, long expiresAt, int hash) {
+            int home = hash & slotMask;
+            int slot;
+            for (int i = 0; ; i++) {
+                slot = HEADER_BYTES + ((home + i) & slotMask) * SLOT_BYTES;
+                int offset = out.getInt(slot + 4);
+                if (offset == 0) {
+                    break;
+                }
+                if (out.getInt(slot) == hash && keyEquals(dataOffset + offset - 1, position, keyLength)) {
+                    return;
+                }
+            }
+            out.putInt(position + 4, keyLength);
+            out.putInt(position + 8, valueLength);
+            out.putLong(position + 12, expiresAt);
+            int size = ENTRY_HEADER_BYTES + keyLength + valueLength;
+            out.putInt(position, checksum(out, position + 4, size - 4));
+            out.putInt(slot, hash);
+            out.putInt(slot + 4, position - dataOffset + 1);
+            tail += size;
+            entries++;
+        }
+
+        private boolean keyEquals(int indexed, int position, int keyLength) {
+            if (out.getInt(indexed + 4) != keyLength) {
+                return false;
+            }
+            for (int i = 0; i < keyLength; i++) {
+                if (out.get(indexed + ENTRY_HEADER_BYTES + i) != out.get(position + ENTRY_HEADER_BYTES + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void finish() {
+            out.putInt(0, MAGIC);
+            out.putInt(4, VERSION);
+            out.putLong(8, System.currentTimeMillis());
+            out.putInt(16, slotMask + 1);
+            out.putInt(20, entries);
+            out.putInt(24, tail);
+            out.putInt(HEADER_CHECKED_BYTES, checksum(out, 0, HEADER_CHECKED_BYTES));
+            out.force();
+        }
+    }
+}
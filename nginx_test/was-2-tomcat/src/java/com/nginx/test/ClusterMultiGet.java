@@ -0,0 +1,91 @@
+package com.nginx.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.ClusterPipeline;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+/**
+ * Reads many keys from the cluster in one round trip per node
+ *
+ * Keys are grouped by hash slot and each group is read with one MGET,
+ * which the cluster accepts because all its keys live in the same slot.
+ * ClusterPipeline queues every MGET on the connection of the node owning
+ * the slot and sync() flushes all nodes at once, reading their replies
+ * in parallel. A group whose MGET fails (e.g. MOVED while the cluster is
+ * resharding) only fails its own keys.
+ */
+final class ClusterMultiGet {
+
+    private final String[] values;
+    private final String[] errors;
+
+    private ClusterMultiGet(int size) {
+        this.values = new String[size];
+        this.errors = new String[size];
+    }
+
+    /**
+     * Values (null where the key does not exist) and errors, in the order
+     * of keys.
+     */
+    static ClusterMultiGet fetch(JedisCluster cluster, List<String> keys) {
+        ClusterMultiGet result = new ClusterMultiGet(keys.size());
+        if (keys.isEmpty()) {
+            return result;
+        }
+        Map<Integer, List<Integer>> bySlot = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            bySlot.computeIfAbsent(JedisClusterCRC16.getSlot(keys.get(i)), slot -> new ArrayList<>()).add(i);
+        }
+
+        List<List<Integer>> groups = new ArrayList<>(bySlot.values());
+        List<Response<List<String>>> responses = new ArrayList<>(groups.size());
+        try (ClusterPipeline pipeline = cluster.pipelined()) {
+            for (List<Integer> group : groups) {
+                String[] slotKeys = new String[group.size()];
+                for (int i = 0; i < slotKeys.length; i++) {
+                    slotKeys[i] = keys.get(group.get(i));
+                }
+                responses.add(pipeline.mget(slotKeys));
+            }
+            pipeline.sync();
+        } catch (JedisException e) {
+            Arrays.fill(result.errors, e.getMessage());
+            return result;
+        }
+
+        for (int g = 0; g < groups.size(); g++) {
+            List<Integer> group = groups.get(g);
+            try {
+                List<String> slotValues = responses.get(g).get();
+                for (int i = 0; i < group.size(); i++) {
+                    result.values[group.get(i)] = slotValues.get(i);
+                }
+            } catch (JedisException e) {
+                for (int index : group) {
+                    result.errors[index] = e.getMessage();
+                }
+            }
+        }
+        return result;
+    }
+
+    String value(int index) {
+        return values[index];
+    }
+
+    /**
+     * Null unless reading this key failed.
+     */
+    String error(int index) {
+        return errors[index];
+    }
+}
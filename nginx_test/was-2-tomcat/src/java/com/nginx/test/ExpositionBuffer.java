@@ -0,0 +1,219 @@
+package com.nginx.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Reusable byte buffer for rendering the /metrics exposition
+ *
+ * Static text (HELP/TYPE lines, metric names with their label sets) is
+ * pre-encoded once and copied in; only the numbers are formatted per
+ * scrape, straight into bytes. Buffers are pooled together with their
+ * Deflater so gzip responses do not allocate a new one each time.
+ */
+final class ExpositionBuffer {
+
+    private static final int MAX_POOLED = 4;
+    private static final ConcurrentLinkedQueue<ExpositionBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+    // Magic, CM=deflate, no flags, no mtime, no extra flags, OS unknown
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L,
+            10_000_000L, 100_000_000L, 1_000_000_000L
+    };
+
+    private byte[] bytes = new byte[32 * 1024];
+    private int length;
+
+    private final byte[] digits = new byte[20];
+    private long[] counts = new long[16];
+    private final byte[] compressed = new byte[8 * 1024];
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final CRC32 crc = new CRC32();
+
+    private ExpositionBuffer() {
+    }
+
+    static ExpositionBuffer acquire() {
+        ExpositionBuffer buffer = POOL.poll();
+        if (buffer == null) {
+            buffer = new ExpositionBuffer();
+        }
+        buffer.length = 0;
+        return buffer;
+    }
+
+    static void release(ExpositionBuffer buffer) {
+        if (POOL.size() < MAX_POOLED) {
+            POOL.offer(buffer);
+        } else {
+            buffer.deflater.end();
+        }
+    }
+
+    /**
+     * Frees the pooled Deflaters; called when the servlet is destroyed.
+     */
+    static void clearPool() {
+        ExpositionBuffer buffer;
+        while ((buffer = POOL.poll()) != null) {
+            buffer.deflater.end();
+        }
+    }
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Scratch array for cumulative histogram counts.
+     */
+    long[] counts(int size) {
+        if (counts.length < size) {
+            counts = new long[size];
+        }
+        return counts;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void write(byte[] data) {
+        ensureCapacity(data.length);
+        System.arraycopy(data, 0, bytes, length, data.length);
+        length += data.length;
+    }
+
+    void write(char c) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) c;
+    }
+
+    /**
+     * For the rare value that is not pre-encoded (e.g. huge doubles).
+     */
+    void writeAscii(String text) {
+        write(ascii(text));
+    }
+
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int position = digits.length;
+        do {
+            digits[--position] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        int count = digits.length - position;
+        ensureCapacity(count);
+        System.arraycopy(digits, position, bytes, length, count);
+        length += count;
+    }
+
+    /**
+     * Writes unscaled / 10^scale without going through double, e.g.
+     * (nanos, 9) for seconds. Trailing zeros of the fraction are dropped.
+     */
+    void writeDecimal(long unscaled, int scale) {
+        if (unscaled < 0) {
+            write('-');
+            unscaled = -unscaled;
+        }
+        long divisor = POWERS_OF_TEN[scale];
+        writeLong(unscaled / divisor);
+        long fraction = unscaled % divisor;
+        if (fraction == 0) {
+            return;
+        }
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            scale--;
+        }
+        write('.');
+        for (int i = scale - 1; i >= 0; i--) {
+            write((char) ('0' + (fraction / POWERS_OF_TEN[i]) % 10));
+        }
+    }
+
+    void writeDouble(double value) {
+        if (Double.isNaN(value)) {
+            writeAscii("NaN");
+        } else if (Double.isInfinite(value)) {
+            writeAscii(value > 0 ? "+Inf" : "-Inf");
+        } else if (Math.abs(value) < 9e12) {
+            writeDecimal(Math.round(value * 1e6), 6);
+        } else {
+            writeAscii(Double.toString(value));
+        }
+    }
+
+    /** Writes "prefix value\n" where prefix already ends with a space. */
+    void sample(byte[] prefix, long value) {
+        write(prefix);
+        writeLong(value);
+        write('\n');
+    }
+
+    void sampleDecimal(byte[] prefix, long unscaled, int scale) {
+        write(prefix);
+        writeDecimal(unscaled, scale);
+        write('\n');
+    }
+
+    void sampleDouble(byte[] prefix, double value) {
+        write(prefix);
+        writeDouble(value);
+        write('\n');
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * Writes the buffer as a single gzip member using the pooled Deflater.
+     */
+    void writeGzipTo(OutputStream out) throws IOException {
+        crc.reset();
+        crc.update(bytes, 0, length);
+        deflater.reset();
+        deflater.setInput(bytes, 0, length);
+        deflater.finish();
+
+        out.write(GZIP_HEADER);
+        while (!deflater.finished()) {
+            int count = deflater.deflate(compressed);
+            out.write(compressed, 0, count);
+        }
+        writeIntLittleEndian(out, (int) crc.getValue());
+        writeIntLittleEndian(out, length);
+    }
+
+    private static void writeIntLittleEndian(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            byte[] grown = new byte[Math.max(bytes.length * 2, length + extra)];
+            System.arraycopy(bytes, 0, grown, 0, length);
+            bytes = grown;
+        }
+    }
+}
@@ -1,111 +1,157 @@
 package com.nginx.test;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.lang.management.RuntimeMXBean;
-import java.net.InetAddress;
-import java.time.Instant;
-
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import java.util.HashMap;
-import java.util.Map;
-
+import java.nio.charset.StandardCharsets;
+
+import com.nginx.test.factory.KafkaProducerFactory;
+import redis.clients.jedis.JedisCluster;
+
+/**
+ * Health endpoints
+ *
+ * /health        dependency status; checks run in the background (see
+ *                HealthMonitor) and a request only copies the latest
+ *                pre-serialized snapshot, so it never waits on Redis, Kafka
+ *                or Jaeger
+ * /health/ready  503 while the node is overloaded (see LoadReadiness)
+ * /health/live   constant 200 as long as the container answers at all
+ */
 public class HealthCheckServlet extends HttpServlet {
 
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final byte[] AGE_FIELD = ",\"ageMs\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRETTY_AGE_FIELD = ",\n  \"ageMs\": ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TRACE_ID_FIELD = ",\"traceId\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRETTY_TRACE_ID_FIELD = ",\n  \"traceId\": \"".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] LIVE_BODY = "{\"status\":\"UP\"}".getBytes(StandardCharsets.UTF_8);
+
+    private HealthMonitor monitor;
+    private LoadReadiness readiness;
+    private String retryAfterSeconds;
+
+    @Override
+    public void init() throws ServletException {
+        ServletContext context = getServletContext();
+        monitor = new HealthMonitor(
+                (JedisCluster) context.getAttribute(AppContextListener.REDIS_CLUSTER_ATTRIBUTE),
+                AppContextListener.getConfig(context, "KAFKA_BROKERS", KafkaProducerFactory.DEFAULT_BOOTSTRAP_SERVERS),
+                AppContextListener.getConfig(context, "JAEGER_ENDPOINT", SpanExporter.DEFAULT_ENDPOINT),
+                longParam("redisTimeoutMs", 500),
+                longParam("kafkaTimeoutMs", 1000),
+                longParam("jaegerTimeoutMs", 1000));
+        long refreshIntervalMs = longParam("refreshIntervalMs", 5000);
+        monitor.start(refreshIntervalMs);
+
+        long holdMs = longParam("readyHoldMs", 10000);
+        readiness = new LoadReadiness(
+                doubleParam("readyBusyThreadsRatio", 0.9),
+                () -> (ConcurrencyLimiter) getServletContext()
+                        .getAttribute(ConcurrencyLimitFilter.CONCURRENCY_LIMITER_ATTRIBUTE),
+                longParam("readyLatencySloMs", 500),
+                (int) longParam("readyLatencyWindowSeconds", 30),
+                longParam("readyMinLatencySamples", 100),
+                doubleParam("readyGcTimeFraction", 0.25),
+                (int) longParam("readyGcWindowSeconds", 10),
+                holdMs,
+                longParam("readyIntervalMs", 1000));
+        retryAfterSeconds = Long.toString(Math.max(1, (holdMs + 999) / 1000));
+
+        System.out.println("[HealthCheckServlet] Refreshing dependency health every " + refreshIntervalMs + "ms");
+    }
+
+    @Override
+    public void destroy() {
+        if (monitor != null) {
+            monitor.stop();
+        }
+        if (readiness != null) {
+            readiness.stop();
+        }
+    }
+
+    private long longParam(String name, long defaultValue) {
+        String value = getInitParameter(name);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    private double doubleParam(String name, double defaultValue) {
+        String value = getInitParameter(name);
+        return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+    }
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
+        String pathInfo = request.getPathInfo();
+        if ("/live".equals(pathInfo)) {
+            writeBody(response, HttpServletResponse.SC_OK, LIVE_BODY);
+            return;
+        }
+        if ("/ready".equals(pathInfo)) {
+            LoadReadiness.Verdict verdict = readiness.current();
+            if (!verdict.ready) {
+                response.setHeader("Retry-After", retryAfterSeconds);
+            }
+            writeBody(response, verdict.ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    verdict.body);
+            return;
+        }
+        if (pathInfo != null && !"/".equals(pathInfo)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        HealthMonitor.Snapshot snapshot = monitor.current();
+        boolean pretty = JsonResponses.isPretty(request);
 
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
-
-        Map<String, Object> health = new HashMap<>();
-        health.put("status", "UP");
-        health.put("service", "was-1-tomcat");
-        health.put("type", "legacy-onpremise");
-        health.put("timestamp", Instant.now().toString());
-
-        try {
-            health.put("hostname", InetAddress.getLocalHost().getHostName());
-            health.put("ip", InetAddress.getLocalHost().getHostAddress());
-        } catch (Exception e) {
-            health.put("hostname", "unknown");
-            health.put("ip", "unknown");
-        }
-
-        // JVM Metrics
-        RuntimeMXBean runtimeMXBean = ManagementFactory.getRuntimeMXBean();
-        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
-
-        Map<String, Object> jvm = new HashMap<>();
-        jvm.put("uptime_ms", runtimeMXBean.getUptime());
-        jvm.put("heap_used_mb", memoryMXBean.getHeapMemoryUsage().getUsed() / (1024 * 1024));
-        jvm.put("heap_max_mb", memoryMXBean.getHeapMemoryUsage().getMax() / (1024 * 1024));
-        jvm.put("non_heap_used_mb", memoryMXBean.getNonHeapMemoryUsage().getUsed() / (1024 * 1024));
-        jvm.put("available_processors", Runtime.getRuntime().availableProcessors());
-        health.put("jvm", jvm);
-
-        // Dependencies health
-        Map<String, Object> dependencies = new HashMap<>();
-        dependencies.put("redis", checkRedisHealth());
-        dependencies.put("kafka", checkKafkaHealth());
-        dependencies.put("jaeger", checkJaegerHealth());
-        health.put("dependencies", dependencies);
+        ServletOutputStream out = response.getOutputStream();
+        out.write(pretty ? snapshot.pretty : snapshot.compact);
+        out.write(pretty ? PRETTY_AGE_FIELD : AGE_FIELD);
+        out.print(snapshot.ageMillis());
 
         // OpenTelemetry trace context
         String traceId = request.getHeader("X-Trace-Id");
-        if (traceId != null) {
-            health.put("traceId", traceId);
+        if (traceId != null && isPlainToken(traceId)) {
+            out.write(pretty ? PRETTY_TRACE_ID_FIELD : TRACE_ID_FIELD);
+            out.print(traceId);
+            out.write('"');
         }
-
-        PrintWriter out = response.getWriter();
-        out.print(gson.toJson(health));
-        out.flush();
-    }
-
-    private Map<String, Object> checkRedisHealth() {
-        Map<String, Object> status = new HashMap<>();
-        try {
-            // Simulated Redis health check
-            status.put("status", "UP");
-            status.put("cluster", "redis-cluster:6379");
-        } catch (Exception e) {
-            status.put("status", "DOWN");
-            status.put("error", e.getMessage());
+        out.write(pretty ? '\n' : '}');
+        if (pretty) {
+            out.write('}');
         }
-        return status;
     }
 
-    private Map<String, Object> checkKafkaHealth() {
-        Map<String, Object> status = new HashMap<>();
-        try {
-            status.put("status", "UP");
-            status.put("brokers", "kafka-1:9092,kafka-2:9092,kafka-3:9092");
-        } catch (Exception e) {
-            status.put("status", "DOWN");
-            status.put("error", e.getMessage());
-        }
-        return status;
+    private static void writeBody(HttpServletResponse response, int status, byte[] body) throws IOException {
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
     }
 
-    private Map<String, Object> checkJaegerHealth() {
-        Map<String, Object> status = new HashMap<>();
-        try {
-            status.put("status", "UP");
-            status.put("endpoint", "http://jaeger:14268/api/traces");
-        } catch (Exception e) {
-            status.put("status", "DOWN");
-            status.put("error", e.getMessage());
+    /**
+     * The header is written without JSON escaping, so only ids made of
+     * letters, digits and dashes are echoed.
+     */
+    private static boolean isPlainToken(String value) {
+        if (value.isEmpty() || value.length() > 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '-')) {
+                return false;
+            }
         }
-        return status;
+        return true;
     }
 }
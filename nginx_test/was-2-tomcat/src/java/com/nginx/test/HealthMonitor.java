@@ -0,0 +1,363 @@
+package com.nginx.test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.DescribeClusterOptions;
+import org.apache.kafka.common.Node;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisClientConfig;
+import redis.clients.jedis.JedisCluster;
+
+/**
+ * Background health checker behind HealthCheckServlet
+ *
+ * A single scheduler thread refreshes the snapshot every interval. The
+ * Redis, Kafka and Jaeger checks run in parallel on their own pool, each
+ * bounded by its own timeout; a check that does not answer in time is
+ * reported DOWN and does not delay the others. The result is serialized
+ * once into JSON bytes, so serving /health is a volatile read and a copy.
+ */
+public class HealthMonitor {
+
+    private static final String SERVICE_NAME = "was-1-tomcat";
+
+    private final JedisCluster jedisCluster;
+    private final Admin kafkaAdmin;
+    private final String kafkaBootstrapServers;
+    private final URI jaegerEndpoint;
+    private final HttpClient httpClient;
+    private final long redisTimeoutMs;
+    private final long kafkaTimeoutMs;
+    private final long jaegerTimeoutMs;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            daemonThreads("health-refresh"));
+    private final ExecutorService checkers = Executors.newFixedThreadPool(3, daemonThreads("health-check"));
+
+    private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+    private final RuntimeMXBean runtimeMXBean = ManagementFactory.getRuntimeMXBean();
+
+    // Resolved on the refresh thread; getLocalHost() may go to DNS
+    private String hostname;
+    private String ip;
+
+    private volatile Snapshot snapshot;
+
+    public HealthMonitor(JedisCluster jedisCluster, String kafkaBootstrapServers, String jaegerEndpoint,
+                         long redisTimeoutMs, long kafkaTimeoutMs, long jaegerTimeoutMs) {
+        this.jedisCluster = jedisCluster;
+        this.kafkaBootstrapServers = kafkaBootstrapServers;
+        this.kafkaAdmin = createAdmin(kafkaBootstrapServers, kafkaTimeoutMs);
+        this.jaegerEndpoint = URI.create(jaegerEndpoint);
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(jaegerTimeoutMs))
+                .build();
+        this.redisTimeoutMs = redisTimeoutMs;
+        this.kafkaTimeoutMs = kafkaTimeoutMs;
+        this.jaegerTimeoutMs = jaegerTimeoutMs;
+
+        DependencyStatus unknown = new DependencyStatus("UNKNOWN", 0, "not checked yet");
+        this.snapshot = serialize(unknown, unknown, unknown);
+    }
+
+    private static Admin createAdmin(String bootstrapServers, long timeoutMs) {
+        try {
+            Properties props = new Properties();
+            props.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+            props.put(AdminClientConfig.CLIENT_ID_CONFIG, "was-tomcat-health");
+            props.put(AdminClientConfig.REQUEST_TIMEOUT_MS_CONFIG, (int) timeoutMs);
+            props.put(AdminClientConfig.DEFAULT_API_TIMEOUT_MS_CONFIG, (int) timeoutMs);
+            return Admin.create(props);
+        } catch (Exception e) {
+            System.err.println("[HealthMonitor] Kafka admin client unavailable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void start(long refreshIntervalMs) {
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        checkers.shutdownNow();
+        if (kafkaAdmin != null) {
+            kafkaAdmin.close(Duration.ofSeconds(1));
+        }
+    }
+
+    public Snapshot current() {
+        return snapshot;
+    }
+
+    private void refresh() {
+        try {
+            if (hostname == null) {
+                resolveHost();
+            }
+
+            long start = System.nanoTime();
+            Future<DependencyStatus> redis = checkers.submit(timed(this::checkRedis));
+            Future<DependencyStatus> kafka = checkers.submit(timed(this::checkKafka));
+            Future<DependencyStatus> jaeger = checkers.submit(timed(this::checkJaeger));
+
+            // Each deadline counts from the common start, so the waits overlap
+            snapshot = serialize(
+                    await(redis, start, redisTimeoutMs),
+                    await(kafka, start, kafkaTimeoutMs),
+                    await(jaeger, start, jaegerTimeoutMs));
+        } catch (Throwable t) {
+            // An escaping exception would cancel the scheduled refresh
+            System.err.println("[HealthMonitor] Refresh failed: " + t);
+        }
+    }
+
+    private void resolveHost() {
+        try {
+            InetAddress localHost = InetAddress.getLocalHost();
+            hostname = localHost.getHostName();
+            ip = localHost.getHostAddress();
+        } catch (Exception e) {
+            hostname = "unknown";
+            ip = "unknown";
+        }
+    }
+
+    private static DependencyStatus await(Future<DependencyStatus> future, long startNanos, long timeoutMs) {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs) - (System.nanoTime() - startNanos);
+        try {
+            return future.get(Math.max(remainingNanos, 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            return new DependencyStatus("DOWN", TimeUnit.MILLISECONDS.toMicros(timeoutMs),
+                    "timed out after " + timeoutMs + "ms");
+        } catch (ExecutionException e) {
+            return new DependencyStatus("DOWN", 0, describe(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new DependencyStatus("DOWN", 0, "interrupted");
+        }
+    }
+
+    /**
+     * Wraps a check so that its latency is measured on the checker thread.
+     */
+    private static Callable<DependencyStatus> timed(Check check) {
+        return () -> {
+            long start = System.nanoTime();
+            String[] result;
+            try {
+                result = check.run();
+            } catch (Exception e) {
+                result = new String[]{"DOWN", describe(e)};
+            }
+            return new DependencyStatus(result[0], (System.nanoTime() - start) / 1000, result[1]);
+        };
+    }
+
+    private static String describe(Throwable t) {
+        return t.getMessage() != null ? t.getMessage() : t.getClass().getSimpleName();
+    }
+
+    /**
+     * Returns {status, detail}.
+     */
+    private interface Check {
+        String[] run() throws Exception;
+    }
+
+    /**
+     * PINGs every node on a connection of its own, with connect and read
+     * timeouts ending at the check's deadline: cancel(true) cannot
+     * interrupt a blocked socket read, so only the socket timeout frees the
+     * checker thread. UP when all answer, DEGRADED when some do.
+     */
+    private String[] checkRedis() {
+        if (jedisCluster == null) {
+            return new String[]{"DOWN", "Redis cluster not available"};
+        }
+        Set<String> nodes = jedisCluster.getClusterNodes().keySet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(redisTimeoutMs);
+        int up = 0;
+        for (String node : nodes) {
+            int remainingMs = (int) TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                // Jedis reads 0 as no timeout; the rest count as down
+                break;
+            }
+            JedisClientConfig config = DefaultJedisClientConfig.builder()
+                    .connectionTimeoutMillis(remainingMs)
+                    .socketTimeoutMillis(remainingMs)
+                    .clientName("was-health-check")
+                    .build();
+            try (Connection connection = new Connection(HostAndPort.from(node), config)) {
+                connection.ping();
+                up++;
+            } catch (Exception e) {
+                // counted as down below
+            }
+        }
+        String detail = up + "/" + nodes.size() + " nodes";
+        if (up == 0) {
+            return new String[]{"DOWN", detail};
+        }
+        return new String[]{up == nodes.size() ? "UP" : "DEGRADED", detail};
+    }
+
+    private String[] checkKafka() throws Exception {
+        if (kafkaAdmin == null) {
+            return new String[]{"DOWN", "Kafka admin client not available"};
+        }
+        Collection<Node> brokers = kafkaAdmin
+                .describeCluster(new DescribeClusterOptions().timeoutMs((int) kafkaTimeoutMs))
+                .nodes()
+                .get(kafkaTimeoutMs, TimeUnit.MILLISECONDS);
+        return new String[]{brokers.isEmpty() ? "DOWN" : "UP", brokers.size() + " brokers via " + kafkaBootstrapServers};
+    }
+
+    /** Any HTTP answer from the OTLP endpoint means the collector is reachable. */
+    private String[] checkJaeger() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(jaegerEndpoint)
+                .timeout(Duration.ofMillis(jaegerTimeoutMs))
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+        HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+        return new String[]{response.statusCode() < 500 ? "UP" : "DOWN",
+                jaegerEndpoint + " HTTP " + response.statusCode()};
+    }
+
+    private Snapshot serialize(DependencyStatus redis, DependencyStatus kafka, DependencyStatus jaeger) {
+        try {
+            boolean allUp = "UP".equals(redis.status) && "UP".equals(kafka.status) && "UP".equals(jaeger.status);
+            String status = allUp ? "UP" : "DEGRADED";
+            String compact = write(false, status, redis, kafka, jaeger);
+            String pretty = write(true, status, redis, kafka, jaeger);
+            // Drop the closing brace so the per-request fields can be appended
+            return new Snapshot(status,
+                    compact.substring(0, compact.lastIndexOf('}')).getBytes(StandardCharsets.UTF_8),
+                    pretty.substring(0, pretty.lastIndexOf('\n')).getBytes(StandardCharsets.UTF_8),
+                    System.nanoTime());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String write(boolean pretty, String status, DependencyStatus redis, DependencyStatus kafka,
+                         DependencyStatus jaeger) throws IOException {
+        StringWriter out = new StringWriter(1024);
+        JsonWriter json = new JsonWriter(out);
+        json.setHtmlSafe(false);
+        if (pretty) {
+            json.setIndent("  ");
+        }
+        json.beginObject();
+        json.name("status").value(status);
+        json.name("service").value(SERVICE_NAME);
+        json.name("type").value("legacy-onpremise");
+        json.name("timestamp").value(Instant.now().toString());
+        json.name("hostname").value(hostname != null ? hostname : "unknown");
+        json.name("ip").value(ip != null ? ip : "unknown");
+
+        // JVM Metrics, as of this refresh
+        json.name("jvm").beginObject();
+        json.name("uptime_ms").value(runtimeMXBean.getUptime());
+        json.name("heap_used_mb").value(memoryMXBean.getHeapMemoryUsage().getUsed() / (1024 * 1024));
+        json.name("heap_max_mb").value(memoryMXBean.getHeapMemoryUsage().getMax() / (1024 * 1024));
+        json.name("non_heap_used_mb").value(memoryMXBean.getNonHeapMemoryUsage().getUsed() / (1024 * 1024));
+        json.name("available_processors").value(Runtime.getRuntime().availableProcessors());
+        json.endObject();
+
+        // Dependencies health
+        json.name("dependencies").beginObject();
+        writeDependency(json, "redis", redis);
+        writeDependency(json, "kafka", kafka);
+        writeDependency(json, "jaeger", jaeger);
+        json.endObject();
+
+        json.endObject();
+        json.flush();
+        return out.toString();
+    }
+
+    private static void writeDependency(JsonWriter json, String name, DependencyStatus dependency)
+            throws IOException {
+        json.name(name).beginObject();
+        json.name("status").value(dependency.status);
+        json.name("latency_ms").value(dependency.latencyMicros / 1000.0);
+        json.name("detail").value(dependency.detail);
+        json.endObject();
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class DependencyStatus {
+        final String status;
+        final long latencyMicros;
+        final String detail;
+
+        DependencyStatus(String status, long latencyMicros, String detail) {
+            this.status = status;
+            this.latencyMicros = latencyMicros;
+            this.detail = detail;
+        }
+    }
+
+    /**
+     * Serialized health document without its closing brace (and, for the
+     * pretty variant, without the final newline).
+     */
+    public static final class Snapshot {
+        final String status;
+        final byte[] compact;
+        final byte[] pretty;
+        final long createdNanos;
+
+        Snapshot(String status, byte[] compact, byte[] pretty, long createdNanos) {
+            this.status = status;
+            this.compact = compact;
+            this.pretty = pretty;
+            this.createdNanos = createdNanos;
+        }
+
+        public long ageMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdNanos);
+        }
+    }
+}
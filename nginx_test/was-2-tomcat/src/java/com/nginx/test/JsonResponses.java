@@ -0,0 +1,83 @@
+package com.nginx.test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streaming JSON output for the servlets
+ * Writes compact JSON straight into the container's response buffer;
+ * indentation is only applied when the client asks for ?pretty=true
+ */
+final class JsonResponses {
+
+    private JsonResponses() {
+    }
+
+    /**
+     * Sets the JSON content type and returns a writer over the response.
+     * Status and headers must be set before the first value is written.
+     */
+    static JsonWriter open(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        // Tomcat's response writer is recycled per connection and encodes
+        // directly into the output buffer, so no per-request stream encoder
+        JsonWriter json = new JsonWriter(response.getWriter());
+        json.setHtmlSafe(false);
+        if (isPretty(request)) {
+            json.setIndent("  ");
+        }
+        return json;
+    }
+
+    /**
+     * Checks the raw query string so that form bodies are never parsed
+     * just to look for the flag. Like getParameter(), the first "pretty"
+     * parameter decides, and only an exact "true" turns it on.
+     */
+    static boolean isPretty(HttpServletRequest request) {
+        String query = request.getQueryString();
+        if (query == null) {
+            return false;
+        }
+        int start = 0;
+        while (start <= query.length()) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = query.length();
+            }
+            if (query.startsWith("pretty", start)) {
+                int nameEnd = start + "pretty".length();
+                if (nameEnd == end) {
+                    return false;
+                }
+                if (query.charAt(nameEnd) == '=') {
+                    return end - nameEnd - 1 == "true".length() && query.startsWith("true", nameEnd + 1);
+                }
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Echoes the trace headers set by TracingFilter as a "trace" object.
+     */
+    static void writeTraceContext(JsonWriter json, HttpServletRequest request) throws IOException {
+        String traceId = request.getHeader("X-Trace-Id");
+        String spanId = request.getHeader("X-Span-Id");
+        String parentSpanId = request.getHeader("X-Parent-Span-Id");
+
+        if (traceId != null) {
+            json.name("trace").beginObject();
+            json.name("traceId").value(traceId);
+            if (spanId != null) json.name("spanId").value(spanId);
+            if (parentSpanId != null) json.name("parentSpanId").value(parentSpanId);
+            json.endObject();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.nginx.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisClientConfig;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * CacheInvalidations from Redis keyspace notifications
+ *
+ * Notifications are not propagated across a Redis Cluster, so one
+ * subscriber thread per node PSUBSCRIBEs to __keyspace@0__:* on its own
+ * connection. Replicas are subscribed as well, which only means a key may
+ * be reported twice, and keeps invalidations flowing after a failover.
+ * Every event (set, del, expired, evicted, ...) invalidates the key.
+ *
+ * Needs notify-keyspace-events to include K plus the event classes
+ * (see infrastructure/redis/config). A subscriber that loses its
+ * connection reconnects after a second and reports the gap as missed.
+ */
+public class KeyspaceInvalidations implements CacheInvalidations {
+
+    private static final String CHANNEL_PREFIX = "__keyspace@0__:";
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final JedisCluster cluster;
+    private final JedisClientConfig clientConfig;
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final LongAdder events = new LongAdder();
+    private volatile boolean running;
+
+    public KeyspaceInvalidations(JedisCluster cluster, int connectionTimeoutMs) {
+        this.cluster = cluster;
+        this.clientConfig = DefaultJedisClientConfig.builder()
+                .connectionTimeoutMillis(connectionTimeoutMs)
+                .clientName("was-keyspace-invalidations")
+                .build();
+    }
+
+    @Override
+    public synchronized void start(Consumer<String> listener, Runnable missed) {
+        running = true;
+        // Nodes known at startup; a node added later is not subscribed until redeploy
+        for (String node : cluster.getClusterNodes().keySet()) {
+            Subscriber subscriber = new Subscriber(HostAndPort.from(node), listener, missed);
+            subscribers.add(subscriber);
+            subscriber.thread.start();
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+        subscribers.clear();
+    }
+
+    @Override
+    public long getEventCount() {
+        return events.sum();
+    }
+
+    public synchronized int getSubscribedNodeCount() {
+        int count = 0;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.pubSub.isSubscribed()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private final class Subscriber {
+        final HostAndPort node;
+        final Thread thread;
+        final JedisPubSub pubSub;
+        private volatile Jedis jedis;
+        private boolean reconnecting;
+
+        Subscriber(HostAndPort node, Consumer<String> listener, Runnable missed) {
+            this.node = node;
+            this.pubSub = new JedisPubSub() {
+                @Override
+                public void onPSubscribe(String pattern, int subscribedChannels) {
+                    if (reconnecting) {
+                        missed.run();
+                    }
+                }
+
+                @Override
+                public void onPMessage(String pattern, String channel, String message) {
+                    events.increment();
+                    listener.accept(channel.substring(CHANNEL_PREFIX.length()));
+                }
+            };
+            this.thread = new Thread(this::run, "keyspace-" + node);
+            this.thread.setDaemon(true);
+        }
+
+        private void run() {
+            while (running) {
+                try (Jedis connection = new Jedis(node, clientConfig)) {
+                    jedis = connection;
+                    // Blocks until unsubscribed or the connection fails
+                    connection.psubscribe(pubSub, CHANNEL_PREFIX + "*");
+                } catch (Exception e) {
+                    if (running) {
+                        System.err.println("[KeyspaceInvalidations] " + node + ": " + e.getMessage());
+                    }
+                } finally {
+                    jedis = null;
+                }
+                reconnecting = true;
+                if (running) {
+                    try {
+                        Thread.sleep(RECONNECT_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        void close() {
+            try {
+                if (pubSub.isSubscribed()) {
+                    pubSub.punsubscribe();
+                }
+            } catch (Exception e) {
+                // Already gone
+            }
+            Jedis current = jedis;
+            if (current != null) {
+                current.disconnect();
+            }
+            thread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.nginx.test;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.PackedHistogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Rotating 1m / 5m HdrHistogram windows of request latency per route
+ *
+ * Request threads only call Recorder.recordValue(), which is wait-free:
+ * taking an interval flips the recorder's active histogram and waits for
+ * in-flight writers, never the other way round. Everything else (draining,
+ * rotating, merging windows) happens under this object's monitor on the
+ * reader side. Intervals are kept as PackedHistograms, so an idle slice
+ * costs almost nothing.
+ */
+public class LatencyWindows {
+
+    // Values are recorded in microseconds, 3 significant digits, up to 60s
+    private static final long HIGHEST_TRACKABLE_MICROS = 60_000_000L;
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    static final int SLICE_SECONDS = 10;
+    static final int ONE_MINUTE_SLICES = 60 / SLICE_SECONDS;
+    static final int FIVE_MINUTE_SLICES = 300 / SLICE_SECONDS;
+
+    private final RouteWindow[] windows = new RouteWindow[Route.count()];
+    // Reused for merging windows; guarded by this
+    private final Histogram merged = newHistogram();
+
+    private ScheduledExecutorService rotator;
+
+    public LatencyWindows() {
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = new RouteWindow();
+        }
+    }
+
+    public void record(Route route, long durationNanos) {
+        long micros = Math.min(Math.max(durationNanos / 1000, 1), HIGHEST_TRACKABLE_MICROS);
+        windows[route.ordinal()].recorder.recordValue(micros);
+    }
+
+    public synchronized void start() {
+        if (rotator != null) {
+            return;
+        }
+        rotator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "latency-window-rotator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rotator.scheduleAtFixedRate(this::rotate, SLICE_SECONDS, SLICE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (rotator != null) {
+            rotator.shutdownNow();
+            rotator = null;
+        }
+    }
+
+    private synchronized void rotate() {
+        for (RouteWindow window : windows) {
+            window.drain();
+            window.head = (window.head + 1) % FIVE_MINUTE_SLICES;
+            window.slices[window.head].reset();
+        }
+    }
+
+    /**
+     * Merges the most recent slices (including the current, partial one)
+     * for a route and hands the result to the callback while still holding
+     * the lock, so the merged histogram can be reused.
+     */
+    public synchronized void read(Route route, int sliceCount, WindowReader reader) throws IOException {
+        merged.reset();
+        merge(windows[route.ordinal()], sliceCount);
+        reader.read(merged);
+    }
+
+    /**
+     * Same as read(Route, ...) over the combined latency of several routes.
+     */
+    public synchronized void read(Route[] routes, int sliceCount, WindowReader reader) throws IOException {
+        merged.reset();
+        for (Route route : routes) {
+            merge(windows[route.ordinal()], sliceCount);
+        }
+        reader.read(merged);
+    }
+
+    private void merge(RouteWindow window, int sliceCount) {
+        window.drain();
+        for (int i = 0; i < sliceCount; i++) {
+            int index = Math.floorMod(window.head - i, FIVE_MINUTE_SLICES);
+            merged.add(window.slices[index]);
+        }
+    }
+
+    public interface WindowReader {
+        void read(Histogram histogram) throws IOException;
+    }
+
+    private static Histogram newHistogram() {
+        return new Histogram(1, HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+    }
+
+    private static final class RouteWindow {
+        final Recorder recorder = new Recorder(1, HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+        final PackedHistogram[] slices = new PackedHistogram[FIVE_MINUTE_SLICES];
+        // Interval histogram recycled between drains
+        Histogram interval;
+        int head;
+
+        RouteWindow() {
+            for (int i = 0; i < slices.length; i++) {
+                slices[i] = new PackedHistogram(1, HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+            }
+        }
+
+        void drain() {
+            interval = recorder.getIntervalHistogram(interval);
+            if (interval.getTotalCount() > 0) {
+                slices[head].add(interval);
+            }
+        }
+    }
+}
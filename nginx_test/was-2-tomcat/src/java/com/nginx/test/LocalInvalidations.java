@@ -0,0 +1,43 @@
+package com.nginx.test;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * CacheInvalidations fed by publish() rather than by Redis
+ *
+ * Used when NEAR_CACHE_INVALIDATION is "local": nothing outside this JVM
+ * invalidates the caches then, so entries written by other Redis clients
+ * are only refreshed when their TTL runs out.
+ */
+public class LocalInvalidations implements CacheInvalidations {
+
+    private volatile Consumer<String> listener;
+    private final LongAdder events = new LongAdder();
+
+    @Override
+    public void start(Consumer<String> listener, Runnable missed) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void stop() {
+        listener = null;
+    }
+
+    /**
+     * Delivers key on the calling thread, as if Redis had reported it.
+     */
+    public void publish(String key) {
+        Consumer<String> current = listener;
+        if (current != null) {
+            events.increment();
+            current.accept(key);
+        }
+    }
+
+    @Override
+    public long getEventCount() {
+        return events.sum();
+    }
+}
@@ -1,137 +1,1244 @@
 package com.nginx.test;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
+import java.lang.management.RuntimeMXBean;
 import java.lang.management.ThreadMXBean;
 import java.lang.management.GarbageCollectorMXBean;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.stream.JsonWriter;
+import com.nginx.test.factory.KafkaProducerFactory;
+import org.HdrHistogram.Histogram;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.common.Metric;
+import redis.clients.jedis.ConnectionPool;
+import redis.clients.jedis.JedisCluster;
+
+import static com.nginx.test.MetricFamily.sample;
 
 /**
  * Prometheus-compatible metrics endpoint for Tomcat
- * Exposes JVM and application metrics in Prometheus text format
+ * Exposes JVM and application metrics in Prometheus text format;
+ * /metrics/latency serves sliding-window percentiles as JSON
+ *
+ * Everything except the numbers is pre-encoded once (see MetricFamily),
+ * so a scrape only formats values into a pooled ExpositionBuffer. The
+ * OpenMetrics format is served when the scraper asks for it in Accept,
+ * and the body is gzipped when Accept-Encoding allows it.
  */
 public class MetricsServlet extends HttpServlet {
 
-    // Application metrics counters
-    private static final AtomicLong requestCounter = new AtomicLong(0);
-    private static final AtomicLong errorCounter = new AtomicLong(0);
-    private static final AtomicLong requestDurationTotal = new AtomicLong(0);
+    private static final String TEXT_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String OPENMETRICS_CONTENT_TYPE =
+            "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final byte[] OPENMETRICS_EOF = ExpositionBuffer.ascii("# EOF\n");
+
+    // Application metrics counters (striped: every request thread updates them)
+    private static final LongAdder requestCounter = new LongAdder();
+    private static final LongAdder errorCounter = new LongAdder();
+    private static final LongAdder requestDurationNanosTotal = new LongAdder();
+
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    // One histogram per route x status class, indexed route * STATUS_CLASSES.length + class
+    private static final BucketHistogram[] requestHistograms =
+            new BucketHistogram[Route.count() * STATUS_CLASSES.length];
+
+    static {
+        for (int i = 0; i < requestHistograms.length; i++) {
+            requestHistograms[i] = BucketHistogram.latency();
+        }
+    }
+
+    // Requests currently inside the filter chain, per route
+    private static final LongAdder[] inFlight = new LongAdder[Route.count()];
+
+    static {
+        for (int i = 0; i < inFlight.length; i++) {
+            inFlight[i] = new LongAdder();
+        }
+    }
+
+    // Time between nginx forwarding a request and TracingFilter picking it up
+    private static final BucketHistogram queueWait = BucketHistogram.latency();
+
+    // Per-route allocation and CPU accounting, plus what measuring it costs
+    private static final BucketHistogram[] allocatedBytes = new BucketHistogram[Route.count()];
+    private static final BucketHistogram[] cpuTime = new BucketHistogram[Route.count()];
+    private static final LongAdder accountingOverheadNanos = new LongAdder();
+    private static final LongAdder accountingMeasurements = new LongAdder();
+    private static volatile boolean resourceAccountingEnabled;
+
+    static {
+        for (int i = 0; i < allocatedBytes.length; i++) {
+            allocatedBytes[i] = BucketHistogram.bytes();
+            cpuTime[i] = BucketHistogram.latency();
+        }
+    }
+
+    // 1m / 5m HDR windows per route for /metrics/latency
+    private static final LatencyWindows latencyWindows = new LatencyWindows();
+
+    private static final double[] LATENCY_PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+    private static final String[] LATENCY_PERCENTILE_NAMES = {"p50", "p90", "p99", "p99_9"};
+
+    // Kafka producer counters (sends are acknowledged asynchronously)
+    private static final AtomicLong kafkaSendsInFlight = new AtomicLong(0);
+    private static final AtomicLong kafkaSendsAcked = new AtomicLong(0);
+    private static final AtomicLong kafkaSendsFailed = new AtomicLong(0);
+    private static final AtomicLong kafkaSendsRejected = new AtomicLong(0);
+
+    // Producer-level metrics exported as kafka_producer_<name with '_'>
+    private static final String[] KAFKA_PRODUCER_METRICS = {
+            "batch-size-avg", "batch-size-max", "records-per-request-avg", "compression-rate-avg",
+            "record-queue-time-avg", "record-queue-time-max", "request-latency-avg",
+            "buffer-available-bytes", "buffer-total-bytes", "bufferpool-wait-ratio", "waiting-threads"
+    };
+
+    // Metric families and sample prefixes, encoded once
+    private static final MetricFamily WAS_INFO = new MetricFamily("was_info", "gauge", "Service information");
+    private static final byte[] WAS_INFO_SAMPLE =
+            sample("was_info{service=\"was-1-tomcat\",type=\"legacy\",runtime=\"tomcat9\"}");
+
+    private static final MetricFamily MEMORY_USED =
+            new MetricFamily("jvm_memory_bytes_used", "gauge", "JVM memory used");
+    private static final byte[] MEMORY_USED_HEAP = sample("jvm_memory_bytes_used{area=\"heap\"}");
+    private static final byte[] MEMORY_USED_NONHEAP = sample("jvm_memory_bytes_used{area=\"nonheap\"}");
+    private static final MetricFamily MEMORY_MAX =
+            new MetricFamily("jvm_memory_bytes_max", "gauge", "JVM memory max");
+    private static final byte[] MEMORY_MAX_HEAP = sample("jvm_memory_bytes_max{area=\"heap\"}");
+    private static final byte[] MEMORY_MAX_NONHEAP = sample("jvm_memory_bytes_max{area=\"nonheap\"}");
+
+    private static final MetricFamily THREADS_CURRENT =
+            new MetricFamily("jvm_threads_current", "gauge", "Current thread count");
+    private static final byte[] THREADS_CURRENT_SAMPLE = sample("jvm_threads_current");
+    private static final MetricFamily THREADS_DAEMON =
+            new MetricFamily("jvm_threads_daemon", "gauge", "Daemon thread count");
+    private static final byte[] THREADS_DAEMON_SAMPLE = sample("jvm_threads_daemon");
+    private static final MetricFamily THREADS_PEAK =
+            new MetricFamily("jvm_threads_peak", "gauge", "Peak thread count");
+    private static final byte[] THREADS_PEAK_SAMPLE = sample("jvm_threads_peak");
+
+    private static final MetricFamily GC_SECONDS =
+            new MetricFamily("jvm_gc_collection_seconds_total", "counter", "Total GC collection time");
+    private static final MetricFamily GC_COUNT =
+            new MetricFamily("jvm_gc_collection_count_total", "counter", "Total GC collection count");
+
+    private static final MetricFamily HTTP_REQUESTS =
+            new MetricFamily("http_requests_total", "counter", "Total HTTP requests");
+    private static final byte[] HTTP_REQUESTS_SAMPLE = sample("http_requests_total{service=\"was-1-tomcat\"}");
+    private static final MetricFamily HTTP_ERRORS =
+            new MetricFamily("http_errors_total", "counter", "Total HTTP errors");
+    private static final byte[] HTTP_ERRORS_SAMPLE = sample("http_errors_total{service=\"was-1-tomcat\"}");
+    private static final MetricFamily HTTP_DURATION =
+            new MetricFamily("http_request_duration_seconds_total", "counter", "Total request duration");
+    private static final byte[] HTTP_DURATION_SAMPLE =
+            sample("http_request_duration_seconds_total{service=\"was-1-tomcat\"}");
+
+    private static final MetricFamily HTTP_SERVER_REQUESTS = new MetricFamily("http_server_requests_seconds",
+            "histogram", "Request latency by route and status class");
+    private static final HistogramSamples[] HTTP_SERVER_SAMPLES = new HistogramSamples[requestHistograms.length];
+
+    static {
+        for (int i = 0; i < requestHistograms.length; i++) {
+            String labels = "service=\"was-1-tomcat\",route=\"" +
+                    Route.byIndex(i / STATUS_CLASSES.length).template() +
+                    "\",status=\"" + STATUS_CLASSES[i % STATUS_CLASSES.length] + "\"";
+            HTTP_SERVER_SAMPLES[i] = new HistogramSamples("http_server_requests_seconds", labels,
+                    BucketHistogram.LATENCY_LABELS);
+        }
+    }
+
+    private static final MetricFamily HTTP_IN_FLIGHT = new MetricFamily("http_server_requests_in_flight",
+            "gauge", "Requests currently being processed by route");
+    private static final byte[][] HTTP_IN_FLIGHT_SAMPLES = new byte[Route.count()][];
+
+    static {
+        for (int i = 0; i < HTTP_IN_FLIGHT_SAMPLES.length; i++) {
+            HTTP_IN_FLIGHT_SAMPLES[i] = sample("http_server_requests_in_flight{service=\"was-1-tomcat\",route=\"" +
+                    Route.byIndex(i).template() + "\"}");
+        }
+    }
+
+    private static final MetricFamily QUEUE_WAIT = new MetricFamily("http_server_queue_wait_seconds",
+            "histogram", "Time from nginx forwarding a request (X-Request-Start) until a Tomcat thread runs it");
+    private static final HistogramSamples QUEUE_WAIT_SAMPLES = new HistogramSamples(
+            "http_server_queue_wait_seconds", "service=\"was-1-tomcat\"", BucketHistogram.LATENCY_LABELS);
+
+    private static final MetricFamily ALLOCATED_BYTES = new MetricFamily("http_server_request_allocated_bytes",
+            "histogram", "Heap bytes allocated by the request thread inside the filter chain");
+    private static final MetricFamily CPU_TIME = new MetricFamily("http_server_request_cpu_seconds",
+            "histogram", "CPU time used by the request thread inside the filter chain");
+    private static final HistogramSamples[] ALLOCATED_BYTES_SAMPLES = new HistogramSamples[Route.count()];
+    private static final HistogramSamples[] CPU_TIME_SAMPLES = new HistogramSamples[Route.count()];
+
+    static {
+        for (int i = 0; i < Route.count(); i++) {
+            String labels = "service=\"was-1-tomcat\",route=\"" + Route.byIndex(i).template() + "\"";
+            ALLOCATED_BYTES_SAMPLES[i] = new HistogramSamples("http_server_request_allocated_bytes", labels,
+                    BucketHistogram.BYTES_LABELS);
+            CPU_TIME_SAMPLES[i] = new HistogramSamples("http_server_request_cpu_seconds", labels,
+                    BucketHistogram.LATENCY_LABELS);
+        }
+    }
+
+    private static final MetricFamily ACCOUNTING_ENABLED = new MetricFamily("request_accounting_enabled",
+            "gauge", "Whether per-request allocation/CPU accounting is on");
+    private static final byte[] ACCOUNTING_ENABLED_SAMPLE = sample("request_accounting_enabled");
+    private static final MetricFamily ACCOUNTING_ACTIVE = new MetricFamily("request_accounting_active",
+            "gauge", "Whether requests are actually accounted: 0 while enabled but the HTTP connector runs "
+            + "virtual threads, which have no allocation/CPU counters");
+    private static final byte[] ACCOUNTING_ACTIVE_SAMPLE = sample("request_accounting_active");
+    private static final MetricFamily ACCOUNTING_OVERHEAD = new MetricFamily("request_accounting_overhead_seconds_total",
+            "counter", "Time spent reading thread allocation/CPU counters");
+    private static final byte[] ACCOUNTING_OVERHEAD_SAMPLE = sample("request_accounting_overhead_seconds_total");
+    private static final MetricFamily ACCOUNTING_MEASUREMENTS = new MetricFamily(
+            "request_accounting_measurements_total", "counter", "Requests accounted for allocation/CPU");
+    private static final byte[] ACCOUNTING_MEASUREMENTS_SAMPLE = sample("request_accounting_measurements_total");
+
+    private static final MetricFamily TOMCAT_THREADS_BUSY = new MetricFamily("tomcat_threads_busy",
+            "gauge", "Connector worker threads currently processing a request");
+    private static final MetricFamily TOMCAT_THREADS_CURRENT = new MetricFamily("tomcat_threads_current",
+            "gauge", "Connector worker threads in the pool");
+    private static final MetricFamily TOMCAT_THREADS_MAX = new MetricFamily("tomcat_threads_max",
+            "gauge", "Connector maxThreads, or that of its shared executor; absent on virtual threads");
+    private static final MetricFamily TOMCAT_CONNECTIONS = new MetricFamily("tomcat_connections_current",
+            "gauge", "Open connections on the connector");
+    private static final MetricFamily TOMCAT_CONNECTIONS_MAX = new MetricFamily("tomcat_connections_max",
+            "gauge", "Connector maxConnections");
+    private static final MetricFamily TOMCAT_ACCEPT_COUNT = new MetricFamily("tomcat_accept_count",
+            "gauge", "Connector acceptCount (OS backlog once maxConnections is reached)");
+    private static final MetricFamily TOMCAT_REQUESTS = new MetricFamily("tomcat_requests_total",
+            "counter", "Requests processed by the connector");
+    private static final MetricFamily TOMCAT_ERRORS = new MetricFamily("tomcat_errors_total",
+            "counter", "Requests with an error status processed by the connector");
+    private static final MetricFamily TOMCAT_BYTES_SENT = new MetricFamily("tomcat_bytes_sent_total",
+            "counter", "Bytes sent by the connector");
+    private static final MetricFamily TOMCAT_BYTES_RECEIVED = new MetricFamily("tomcat_bytes_received_total",
+            "counter", "Bytes received by the connector");
+    private static final MetricFamily TOMCAT_PROCESSING = new MetricFamily("tomcat_processing_seconds_total",
+            "counter", "Total request processing time of the connector");
+
+    private static final MetricFamily EXECUTOR_ACTIVE = new MetricFamily("tomcat_executor_active_tasks",
+            "gauge", "Requests currently running on a shared connector executor");
+    private static final MetricFamily EXECUTOR_TASKS = new MetricFamily("tomcat_executor_tasks_total",
+            "counter", "Requests completed by a shared connector executor");
+    private static final MetricFamily EXECUTOR_VIRTUAL = new MetricFamily("tomcat_executor_virtual_threads",
+            "gauge", "1 if the executor runs requests on virtual threads");
+    private static final MetricFamily EXECUTOR_PINNED = new MetricFamily("tomcat_executor_pinned_total",
+            "counter", "Virtual threads pinned to their carrier above the threshold, by call site");
+    private static final MetricFamily EXECUTOR_PINNED_SECONDS = new MetricFamily(
+            "tomcat_executor_pinned_seconds_total", "counter", "Time virtual threads spent pinned, by call site");
+    private static final MetricFamily EXECUTOR_PINNED_MAX = new MetricFamily("tomcat_executor_pinned_max_seconds",
+            "gauge", "Longest single pinned period");
+
+    private static final MetricFamily REDIS_CONNECTIONS =
+            new MetricFamily("redis_pool_connections", "gauge", "Redis pool connections by state");
+    private static final MetricFamily REDIS_WAITERS =
+            new MetricFamily("redis_pool_waiters", "gauge", "Threads blocked waiting for a Redis connection");
+    private static final MetricFamily REDIS_BORROWED =
+            new MetricFamily("redis_pool_borrowed_total", "counter", "Connections borrowed from the pool");
+    private static final MetricFamily REDIS_CREATED =
+            new MetricFamily("redis_pool_created_total", "counter", "Connections created by the pool");
+    private static final MetricFamily REDIS_BORROW_WAIT = new MetricFamily("redis_pool_borrow_wait_seconds",
+            "gauge", "Time spent waiting to borrow a connection");
+
+    private static final MetricFamily KAFKA_IN_FLIGHT = new MetricFamily("kafka_sends_in_flight",
+            "gauge", "Records handed to the producer and not yet acknowledged");
+    private static final byte[] KAFKA_IN_FLIGHT_SAMPLE = sample("kafka_sends_in_flight");
+    private static final MetricFamily KAFKA_SENDS =
+            new MetricFamily("kafka_sends_total", "counter", "Completed Kafka sends by result");
+    private static final byte[] KAFKA_SENDS_ACKED = sample("kafka_sends_total{result=\"acked\"}");
+    private static final byte[] KAFKA_SENDS_FAILED = sample("kafka_sends_total{result=\"failed\"}");
+    private static final byte[] KAFKA_SENDS_REJECTED = sample("kafka_sends_total{result=\"rejected\"}");
+
+    private static final MetricFamily TRACING_SPANS =
+            new MetricFamily("tracing_spans_total", "counter", "Spans by outcome in the export pipeline");
+    private static final byte[] TRACING_SPANS_RECORDED = sample("tracing_spans_total{outcome=\"recorded\"}");
+    private static final byte[] TRACING_SPANS_DROPPED = sample("tracing_spans_total{outcome=\"dropped\"}");
+    private static final byte[] TRACING_SPANS_EXPORTED = sample("tracing_spans_total{outcome=\"exported\"}");
+    private static final byte[] TRACING_SPANS_EXPORT_FAILED =
+            sample("tracing_spans_total{outcome=\"export_failed\"}");
+    private static final MetricFamily SPAN_BUFFER =
+            new MetricFamily("tracing_span_buffer_spans", "gauge", "Spans waiting in the export ring buffer");
+    private static final byte[] SPAN_BUFFER_SAMPLE = sample("tracing_span_buffer_spans");
+    private static final MetricFamily SPAN_BUFFER_CAPACITY =
+            new MetricFamily("tracing_span_buffer_capacity", "gauge", "Capacity of the export ring buffer");
+    private static final byte[] SPAN_BUFFER_CAPACITY_SAMPLE = sample("tracing_span_buffer_capacity");
+
+    private static final MetricFamily SAMPLING_DECISIONS =
+            new MetricFamily("tracing_sampling_decisions_total", "counter", "Head sampling decisions");
+    private static final byte[] SAMPLED_UPSTREAM =
+            sample("tracing_sampling_decisions_total{decision=\"sampled\",reason=\"upstream\"}");
+    private static final byte[] DROPPED_UPSTREAM =
+            sample("tracing_sampling_decisions_total{decision=\"dropped\",reason=\"upstream\"}");
+    private static final byte[] SAMPLED_ROOT =
+            sample("tracing_sampling_decisions_total{decision=\"sampled\",reason=\"root\"}");
+    private static final byte[] DROPPED_PROBABILITY =
+            sample("tracing_sampling_decisions_total{decision=\"dropped\",reason=\"probability\"}");
+    private static final byte[] DROPPED_RATE_LIMIT =
+            sample("tracing_sampling_decisions_total{decision=\"dropped\",reason=\"rate_limit\"}");
+
+    private static final MetricFamily CONCURRENCY_LIMIT =
+            new MetricFamily("concurrency_limit", "gauge", "Current adaptive limit on concurrent /api requests");
+    private static final byte[] CONCURRENCY_LIMIT_SAMPLE = sample("concurrency_limit");
+    private static final MetricFamily CONCURRENCY_IN_FLIGHT = new MetricFamily("concurrency_limit_in_flight",
+            "gauge", "/api requests holding a concurrency permit");
+    private static final byte[] CONCURRENCY_IN_FLIGHT_SAMPLE = sample("concurrency_limit_in_flight");
+    private static final MetricFamily CONCURRENCY_REQUESTS = new MetricFamily("concurrency_limit_requests_total",
+            "counter", "Concurrency limit decisions");
+    private static final byte[] CONCURRENCY_ACCEPTED = sample("concurrency_limit_requests_total{outcome=\"accepted\"}");
+    private static final byte[] CONCURRENCY_REJECTED = sample("concurrency_limit_requests_total{outcome=\"rejected\"}");
+    private static final MetricFamily CONCURRENCY_RTT = new MetricFamily("concurrency_limit_rtt_seconds",
+            "gauge", "Latency the limit is computed from: last sample window and its baseline");
+    private static final byte[] CONCURRENCY_RTT_SAMPLE = sample("concurrency_limit_rtt_seconds{kind=\"sample\"}");
+    private static final byte[] CONCURRENCY_RTT_BASELINE = sample("concurrency_limit_rtt_seconds{kind=\"baseline\"}");
+
+    private static final MetricFamily RATE_LIMIT_REQUESTS = new MetricFamily("rate_limit_requests_total",
+            "counter", "Per-client rate limit decisions by route");
+    private static final byte[][] RATE_LIMIT_ALLOWED = new byte[Route.count()][];
+    private static final byte[][] RATE_LIMIT_LIMITED = new byte[Route.count()][];
+
+    static {
+        for (int i = 0; i < Route.count(); i++) {
+            String labels = "route=\"" + Route.byIndex(i).template() + "\",outcome=";
+            RATE_LIMIT_ALLOWED[i] = sample("rate_limit_requests_total{" + labels + "\"allowed\"}");
+            RATE_LIMIT_LIMITED[i] = sample("rate_limit_requests_total{" + labels + "\"limited\"}");
+        }
+    }
+
+    private static final MetricFamily RATE_LIMIT_CLIENTS = new MetricFamily("rate_limit_clients",
+            "gauge", "Client/route buckets seen within the idle timeout");
+    private static final byte[] RATE_LIMIT_CLIENTS_SAMPLE = sample("rate_limit_clients");
+    private static final MetricFamily RATE_LIMIT_CAPACITY = new MetricFamily("rate_limit_clients_capacity",
+            "gauge", "Client/route buckets the rate limiter can hold");
+    private static final byte[] RATE_LIMIT_CAPACITY_SAMPLE = sample("rate_limit_clients_capacity");
+    private static final MetricFamily RATE_LIMIT_EVICTIONS = new MetricFamily("rate_limit_evictions_total",
+            "counter", "Client buckets replaced by a new client");
+    private static final byte[] RATE_LIMIT_EVICTIONS_IDLE = sample("rate_limit_evictions_total{reason=\"idle\"}");
+    private static final byte[] RATE_LIMIT_EVICTIONS_CAPACITY =
+            sample("rate_limit_evictions_total{reason=\"capacity\"}");
+
+    private static final MetricFamily LOCAL_CACHE_REQUESTS = new MetricFamily("local_cache_requests_total",
+            "counter", "In-process cache lookups for /api/cache by result");
+    private static final byte[] LOCAL_CACHE_HITS = sample("local_cache_requests_total{result=\"hit\"}");
+    private static final byte[] LOCAL_CACHE_MISSES = sample("local_cache_requests_total{result=\"miss\"}");
+    private static final MetricFamily LOCAL_CACHE_EVICTIONS = new MetricFamily("local_cache_evictions_total",
+            "counter", "Entries removed from the in-process cache by reason");
+    private static final byte[] LOCAL_CACHE_EVICTIONS_SIZE = sample("local_cache_evictions_total{reason=\"size\"}");
+    private static final byte[] LOCAL_CACHE_EVICTIONS_EXPIRED =
+            sample("local_cache_evictions_total{reason=\"expired\"}");
+    private static final MetricFamily LOCAL_CACHE_ENTRIES = new MetricFamily("local_cache_entries",
+            "gauge", "Entries in the in-process cache");
+    private static final byte[] LOCAL_CACHE_ENTRIES_SAMPLE = sample("local_cache_entries");
+    private static final MetricFamily LOCAL_CACHE_BYTES = new MetricFamily("local_cache_bytes",
+            "gauge", "Estimated size of the in-process cache, and its budget");
+    private static final byte[] LOCAL_CACHE_BYTES_USED = sample("local_cache_bytes{kind=\"used\"}");
+    private static final byte[] LOCAL_CACHE_BYTES_MAX = sample("local_cache_bytes{kind=\"max\"}");
+    private static final MetricFamily PEER_CACHE_UPDATES = new MetricFamily("local_cache_peer_updates_total",
+            "counter", "Cache writes and invalidations exchanged with the peer node");
+    private static final byte[] PEER_CACHE_SENT = sample("local_cache_peer_updates_total{outcome=\"sent\"}");
+    private static final byte[] PEER_CACHE_RECEIVED = sample("local_cache_peer_updates_total{outcome=\"received\"}");
+    private static final byte[] PEER_CACHE_DROPPED = sample("local_cache_peer_updates_total{outcome=\"dropped\"}");
+    private static final byte[] PEER_CACHE_FAILED = sample("local_cache_peer_updates_total{outcome=\"send_failed\"}");
+    private static final MetricFamily PEER_CACHE_QUEUED = new MetricFamily("local_cache_peer_queue",
+            "gauge", "Updates waiting to be sent to the peer node");
+    private static final byte[] PEER_CACHE_QUEUED_SAMPLE = sample("local_cache_peer_queue");
+    private static final MetricFamily PEER_CACHE_MEMBERS = new MetricFamily("local_cache_peers",
+            "gauge", "Peer nodes currently in the Tribes group");
+    private static final byte[] PEER_CACHE_MEMBERS_SAMPLE = sample("local_cache_peers");
+
+    private static final MetricFamily NEAR_CACHE_REQUESTS = new MetricFamily("near_cache_requests_total",
+            "counter", "Off-heap near-cache lookups for /api/cache by result");
+    private static final byte[] NEAR_CACHE_HITS = sample("near_cache_requests_total{result=\"hit\"}");
+    private static final byte[] NEAR_CACHE_MISSES = sample("near_cache_requests_total{result=\"miss\"}");
+    private static final MetricFamily NEAR_CACHE_EVICTIONS = new MetricFamily("near_cache_evictions_total",
+            "counter", "Entries removed from the near-cache by reason");
+    private static final byte[] NEAR_CACHE_EVICTIONS_SIZE = sample("near_cache_evictions_total{reason=\"size\"}");
+    private static final byte[] NEAR_CACHE_EVICTIONS_EXPIRED =
+            sample("near_cache_evictions_total{reason=\"expired\"}");
+    private static final MetricFamily NEAR_CACHE_INVALIDATIONS = new MetricFamily("near_cache_invalidations_total",
+            "counter", "Keys reported changed in Redis");
+    private static final byte[] NEAR_CACHE_INVALIDATIONS_SAMPLE = sample("near_cache_invalidations_total");
+    private static final MetricFamily NEAR_CACHE_REJECTED = new MetricFamily("near_cache_rejected_total",
+            "counter", "Values not cached: too large, or raced with an invalidation");
+    private static final byte[] NEAR_CACHE_REJECTED_SAMPLE = sample("near_cache_rejected_total");
+    private static final MetricFamily NEAR_CACHE_ENTRIES = new MetricFamily("near_cache_entries",
+            "gauge", "Entries in the near-cache");
+    private static final byte[] NEAR_CACHE_ENTRIES_SAMPLE = sample("near_cache_entries");
+    private static final MetricFamily NEAR_CACHE_BYTES = new MetricFamily("near_cache_bytes",
+            "gauge", "Off-heap bytes holding entries, and the budget");
+    private static final byte[] NEAR_CACHE_BYTES_USED = sample("near_cache_bytes{kind=\"used\"}");
+    private static final byte[] NEAR_CACHE_BYTES_MAX = sample("near_cache_bytes{kind=\"max\"}");
+    private static final MetricFamily CACHE_SNAPSHOT_REQUESTS = new MetricFamily("cache_snapshot_requests_total",
+            "counter", "Lookups in the warm-start snapshot for /api/cache by result");
+    private static final byte[] CACHE_SNAPSHOT_HITS = sample("cache_snapshot_requests_total{result=\"hit\"}");
+    private static final byte[] CACHE_SNAPSHOT_MISSES = sample("cache_snapshot_requests_total{result=\"miss\"}");
+    private static final MetricFamily CACHE_SNAPSHOT_SKIPPED = new MetricFamily("cache_snapshot_skipped_total",
+            "counter", "Snapshot entries found but not served, by reason");
+    private static final byte[] CACHE_SNAPSHOT_SKIPPED_EXPIRED =
+            sample("cache_snapshot_skipped_total{reason=\"expired\"}");
+    private static final byte[] CACHE_SNAPSHOT_SKIPPED_CORRUPT =
+            sample("cache_snapshot_skipped_total{reason=\"corrupt\"}");
+    private static final MetricFamily CACHE_SNAPSHOT_ENTRIES = new MetricFamily("cache_snapshot_entries",
+            "gauge", "Entries in the mapped snapshot, 0 once it is past its max age");
+    private static final byte[] CACHE_SNAPSHOT_ENTRIES_SAMPLE = sample("cache_snapshot_entries");
+    private static final MetricFamily CACHE_CHECKPOINTS = new MetricFamily("cache_snapshot_checkpoints_total",
+            "counter", "Snapshot files written, by outcome");
+    private static final byte[] CACHE_CHECKPOINTS_WRITTEN =
+            sample("cache_snapshot_checkpoints_total{outcome=\"written\"}");
+    private static final byte[] CACHE_CHECKPOINTS_FAILED =
+            sample("cache_snapshot_checkpoints_total{outcome=\"failed\"}");
+    private static final MetricFamily CACHE_CHECKPOINT_ENTRIES = new MetricFamily("cache_snapshot_checkpoint_entries",
+            "gauge", "Entries in the last snapshot written");
+    private static final byte[] CACHE_CHECKPOINT_ENTRIES_SAMPLE = sample("cache_snapshot_checkpoint_entries");
+    private static final MetricFamily CACHE_CHECKPOINT_BYTES = new MetricFamily("cache_snapshot_checkpoint_bytes",
+            "gauge", "Size of the last snapshot written");
+    private static final byte[] CACHE_CHECKPOINT_BYTES_SAMPLE = sample("cache_snapshot_checkpoint_bytes");
+    private static final MetricFamily CACHE_CHECKPOINT_DURATION = new MetricFamily(
+            "cache_snapshot_checkpoint_duration_seconds", "gauge", "Time taken by the last snapshot written");
+    private static final byte[] CACHE_CHECKPOINT_DURATION_SAMPLE = sample("cache_snapshot_checkpoint_duration_seconds");
+    private static final MetricFamily REDIS_GET_BATCHES = new MetricFamily("redis_get_batches_total",
+            "counter", "Batched reads sent for GET /api/cache/{key} misses");
+    private static final byte[] REDIS_GET_BATCHES_SAMPLE = sample("redis_get_batches_total");
+    private static final MetricFamily REDIS_GET_BATCHED_KEYS = new MetricFamily("redis_get_batched_keys_total",
+            "counter", "Keys read by those batches; divided by batches, the mean batch size");
+    private static final byte[] REDIS_GET_BATCHED_KEYS_SAMPLE = sample("redis_get_batched_keys_total");
+
+    private static final MetricFamily UPTIME =
+            new MetricFamily("process_uptime_seconds", "gauge", "Process uptime in seconds");
+    private static final byte[] UPTIME_SAMPLE = sample("process_uptime_seconds");
+    private static final MetricFamily CPU_AVAILABLE =
+            new MetricFamily("process_cpu_available", "gauge", "Available processors");
+    private static final byte[] CPU_AVAILABLE_SAMPLE = sample("process_cpu_available");
+
+    private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final RuntimeMXBean runtimeMXBean = ManagementFactory.getRuntimeMXBean();
+    private GcSamples[] gcSamples;
+
+    // Redis topology can change, so node label sets are encoded on first sight
+    private final Map<String, RedisNodeSamples> redisNodeSamples = new ConcurrentHashMap<>();
+    private final Map<String, ConnectorSamples> connectorSamples = new ConcurrentHashMap<>();
+    private final Map<String, ExecutorSamples> executorSamples = new ConcurrentHashMap<>();
+
+    // Resolved on the first scrape that finds the shared producer
+    private volatile KafkaGauge[] kafkaGauges;
+
+    /**
+     * Counts a request entering the filter chain; recordRequest() ends it.
+     */
+    public static void requestStarted(Route route) {
+        requestCounter.increment();
+        inFlight[route.ordinal()].increment();
+    }
 
-    public static void incrementRequests() {
-        requestCounter.incrementAndGet();
+    public static void recordQueueWait(long waitNanos) {
+        queueWait.record(waitNanos);
+    }
+
+    public static void setResourceAccountingEnabled(boolean enabled) {
+        resourceAccountingEnabled = enabled;
+    }
+
+    /**
+     * Records what a request allocated and burned in CPU (-1 when unknown)
+     * and how long reading those counters took.
+     */
+    public static void recordResources(Route route, long allocated, long cpuNanos, long overheadNanos) {
+        if (allocated >= 0) {
+            allocatedBytes[route.ordinal()].record(allocated);
+        }
+        if (cpuNanos >= 0) {
+            cpuTime[route.ordinal()].record(cpuNanos);
+        }
+        accountingOverheadNanos.add(overheadNanos);
+        accountingMeasurements.increment();
     }
 
     public static void incrementErrors() {
-        errorCounter.incrementAndGet();
+        errorCounter.increment();
+    }
+
+    /**
+     * Records a finished request into the route/status-class histogram.
+     */
+    public static void recordRequest(Route route, int status, long durationNanos) {
+        inFlight[route.ordinal()].decrement();
+        int statusClass = Math.min(Math.max(status / 100, 1), 5) - 1;
+        requestHistograms[route.ordinal() * STATUS_CLASSES.length + statusClass].record(durationNanos);
+        requestDurationNanosTotal.add(durationNanos);
+        latencyWindows.record(route, durationNanos);
+    }
+
+    static LatencyWindows latencyWindows() {
+        return latencyWindows;
+    }
+
+    public static void kafkaSendStarted() {
+        kafkaSendsInFlight.incrementAndGet();
+    }
+
+    public static void kafkaSendCompleted(boolean success) {
+        kafkaSendsInFlight.decrementAndGet();
+        if (success) {
+            kafkaSendsAcked.incrementAndGet();
+        } else {
+            kafkaSendsFailed.incrementAndGet();
+        }
     }
 
-    public static void addRequestDuration(long durationMs) {
-        requestDurationTotal.addAndGet(durationMs);
+    public static void incrementKafkaRejected() {
+        kafkaSendsRejected.incrementAndGet();
+    }
+
+    /**
+     * A started send that send() itself turned down as busy (max.block.ms
+     * exceeded).
+     */
+    public static void kafkaSendRejected() {
+        kafkaSendsInFlight.decrementAndGet();
+        kafkaSendsRejected.incrementAndGet();
+    }
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+
+        // Collector names are fixed for the life of the JVM
+        List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+        gcSamples = new GcSamples[gcBeans.size()];
+        for (int i = 0; i < gcSamples.length; i++) {
+            gcSamples[i] = new GcSamples(gcBeans.get(i));
+        }
+
+        latencyWindows.start();
+    }
+
+    @Override
+    public void destroy() {
+        latencyWindows.stop();
+        ExpositionBuffer.clearPool();
+        super.destroy();
     }
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
 
-        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
-        PrintWriter out = response.getWriter();
+        if ("/metrics/latency".equals(request.getServletPath())) {
+            writeLatencyWindows(request, response);
+            return;
+        }
+
+        boolean openMetrics = headerContains(request, "Accept", "application/openmetrics-text");
+        boolean gzip = headerContains(request, "Accept-Encoding", "gzip");
 
-        StringBuilder metrics = new StringBuilder();
+        ExpositionBuffer buffer = ExpositionBuffer.acquire();
+        try {
+            render(buffer, openMetrics);
 
+            response.setContentType(openMetrics ? OPENMETRICS_CONTENT_TYPE : TEXT_CONTENT_TYPE);
+            response.setHeader("Vary", "Accept, Accept-Encoding");
+            ServletOutputStream out = response.getOutputStream();
+            if (gzip) {
+                response.setHeader("Content-Encoding", "gzip");
+                buffer.writeGzipTo(out);
+            } else {
+                response.setContentLength(buffer.length());
+                buffer.writeTo(out);
+            }
+            out.flush();
+        } finally {
+            ExpositionBuffer.release(buffer);
+        }
+    }
+
+    private static boolean headerContains(HttpServletRequest request, String name, String token) {
+        String value = request.getHeader(name);
+        return value != null && value.contains(token);
+    }
+
+    private void render(ExpositionBuffer out, boolean openMetrics) {
         // Service info
-        metrics.append("# HELP was_info Service information\n");
-        metrics.append("# TYPE was_info gauge\n");
-        metrics.append("was_info{service=\"was-1-tomcat\",type=\"legacy\",runtime=\"tomcat9\"} 1\n\n");
+        out.write(WAS_INFO.header(openMetrics));
+        out.sample(WAS_INFO_SAMPLE, 1);
 
         // JVM Memory metrics
-        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
-
-        metrics.append("# HELP jvm_memory_bytes_used JVM memory used\n");
-        metrics.append("# TYPE jvm_memory_bytes_used gauge\n");
-        metrics.append(String.format("jvm_memory_bytes_used{area=\"heap\"} %d\n",
-                memoryMXBean.getHeapMemoryUsage().getUsed()));
-        metrics.append(String.format("jvm_memory_bytes_used{area=\"nonheap\"} %d\n\n",
-                memoryMXBean.getNonHeapMemoryUsage().getUsed()));
-
-        metrics.append("# HELP jvm_memory_bytes_max JVM memory max\n");
-        metrics.append("# TYPE jvm_memory_bytes_max gauge\n");
-        metrics.append(String.format("jvm_memory_bytes_max{area=\"heap\"} %d\n",
-                memoryMXBean.getHeapMemoryUsage().getMax()));
-        metrics.append(String.format("jvm_memory_bytes_max{area=\"nonheap\"} %d\n\n",
-                memoryMXBean.getNonHeapMemoryUsage().getMax()));
+        out.write(MEMORY_USED.header(openMetrics));
+        out.sample(MEMORY_USED_HEAP, memoryMXBean.getHeapMemoryUsage().getUsed());
+        out.sample(MEMORY_USED_NONHEAP, memoryMXBean.getNonHeapMemoryUsage().getUsed());
+        out.write(MEMORY_MAX.header(openMetrics));
+        out.sample(MEMORY_MAX_HEAP, memoryMXBean.getHeapMemoryUsage().getMax());
+        out.sample(MEMORY_MAX_NONHEAP, memoryMXBean.getNonHeapMemoryUsage().getMax());
 
         // Thread metrics
-        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        out.write(THREADS_CURRENT.header(openMetrics));
+        out.sample(THREADS_CURRENT_SAMPLE, threadMXBean.getThreadCount());
+        out.write(THREADS_DAEMON.header(openMetrics));
+        out.sample(THREADS_DAEMON_SAMPLE, threadMXBean.getDaemonThreadCount());
+        out.write(THREADS_PEAK.header(openMetrics));
+        out.sample(THREADS_PEAK_SAMPLE, threadMXBean.getPeakThreadCount());
 
-        metrics.append("# HELP jvm_threads_current Current thread count\n");
-        metrics.append("# TYPE jvm_threads_current gauge\n");
-        metrics.append(String.format("jvm_threads_current %d\n\n", threadMXBean.getThreadCount()));
-
-        metrics.append("# HELP jvm_threads_daemon Daemon thread count\n");
-        metrics.append("# TYPE jvm_threads_daemon gauge\n");
-        metrics.append(String.format("jvm_threads_daemon %d\n\n", threadMXBean.getDaemonThreadCount()));
+        // GC metrics
+        out.write(GC_SECONDS.header(openMetrics));
+        for (GcSamples gc : gcSamples) {
+            out.sampleDecimal(gc.seconds, gc.bean.getCollectionTime(), 3);
+        }
+        out.write(GC_COUNT.header(openMetrics));
+        for (GcSamples gc : gcSamples) {
+            out.sample(gc.count, gc.bean.getCollectionCount());
+        }
 
-        metrics.append("# HELP jvm_threads_peak Peak thread count\n");
-        metrics.append("# TYPE jvm_threads_peak gauge\n");
-        metrics.append(String.format("jvm_threads_peak %d\n\n", threadMXBean.getPeakThreadCount()));
+        // Application metrics
+        out.write(HTTP_REQUESTS.header(openMetrics));
+        out.sample(HTTP_REQUESTS_SAMPLE, requestCounter.sum());
+        out.write(HTTP_ERRORS.header(openMetrics));
+        out.sample(HTTP_ERRORS_SAMPLE, errorCounter.sum());
+        out.write(HTTP_DURATION.header(openMetrics));
+        out.sampleDecimal(HTTP_DURATION_SAMPLE, requestDurationNanosTotal.sum(), 9);
 
-        // GC metrics
-        List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+        appendRequestHistograms(out, openMetrics);
+        appendSaturationMetrics(out, openMetrics);
+        appendExecutorMetrics(out, openMetrics);
+        appendResourceMetrics(out, openMetrics);
 
-        metrics.append("# HELP jvm_gc_collection_seconds_total Total GC collection time\n");
-        metrics.append("# TYPE jvm_gc_collection_seconds_total counter\n");
-        for (GarbageCollectorMXBean gc : gcBeans) {
-            String gcName = gc.getName().replace(" ", "_").toLowerCase();
-            metrics.append(String.format("jvm_gc_collection_seconds_total{gc=\"%s\"} %.3f\n",
-                    gcName, gc.getCollectionTime() / 1000.0));
+        // Redis connection pool metrics (one pool per cluster node)
+        JedisCluster jedisCluster = (JedisCluster) getServletContext()
+                .getAttribute(AppContextListener.REDIS_CLUSTER_ATTRIBUTE);
+        if (jedisCluster != null) {
+            appendRedisPoolMetrics(out, openMetrics, jedisCluster.getClusterNodes());
         }
-        metrics.append("\n");
-
-        metrics.append("# HELP jvm_gc_collection_count_total Total GC collection count\n");
-        metrics.append("# TYPE jvm_gc_collection_count_total counter\n");
-        for (GarbageCollectorMXBean gc : gcBeans) {
-            String gcName = gc.getName().replace(" ", "_").toLowerCase();
-            metrics.append(String.format("jvm_gc_collection_count_total{gc=\"%s\"} %d\n",
-                    gcName, gc.getCollectionCount()));
+        GetBatcher getBatcher = (GetBatcher) getServletContext().getAttribute(ApiServlet.GET_BATCHER_ATTRIBUTE);
+        if (getBatcher != null) {
+            out.write(REDIS_GET_BATCHES.header(openMetrics));
+            out.sample(REDIS_GET_BATCHES_SAMPLE, getBatcher.getBatchCount());
+            out.write(REDIS_GET_BATCHED_KEYS.header(openMetrics));
+            out.sample(REDIS_GET_BATCHED_KEYS_SAMPLE, getBatcher.getKeyCount());
         }
-        metrics.append("\n");
 
-        // Application metrics
-        metrics.append("# HELP http_requests_total Total HTTP requests\n");
-        metrics.append("# TYPE http_requests_total counter\n");
-        metrics.append(String.format("http_requests_total{service=\"was-1-tomcat\"} %d\n\n",
-                requestCounter.get()));
+        // Kafka producer metrics
+        appendKafkaMetrics(out, openMetrics);
 
-        metrics.append("# HELP http_errors_total Total HTTP errors\n");
-        metrics.append("# TYPE http_errors_total counter\n");
-        metrics.append(String.format("http_errors_total{service=\"was-1-tomcat\"} %d\n\n",
-                errorCounter.get()));
+        // Span exporter metrics
+        SpanExporter spanExporter = (SpanExporter) getServletContext()
+                .getAttribute(TracingFilter.SPAN_EXPORTER_ATTRIBUTE);
+        if (spanExporter != null) {
+            appendSpanExporterMetrics(out, openMetrics, spanExporter);
+        }
+        TraceSampler sampler = (TraceSampler) getServletContext()
+                .getAttribute(TracingFilter.TRACE_SAMPLER_ATTRIBUTE);
+        if (sampler != null) {
+            appendSamplerMetrics(out, openMetrics, sampler);
+        }
 
-        metrics.append("# HELP http_request_duration_seconds_total Total request duration\n");
-        metrics.append("# TYPE http_request_duration_seconds_total counter\n");
-        metrics.append(String.format("http_request_duration_seconds_total{service=\"was-1-tomcat\"} %.3f\n\n",
-                requestDurationTotal.get() / 1000.0));
+        RateLimiter rateLimiter = (RateLimiter) getServletContext()
+                .getAttribute(RateLimitFilter.RATE_LIMITER_ATTRIBUTE);
+        if (rateLimiter != null) {
+            appendRateLimitMetrics(out, openMetrics, rateLimiter);
+        }
+        ConcurrencyLimiter limiter = (ConcurrencyLimiter) getServletContext()
+                .getAttribute(ConcurrencyLimitFilter.CONCURRENCY_LIMITER_ATTRIBUTE);
+        if (limiter != null) {
+            appendConcurrencyLimitMetrics(out, openMetrics, limiter);
+        }
+        LocalCache localCache = (LocalCache) getServletContext()
+                .getAttribute(AppContextListener.LOCAL_CACHE_ATTRIBUTE);
+        if (localCache != null) {
+            appendLocalCacheMetrics(out, openMetrics, localCache);
+        }
+        NearCache nearCache = (NearCache) getServletContext()
+                .getAttribute(AppContextListener.NEAR_CACHE_ATTRIBUTE);
+        if (nearCache != null) {
+            appendNearCacheMetrics(out, openMetrics, nearCache);
+        }
+        CacheCheckpointer checkpointer = (CacheCheckpointer) getServletContext()
+                .getAttribute(AppContextListener.CACHE_CHECKPOINTER_ATTRIBUTE);
+        if (checkpointer != null) {
+            appendCacheSnapshotMetrics(out, openMetrics, checkpointer, (CacheSnapshot) getServletContext()
+                    .getAttribute(AppContextListener.CACHE_SNAPSHOT_ATTRIBUTE));
+        }
 
         // Uptime
-        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
-        metrics.append("# HELP process_uptime_seconds Process uptime in seconds\n");
-        metrics.append("# TYPE process_uptime_seconds gauge\n");
-        metrics.append(String.format("process_uptime_seconds %.3f\n\n", uptime / 1000.0));
+        out.write(UPTIME.header(openMetrics));
+        out.sampleDecimal(UPTIME_SAMPLE, runtimeMXBean.getUptime(), 3);
 
         // CPU
-        int processors = Runtime.getRuntime().availableProcessors();
-        metrics.append("# HELP process_cpu_available Available processors\n");
-        metrics.append("# TYPE process_cpu_available gauge\n");
-        metrics.append(String.format("process_cpu_available %d\n", processors));
+        out.write(CPU_AVAILABLE.header(openMetrics));
+        out.sample(CPU_AVAILABLE_SAMPLE, Runtime.getRuntime().availableProcessors());
+
+        if (openMetrics) {
+            out.write(OPENMETRICS_EOF);
+        }
+    }
+
+    /**
+     * Percentiles are read from the HDR windows, so they are exact to 3
+     * significant digits rather than interpolated between buckets.
+     */
+    private void writeLatencyWindows(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        JsonWriter json = JsonResponses.open(request, response);
+        json.beginObject();
+        json.name("service").value("was-1-tomcat");
+        json.name("unit").value("ms");
+        json.name("sliceSeconds").value(LatencyWindows.SLICE_SECONDS);
+        json.name("routes").beginArray();
+        for (int i = 0; i < Route.count(); i++) {
+            Route route = Route.byIndex(i);
+            json.beginObject();
+            json.name("route").value(route.template());
+            json.name("1m");
+            latencyWindows.read(route, LatencyWindows.ONE_MINUTE_SLICES, histogram -> writeWindow(json, histogram));
+            json.name("5m");
+            latencyWindows.read(route, LatencyWindows.FIVE_MINUTE_SLICES, histogram -> writeWindow(json, histogram));
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    private static void writeWindow(JsonWriter json, Histogram histogram) throws IOException {
+        json.beginObject();
+        long count = histogram.getTotalCount();
+        json.name("count").value(count);
+        if (count > 0) {
+            for (int i = 0; i < LATENCY_PERCENTILES.length; i++) {
+                json.name(LATENCY_PERCENTILE_NAMES[i])
+                        .value(histogram.getValueAtPercentile(LATENCY_PERCENTILES[i]) / 1000.0);
+            }
+            json.name("max").value(histogram.getMaxValue() / 1000.0);
+        }
+        json.endObject();
+    }
 
-        out.print(metrics.toString());
-        out.flush();
+    private void appendRequestHistograms(ExpositionBuffer out, boolean openMetrics) {
+        out.write(HTTP_SERVER_REQUESTS.header(openMetrics));
+        for (int i = 0; i < requestHistograms.length; i++) {
+            // Series appear once the route/status class has been seen
+            HTTP_SERVER_SAMPLES[i].write(out, requestHistograms[i], 9, true);
+        }
+    }
+
+    private void appendSaturationMetrics(ExpositionBuffer out, boolean openMetrics) {
+        out.write(HTTP_IN_FLIGHT.header(openMetrics));
+        for (int i = 0; i < inFlight.length; i++) {
+            out.sample(HTTP_IN_FLIGHT_SAMPLES[i], inFlight[i].sum());
+        }
+
+        out.write(QUEUE_WAIT.header(openMetrics));
+        QUEUE_WAIT_SAMPLES.write(out, queueWait, 9, false);
+
+        List<TomcatConnectors.Connector> connectors = TomcatConnectors.list();
+        if (connectors.isEmpty()) {
+            return;
+        }
+        out.write(TOMCAT_THREADS_BUSY.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            sampleIfKnown(out, connectorSamples(connector).threadsBusy, connector.threadsBusy());
+        }
+        out.write(TOMCAT_THREADS_CURRENT.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            sampleIfKnown(out, connectorSamples(connector).threadsCurrent, connector.threadsCurrent());
+        }
+        out.write(TOMCAT_THREADS_MAX.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            sampleIfKnown(out, connectorSamples(connector).threadsMax, connector.maxThreads());
+        }
+        out.write(TOMCAT_CONNECTIONS.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            sampleIfKnown(out, connectorSamples(connector).connections, connector.connectionCount());
+        }
+        out.write(TOMCAT_CONNECTIONS_MAX.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            sampleIfKnown(out, connectorSamples(connector).connectionsMax, connector.maxConnections());
+        }
+        out.write(TOMCAT_ACCEPT_COUNT.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            sampleIfKnown(out, connectorSamples(connector).acceptCount, connector.acceptCount());
+        }
+        out.write(TOMCAT_REQUESTS.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            sampleIfKnown(out, connectorSamples(connector).requests, connector.requestCount());
+        }
+        out.write(TOMCAT_ERRORS.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            sampleIfKnown(out, connectorSamples(connector).errors, connector.errorCount());
+        }
+        out.write(TOMCAT_BYTES_SENT.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            sampleIfKnown(out, connectorSamples(connector).bytesSent, connector.bytesSent());
+        }
+        out.write(TOMCAT_BYTES_RECEIVED.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            sampleIfKnown(out, connectorSamples(connector).bytesReceived, connector.bytesReceived());
+        }
+        out.write(TOMCAT_PROCESSING.header(openMetrics));
+        for (TomcatConnectors.Connector connector : connectors) {
+            long millis = connector.processingTimeMillis();
+            if (millis >= 0) {
+                out.sampleDecimal(connectorSamples(connector).processingSeconds, millis, 3);
+            }
+        }
+    }
+
+    private void appendExecutorMetrics(ExpositionBuffer out, boolean openMetrics) {
+        List<TomcatConnectors.Executor> executors = TomcatConnectors.executors();
+        if (executors.isEmpty()) {
+            return;
+        }
+        out.write(EXECUTOR_ACTIVE.header(openMetrics));
+        for (TomcatConnectors.Executor executor : executors) {
+            sampleIfKnown(out, executorSamples(executor).active, executor.activeCount());
+        }
+        out.write(EXECUTOR_TASKS.header(openMetrics));
+        for (TomcatConnectors.Executor executor : executors) {
+            sampleIfKnown(out, executorSamples(executor).tasks, executor.completedTaskCount());
+        }
+        out.write(EXECUTOR_VIRTUAL.header(openMetrics));
+        for (TomcatConnectors.Executor executor : executors) {
+            sampleIfKnown(out, executorSamples(executor).virtual, executor.virtualThreads());
+        }
+
+        // Only VirtualThreadExecutor has the pinning attributes; sites are
+        // "count nanos site" and together cover every recorded event
+        String[][] sites = new String[executors.size()][];
+        out.write(EXECUTOR_PINNED.header(openMetrics));
+        for (int i = 0; i < sites.length; i++) {
+            TomcatConnectors.Executor executor = executors.get(i);
+            ExecutorSamples samples = executorSamples(executor);
+            sites[i] = executor.pinnedSites();
+            for (String site : sites[i]) {
+                int first = site.indexOf(' ');
+                out.sample(samples.site(site.substring(site.indexOf(' ', first + 1) + 1)).count,
+                        Long.parseLong(site.substring(0, first)));
+            }
+        }
+        out.write(EXECUTOR_PINNED_SECONDS.header(openMetrics));
+        for (int i = 0; i < sites.length; i++) {
+            ExecutorSamples samples = executorSamples(executors.get(i));
+            for (String site : sites[i]) {
+                int first = site.indexOf(' ');
+                int second = site.indexOf(' ', first + 1);
+                out.sampleDecimal(samples.site(site.substring(second + 1)).seconds,
+                        Long.parseLong(site.substring(first + 1, second)), 9);
+            }
+        }
+        out.write(EXECUTOR_PINNED_MAX.header(openMetrics));
+        for (TomcatConnectors.Executor executor : executors) {
+            long nanos = executor.pinnedMaxNanos();
+            if (nanos >= 0) {
+                out.sampleDecimal(executorSamples(executor).pinnedMax, nanos, 9);
+            }
+        }
+    }
+
+    private ExecutorSamples executorSamples(TomcatConnectors.Executor executor) {
+        return executorSamples.computeIfAbsent(executor.name, ExecutorSamples::new);
+    }
+
+    private void appendResourceMetrics(ExpositionBuffer out, boolean openMetrics) {
+        out.write(ACCOUNTING_ENABLED.header(openMetrics));
+        out.sample(ACCOUNTING_ENABLED_SAMPLE, resourceAccountingEnabled ? 1 : 0);
+        out.write(ACCOUNTING_ACTIVE.header(openMetrics));
+        out.sample(ACCOUNTING_ACTIVE_SAMPLE, resourceAccountingEnabled && !httpOnVirtualThreads() ? 1 : 0);
+        out.write(ACCOUNTING_OVERHEAD.header(openMetrics));
+        out.sampleDecimal(ACCOUNTING_OVERHEAD_SAMPLE, accountingOverheadNanos.sum(), 9);
+        long measurements = accountingMeasurements.sum();
+        out.write(ACCOUNTING_MEASUREMENTS.header(openMetrics));
+        out.sample(ACCOUNTING_MEASUREMENTS_SAMPLE, measurements);
+
+        // Families that could only ever be empty are left out
+        if (measurements == 0) {
+            return;
+        }
+        out.write(ALLOCATED_BYTES.header(openMetrics));
+        for (int i = 0; i < allocatedBytes.length; i++) {
+            ALLOCATED_BYTES_SAMPLES[i].write(out, allocatedBytes[i], 0, true);
+        }
+        out.write(CPU_TIME.header(openMetrics));
+        for (int i = 0; i < cpuTime.length; i++) {
+            CPU_TIME_SAMPLES[i].write(out, cpuTime[i], 9, true);
+        }
+    }
+
+    private static boolean httpOnVirtualThreads() {
+        TomcatConnectors.Connector connector = TomcatConnectors.http();
+        TomcatConnectors.Executor executor = connector != null ? connector.executor() : null;
+        return executor != null && executor.virtualThreads() == 1;
+    }
+
+    private static void sampleIfKnown(ExpositionBuffer out, byte[] prefix, long value) {
+        if (value >= 0) {
+            out.sample(prefix, value);
+        }
+    }
+
+    private ConnectorSamples connectorSamples(TomcatConnectors.Connector connector) {
+        return connectorSamples.computeIfAbsent(connector.name, ConnectorSamples::new);
+    }
+
+    private void appendSpanExporterMetrics(ExpositionBuffer out, boolean openMetrics, SpanExporter spanExporter) {
+        out.write(TRACING_SPANS.header(openMetrics));
+        out.sample(TRACING_SPANS_RECORDED, spanExporter.getRecordedCount());
+        out.sample(TRACING_SPANS_DROPPED, spanExporter.getDroppedCount());
+        out.sample(TRACING_SPANS_EXPORTED, spanExporter.getExportedCount());
+        out.sample(TRACING_SPANS_EXPORT_FAILED, spanExporter.getExportFailureCount());
+
+        out.write(SPAN_BUFFER.header(openMetrics));
+        out.sample(SPAN_BUFFER_SAMPLE, spanExporter.getQueuedCount());
+        out.write(SPAN_BUFFER_CAPACITY.header(openMetrics));
+        out.sample(SPAN_BUFFER_CAPACITY_SAMPLE, spanExporter.getCapacity());
+    }
+
+    private void appendSamplerMetrics(ExpositionBuffer out, boolean openMetrics, TraceSampler sampler) {
+        out.write(SAMPLING_DECISIONS.header(openMetrics));
+        out.sample(SAMPLED_UPSTREAM, sampler.getUpstreamSampledCount());
+        out.sample(DROPPED_UPSTREAM, sampler.getUpstreamDroppedCount());
+        out.sample(SAMPLED_ROOT, sampler.getRootSampledCount());
+        out.sample(DROPPED_PROBABILITY, sampler.getRootDroppedByProbabilityCount());
+        out.sample(DROPPED_RATE_LIMIT, sampler.getRootDroppedByRateLimitCount());
+    }
+
+    private void appendRateLimitMetrics(ExpositionBuffer out, boolean openMetrics, RateLimiter limiter) {
+        out.write(RATE_LIMIT_REQUESTS.header(openMetrics));
+        for (int i = 0; i < Route.count(); i++) {
+            Route route = Route.byIndex(i);
+            if (limiter.isLimited(route)) {
+                out.sample(RATE_LIMIT_ALLOWED[i], limiter.getAllowedCount(route));
+                out.sample(RATE_LIMIT_LIMITED[i], limiter.getLimitedCount(route));
+            }
+        }
+        out.write(RATE_LIMIT_CLIENTS.header(openMetrics));
+        out.sample(RATE_LIMIT_CLIENTS_SAMPLE, limiter.getActiveClientCount());
+        out.write(RATE_LIMIT_CAPACITY.header(openMetrics));
+        out.sample(RATE_LIMIT_CAPACITY_SAMPLE, limiter.getCapacity());
+        out.write(RATE_LIMIT_EVICTIONS.header(openMetrics));
+        out.sample(RATE_LIMIT_EVICTIONS_IDLE, limiter.getIdleEvictionCount());
+        out.sample(RATE_LIMIT_EVICTIONS_CAPACITY, limiter.getCapacityEvictionCount());
+    }
+
+    private void appendConcurrencyLimitMetrics(ExpositionBuffer out, boolean openMetrics,
+                                               ConcurrencyLimiter limiter) {
+        out.write(CONCURRENCY_LIMIT.header(openMetrics));
+        out.sample(CONCURRENCY_LIMIT_SAMPLE, limiter.getLimit());
+        out.write(CONCURRENCY_IN_FLIGHT.header(openMetrics));
+        out.sample(CONCURRENCY_IN_FLIGHT_SAMPLE, limiter.getInFlight());
+        out.write(CONCURRENCY_REQUESTS.header(openMetrics));
+        out.sample(CONCURRENCY_ACCEPTED, limiter.getAcceptedCount());
+        out.sample(CONCURRENCY_REJECTED, limiter.getRejectedCount());
+        out.write(CONCURRENCY_RTT.header(openMetrics));
+        out.sampleDecimal(CONCURRENCY_RTT_SAMPLE, limiter.getLastRttNanos(), 9);
+        out.sampleDecimal(CONCURRENCY_RTT_BASELINE, limiter.getBaselineRttNanos(), 9);
+    }
+
+    private void appendLocalCacheMetrics(ExpositionBuffer out, boolean openMetrics, LocalCache cache) {
+        out.write(LOCAL_CACHE_REQUESTS.header(openMetrics));
+        out.sample(LOCAL_CACHE_HITS, cache.getHitCount());
+        out.sample(LOCAL_CACHE_MISSES, cache.getMissCount());
+        out.write(LOCAL_CACHE_EVICTIONS.header(openMetrics));
+        out.sample(LOCAL_CACHE_EVICTIONS_SIZE, cache.getSizeEvictionCount());
+        out.sample(LOCAL_CACHE_EVICTIONS_EXPIRED, cache.getExpiredCount());
+        out.write(LOCAL_CACHE_ENTRIES.header(openMetrics));
+        out.sample(LOCAL_CACHE_ENTRIES_SAMPLE, cache.getEntryCount());
+        out.write(LOCAL_CACHE_BYTES.header(openMetrics));
+        out.sample(LOCAL_CACHE_BYTES_USED, cache.getByteCount());
+        out.sample(LOCAL_CACHE_BYTES_MAX, cache.getMaxBytes());
+
+        PeerCacheReplicator replicator = cache.getReplicator();
+        if (replicator != null) {
+            out.write(PEER_CACHE_UPDATES.header(openMetrics));
+            out.sample(PEER_CACHE_SENT, replicator.getSentCount());
+            out.sample(PEER_CACHE_RECEIVED, replicator.getReceivedCount());
+            out.sample(PEER_CACHE_DROPPED, replicator.getDroppedCount());
+            out.sample(PEER_CACHE_FAILED, replicator.getSendFailureCount());
+            out.write(PEER_CACHE_QUEUED.header(openMetrics));
+            out.sample(PEER_CACHE_QUEUED_SAMPLE, replicator.getQueuedCount());
+            out.write(PEER_CACHE_MEMBERS.header(openMetrics));
+            out.sample(PEER_CACHE_MEMBERS_SAMPLE, replicator.getPeerCount());
+        }
+    }
+
+    private void appendNearCacheMetrics(ExpositionBuffer out, boolean openMetrics, NearCache cache) {
+        out.write(NEAR_CACHE_REQUESTS.header(openMetrics));
+        out.sample(NEAR_CACHE_HITS, cache.getHitCount());
+        out.sample(NEAR_CACHE_MISSES, cache.getMissCount());
+        out.write(NEAR_CACHE_EVICTIONS.header(openMetrics));
+        out.sample(NEAR_CACHE_EVICTIONS_SIZE, cache.getSizeEvictionCount());
+        out.sample(NEAR_CACHE_EVICTIONS_EXPIRED, cache.getExpiredCount());
+        out.write(NEAR_CACHE_INVALIDATIONS.header(openMetrics));
+        out.sample(NEAR_CACHE_INVALIDATIONS_SAMPLE, cache.getInvalidationCount());
+        out.write(NEAR_CACHE_REJECTED.header(openMetrics));
+        out.sample(NEAR_CACHE_REJECTED_SAMPLE, cache.getRejectedCount());
+        out.write(NEAR_CACHE_ENTRIES.header(openMetrics));
+        out.sample(NEAR_CACHE_ENTRIES_SAMPLE, cache.getEntryCount());
+        out.write(NEAR_CACHE_BYTES.header(openMetrics));
+        out.sample(NEAR_CACHE_BYTES_USED, cache.getByteCount());
+        out.sample(NEAR_CACHE_BYTES_MAX, cache.getMaxBytes());
+    }
+
+    private void appendCacheSnapshotMetrics(ExpositionBuffer out, boolean openMetrics,
+                                            CacheCheckpointer checkpointer, CacheSnapshot snapshot) {
+        // Without a usable file at startup there is nothing to look up
+        if (snapshot != null) {
+            out.write(CACHE_SNAPSHOT_REQUESTS.header(openMetrics));
+            out.sample(CACHE_SNAPSHOT_HITS, snapshot.getHitCount());
+            out.sample(CACHE_SNAPSHOT_MISSES, snapshot.getMissCount());
+            out.write(CACHE_SNAPSHOT_SKIPPED.header(openMetrics));
+            out.sample(CACHE_SNAPSHOT_SKIPPED_EXPIRED, snapshot.getExpiredCount());
+            out.sample(CACHE_SNAPSHOT_SKIPPED_CORRUPT, snapshot.getCorruptCount());
+        }
+        out.write(CACHE_SNAPSHOT_ENTRIES.header(openMetrics));
+        out.sample(CACHE_SNAPSHOT_ENTRIES_SAMPLE, snapshot != null ? snapshot.getEntryCount() : 0);
+        out.write(CACHE_CHECKPOINTS.header(openMetrics));
+        out.sample(CACHE_CHECKPOINTS_WRITTEN, checkpointer.getWrittenCount());
+        out.sample(CACHE_CHECKPOINTS_FAILED, checkpointer.getFailedCount());
+        out.write(CACHE_CHECKPOINT_ENTRIES.header(openMetrics));
+        out.sample(CACHE_CHECKPOINT_ENTRIES_SAMPLE, checkpointer.getLastEntryCount());
+        out.write(CACHE_CHECKPOINT_BYTES.header(openMetrics));
+        out.sample(CACHE_CHECKPOINT_BYTES_SAMPLE, checkpointer.getLastByteCount());
+        out.write(CACHE_CHECKPOINT_DURATION.header(openMetrics));
+        out.sampleDecimal(CACHE_CHECKPOINT_DURATION_SAMPLE, checkpointer.getLastDurationNanos(), 9);
+    }
+
+    private void appendKafkaMetrics(ExpositionBuffer out, boolean openMetrics) {
+        out.write(KAFKA_IN_FLIGHT.header(openMetrics));
+        out.sample(KAFKA_IN_FLIGHT_SAMPLE, kafkaSendsInFlight.get());
+
+        out.write(KAFKA_SENDS.header(openMetrics));
+        out.sample(KAFKA_SENDS_ACKED, kafkaSendsAcked.get());
+        out.sample(KAFKA_SENDS_FAILED, kafkaSendsFailed.get());
+        out.sample(KAFKA_SENDS_REJECTED, kafkaSendsRejected.get());
+
+        KafkaGauge[] gauges = kafkaGauges();
+        if (gauges == null) {
+            return;
+        }
+        for (KafkaGauge gauge : gauges) {
+            Object value = gauge.metric.metricValue();
+            if (!(value instanceof Number)) {
+                continue;
+            }
+            out.write(gauge.family.header(openMetrics));
+            out.sampleDouble(gauge.sample, ((Number) value).doubleValue());
+        }
+    }
+
+    private KafkaGauge[] kafkaGauges() {
+        KafkaGauge[] gauges = kafkaGauges;
+        if (gauges != null) {
+            return gauges;
+        }
+        KafkaProducer<?, ?> kafkaProducer = (KafkaProducer<?, ?>) getServletContext()
+                .getAttribute(AppContextListener.KAFKA_PRODUCER_ATTRIBUTE);
+        if (kafkaProducer == null) {
+            return null;
+        }
+
+        // The producer lives as long as the application, so its Metric objects can be kept
+        int found = 0;
+        KafkaGauge[] resolved = new KafkaGauge[KAFKA_PRODUCER_METRICS.length];
+        for (String name : KAFKA_PRODUCER_METRICS) {
+            Metric metric = KafkaProducerFactory.findProducerMetric(kafkaProducer, name);
+            if (metric != null) {
+                resolved[found++] = new KafkaGauge(name, metric);
+            }
+        }
+        gauges = Arrays.copyOf(resolved, found);
+        kafkaGauges = gauges;
+        return gauges;
+    }
+
+    private void appendRedisPoolMetrics(ExpositionBuffer out, boolean openMetrics, Map<String, ConnectionPool> pools) {
+        out.write(REDIS_CONNECTIONS.header(openMetrics));
+        for (Map.Entry<String, ConnectionPool> node : pools.entrySet()) {
+            RedisNodeSamples samples = redisNodeSamples(node.getKey());
+            out.sample(samples.active, node.getValue().getNumActive());
+            out.sample(samples.idle, node.getValue().getNumIdle());
+        }
+
+        out.write(REDIS_WAITERS.header(openMetrics));
+        for (Map.Entry<String, ConnectionPool> node : pools.entrySet()) {
+            out.sample(redisNodeSamples(node.getKey()).waiters, node.getValue().getNumWaiters());
+        }
+
+        out.write(REDIS_BORROWED.header(openMetrics));
+        for (Map.Entry<String, ConnectionPool> node : pools.entrySet()) {
+            out.sample(redisNodeSamples(node.getKey()).borrowed, node.getValue().getBorrowedCount());
+        }
+
+        out.write(REDIS_CREATED.header(openMetrics));
+        for (Map.Entry<String, ConnectionPool> node : pools.entrySet()) {
+            out.sample(redisNodeSamples(node.getKey()).created, node.getValue().getCreatedCount());
+        }
+
+        out.write(REDIS_BORROW_WAIT.header(openMetrics));
+        for (Map.Entry<String, ConnectionPool> node : pools.entrySet()) {
+            RedisNodeSamples samples = redisNodeSamples(node.getKey());
+            ConnectionPool pool = node.getValue();
+            out.sampleDecimal(samples.waitMean, pool.getMeanBorrowWaitDuration().toNanos(), 9);
+            out.sampleDecimal(samples.waitMax, pool.getMaxBorrowWaitDuration().toNanos(), 9);
+        }
+    }
+
+    private RedisNodeSamples redisNodeSamples(String node) {
+        return redisNodeSamples.computeIfAbsent(node, RedisNodeSamples::new);
+    }
+
+    /**
+     * Pre-encoded sample names of one labelled histogram series.
+     */
+    private static final class HistogramSamples {
+        final byte[][] buckets;
+        final byte[] sum;
+        final byte[] count;
+
+        HistogramSamples(String name, String labels, String[] bucketLabels) {
+            this.buckets = new byte[bucketLabels.length][];
+            for (int b = 0; b < bucketLabels.length; b++) {
+                buckets[b] = sample(name + "_bucket{" + labels + ",le=\"" + bucketLabels[b] + "\"}");
+            }
+            this.sum = sample(name + "_sum{" + labels + "}");
+            this.count = sample(name + "_count{" + labels + "}");
+        }
+
+        /**
+         * Writes the series; sumScale shifts the recorded sum into the
+         * exported unit (9 for nanoseconds to seconds, 0 for bytes).
+         */
+        void write(ExpositionBuffer out, BucketHistogram histogram, int sumScale, boolean skipEmpty) {
+            long[] counts = out.counts(buckets.length);
+            long total = histogram.cumulativeCounts(counts);
+            if (total == 0 && skipEmpty) {
+                return;
+            }
+            for (int b = 0; b < buckets.length; b++) {
+                out.sample(buckets[b], counts[b]);
+            }
+            out.sampleDecimal(sum, histogram.getSum(), sumScale);
+            out.sample(count, total);
+        }
+    }
+
+    private static final class GcSamples {
+        final GarbageCollectorMXBean bean;
+        final byte[] seconds;
+        final byte[] count;
+
+        GcSamples(GarbageCollectorMXBean bean) {
+            String gcName = bean.getName().replace(" ", "_").toLowerCase();
+            this.bean = bean;
+            this.seconds = sample("jvm_gc_collection_seconds_total{gc=\"" + gcName + "\"}");
+            this.count = sample("jvm_gc_collection_count_total{gc=\"" + gcName + "\"}");
+        }
+    }
+
+    private static final class RedisNodeSamples {
+        final byte[] active;
+        final byte[] idle;
+        final byte[] waiters;
+        final byte[] borrowed;
+        final byte[] created;
+        final byte[] waitMean;
+        final byte[] waitMax;
+
+        RedisNodeSamples(String node) {
+            String label = "node=\"" + node + "\"";
+            this.active = sample("redis_pool_connections{" + label + ",state=\"active\"}");
+            this.idle = sample("redis_pool_connections{" + label + ",state=\"idle\"}");
+            this.waiters = sample("redis_pool_waiters{" + label + "}");
+            this.borrowed = sample("redis_pool_borrowed_total{" + label + "}");
+            this.created = sample("redis_pool_created_total{" + label + "}");
+            this.waitMean = sample("redis_pool_borrow_wait_seconds{" + label + ",stat=\"mean\"}");
+            this.waitMax = sample("redis_pool_borrow_wait_seconds{" + label + ",stat=\"max\"}");
+        }
+    }
+
+    private static final class ConnectorSamples {
+        final byte[] threadsBusy;
+        final byte[] threadsCurrent;
+        final byte[] threadsMax;
+        final byte[] connections;
+        final byte[] connectionsMax;
+        final byte[] acceptCount;
+        final byte[] requests;
+        final byte[] errors;
+        final byte[] bytesSent;
+        final byte[] bytesReceived;
+        final byte[] processingSeconds;
+
+        ConnectorSamples(String connector) {
+            String label = "{connector=\"" + connector + "\"}";
+            this.threadsBusy = sample("tomcat_threads_busy" + label);
+            this.threadsCurrent = sample("tomcat_threads_current" + label);
+            this.threadsMax = sample("tomcat_threads_max" + label);
+            this.connections = sample("tomcat_connections_current" + label);
+            this.connectionsMax = sample("tomcat_connections_max" + label);
+            this.acceptCount = sample("tomcat_accept_count" + label);
+            this.requests = sample("tomcat_requests_total" + label);
+            this.errors = sample("tomcat_errors_total" + label);
+            this.bytesSent = sample("tomcat_bytes_sent_total" + label);
+            this.bytesReceived = sample("tomcat_bytes_received_total" + label);
+            this.processingSeconds = sample("tomcat_processing_seconds_total" + label);
+        }
+    }
+
+    private static final class ExecutorSamples {
+        final String label;
+        final byte[] active;
+        final byte[] tasks;
+        final byte[] virtual;
+        final byte[] pinnedMax;
+        // Bounded by the executor, which keeps at most 32 sites plus "other"
+        final Map<String, SiteSamples> siteSamples = new ConcurrentHashMap<>();
+
+        ExecutorSamples(String executor) {
+            this.label = "executor=\"" + executor + "\"";
+            this.active = sample("tomcat_executor_active_tasks{" + label + "}");
+            this.tasks = sample("tomcat_executor_tasks_total{" + label + "}");
+            this.virtual = sample("tomcat_executor_virtual_threads{" + label + "}");
+            this.pinnedMax = sample("tomcat_executor_pinned_max_seconds{" + label + "}");
+        }
+
+        SiteSamples site(String site) {
+            return siteSamples.computeIfAbsent(site, name -> new SiteSamples(label, name));
+        }
+    }
+
+    private static final class SiteSamples {
+        final byte[] count;
+        final byte[] seconds;
+
+        SiteSamples(String executorLabel, String site) {
+            String labels = "{" + executorLabel + ",site=\"" + site.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+            this.count = sample("tomcat_executor_pinned_total" + labels);
+            this.seconds = sample("tomcat_executor_pinned_seconds_total" + labels);
+        }
+    }
+
+    private static final class KafkaGauge {
+        final Metric metric;
+        final MetricFamily family;
+        final byte[] sample;
+
+        KafkaGauge(String name, Metric metric) {
+            String metricName = "kafka_producer_" + name.replace('-', '_');
+            this.metric = metric;
+            this.family = new MetricFamily(metricName, "gauge", metric.metricName().description());
+            this.sample = sample(metricName);
+        }
     }
 }
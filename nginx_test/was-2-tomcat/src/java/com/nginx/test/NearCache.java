@@ -0,0 +1,440 @@
+package com.nginx.test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Off-heap near-cache in front of Redis for /api/cache/*
+ *
+ * Keys and values are kept in direct ByteBuffer slabs, one per segment,
+ * each written as a ring: new entries are appended at the tail and the
+ * oldest entries are dropped from the head to make room, so eviction is
+ * FIFO and memory is exactly the configured budget. A GB-sized cache is
+ * therefore a handful of objects to the GC. Each segment's index is a
+ * pair of primitive arrays (entry offset, key hash) probed the same way
+ * as RateLimiter's stripes: only the few slots after the home slot are
+ * looked at, and when they are all taken the oldest entry among them is
+ * dropped.
+ *
+ * Entries expire ttlMs after they were written. Redis writes from any
+ * client reach the cache through invalidate(), driven by keyspace
+ * notifications (see KeyspaceInvalidations). A value read from Redis is
+ * only filled in if no invalidation hit its segment since the read
+ * started, so a notification that overtakes a slow read is not undone.
+ *
+ * Entry layout: key hash, key length, value length, expiry (epoch ms),
+ * then the UTF-8 key and value. A key length of -1 marks padding up to
+ * the end of the slab.
+ */
+public class NearCache {
+
+    private static final int PROBE_LIMIT = 8;
+    private static final int HEADER_BYTES = 20;
+    private static final int PADDING = -1;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long ttlMs;
+    private final long maxBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sizeEvictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param segments          number of independently locked segments (power of two)
+     * @param maxBytes          off-heap bytes across all segments
+     * @param averageEntryBytes expected key + value size, which sizes the index
+     * @param ttlMs             time an entry is served after it was written
+     */
+    public NearCache(int segments, long maxBytes, int averageEntryBytes, long ttlMs) {
+        long segmentBytes = maxBytes / Math.max(1, segments);
+        if (Integer.bitCount(segments) != 1 || segments > 1 << 16
+                || segmentBytes < 4096 || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segments must be a power of two up to 65536, with 4KB to 2GB "
+                    + "each: " + segments + " segments for " + maxBytes + " bytes");
+        }
+        long expectedEntries = segmentBytes / (HEADER_BYTES + Math.max(1, averageEntryBytes));
+        int slots = Integer.highestOneBit((int) Math.min(1 << 30, Math.max(PROBE_LIMIT, expectedEntries * 2)) * 2 - 1);
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment((int) segmentBytes, slots);
+        }
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segments);
+        this.ttlMs = ttlMs;
+        this.maxBytes = segmentBytes * segments;
+    }
+
+    /**
+     * The cached value, or null on a miss.
+     */
+    public String get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        byte[] value = segment(hash).get(keyBytes, hash, System.currentTimeMillis());
+        if (value == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * To be taken before reading the key from Redis and handed to fill().
+     */
+    public long fillToken(String key) {
+        return segment(hash(key)).generation;
+    }
+
+    /**
+     * Caches a value read from Redis, unless the key's segment saw an
+     * invalidation since fillToken() was taken.
+     */
+    public void fill(String key, String value, long token) {
+        int hash = hash(key);
+        store(segment(hash), key, value, hash, token);
+    }
+
+    /**
+     * Caches a value just written to Redis.
+     */
+    public void write(String key, String value) {
+        int hash = hash(key);
+        store(segment(hash), key, value, hash, -1);
+    }
+
+    public void invalidate(String key) {
+        int hash = hash(key);
+        segment(hash).remove(key.getBytes(StandardCharsets.UTF_8), hash);
+        invalidations.increment();
+    }
+
+    /**
+     * Drops every entry, e.g. when invalidations may have been missed.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Hands every live entry to visitor, one segment at a time under its
+     * lock, until visit() returns false. For CacheSnapshot.
+     */
+    void forEach(EntryVisitor visitor) {
+        long now = System.currentTimeMillis();
+        for (Segment segment : segments) {
+            if (!segment.forEach(visitor, now)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sees the key at keyPosition in source and the value right after it;
+     * source is only valid during the call.
+     */
+    interface EntryVisitor {
+        boolean visit(ByteBuffer source, int keyPosition, int keyLength, int valueLength, long expiresAt, int hash);
+    }
+
+    private void store(Segment segment, String key, String value, int hash, long token) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        if (!segment.put(keyBytes, valueBytes, hash, System.currentTimeMillis() + ttlMs, token)) {
+            rejected.increment();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getSizeEvictionCount() {
+        return sizeEvictions.sum();
+    }
+
+    public long getExpiredCount() {
+        return expirations.sum();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    /**
+     * Values not cached because they were larger than a quarter of a
+     * segment, or raced with an invalidation.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getEntryCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.entries;
+            }
+        }
+        return count;
+    }
+
+    public long getByteCount() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.tail - segment.head;
+            }
+        }
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * String.hashCode() finished with a murmur mix; the high bits pick the
+     * segment and the low bits the home slot. 0 is reserved for empty slots.
+     */
+    static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h == 0 ? 1 : h;
+    }
+
+    private Segment segment(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private final class Segment {
+        private final ByteBuffer slab;
+        // For relative bulk get/put; Java 11 has no absolute ones
+        private final ByteBuffer view;
+        private final int capacity;
+        private final long[] offsets;
+        private final int[] hashes;
+        private final int slotMask;
+
+        // Logical positions: they only grow, the slab index is position % capacity
+        private long head;
+        private long tail;
+        private int entries;
+        // Bumped by every invalidation, see fill()
+        private volatile long generation;
+
+        Segment(int capacity, int slots) {
+            this.slab = ByteBuffer.allocateDirect(capacity);
+            this.view = slab.duplicate();
+            this.capacity = capacity;
+            this.offsets = new long[slots];
+            this.hashes = new int[slots];
+            this.slotMask = slots - 1;
+        }
+
+        synchronized byte[] get(byte[] key, int hash, long now) {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return null;
+            }
+            int position = position(offsets[slot] - 1);
+            if (slab.getLong(position + 12) <= now) {
+                clear(slot);
+                expirations.increment();
+                return null;
+            }
+            byte[] value = new byte[slab.getInt(position + 8)];
+            read(position + HEADER_BYTES + key.length, value);
+            return value;
+        }
+
+        synchronized boolean put(byte[] key, byte[] value, int hash, long expiresAt, long token) {
+            if (token >= 0 && token != generation) {
+                return false;
+            }
+            int existing = find(key, hash);
+            if (existing >= 0) {
+                clear(existing);
+            }
+            int size = HEADER_BYTES + key.length + value.length;
+            if (size > capacity / 4) {
+                return false;
+            }
+
+            // An entry never wraps: if it does not fit before the end of
+            // the slab, the rest of the slab becomes padding
+            int remaining = capacity - position(tail);
+            int needed = remaining < size ? remaining + size : size;
+            evictUntil(tail + needed - capacity);
+            if (remaining < size) {
+                if (remaining >= HEADER_BYTES) {
+                    slab.putInt(position(tail) + 4, PADDING);
+                }
+                tail += remaining;
+            }
+
+            long offset = tail;
+            int position = position(offset);
+            slab.putInt(position, hash);
+            slab.putInt(position + 4, key.length);
+            slab.putInt(position + 8, value.length);
+            slab.putLong(position + 12, expiresAt);
+            write(position + HEADER_BYTES, key);
+            write(position + HEADER_BYTES + key.length, value);
+            tail += size;
+
+            int slot = freeSlot(hash);
+            offsets[slot] = offset + 1;
+            hashes[slot] = hash;
+            entries++;
+            return true;
+        }
+
+        synchronized void remove(byte[] key, int hash) {
+            generation++;
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                clear(slot);
+            }
+        }
+
+        synchronized void clear() {
+            generation++;
+            Arrays.fill(offsets, 0);
+            Arrays.fill(hashes, 0);
+            entries = 0;
+            head = tail;
+        }
+
+        synchronized boolean forEach(EntryVisitor visitor, long now) {
+            for (int slot = 0; slot <= slotMask; slot++) {
+                if (offsets[slot] == 0) {
+                    continue;
+                }
+                int position = position(offsets[slot] - 1);
+                long expiresAt = slab.getLong(position + 12);
+                if (expiresAt <= now) {
+                    continue;
+                }
+                boolean more = visitor.visit(view, position + HEADER_BYTES, slab.getInt(position + 4),
+                        slab.getInt(position + 8), expiresAt, hashes[slot]);
+                // The visitor moves position and limit
+                view.clear();
+                if (!more) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int find(byte[] key, int hash) {
+            int home = hash & slotMask;
+            for (int i = 0; i < PROBE_LIMIT; i++) {
+                int slot = (home + i) & slotMask;
+                if (hashes[slot] == hash && offsets[slot] != 0 && keyEquals(position(offsets[slot] - 1), key)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * An empty probed slot, else the one holding the oldest entry,
+         * which is dropped.
+         */
+        private int freeSlot(int hash) {
+            int home = hash & slotMask;
+            int oldest = home;
+            for (int i = 0; i < PROBE_LIMIT; i++) {
+                int slot = (home + i) & slotMask;
+                if (offsets[slot] == 0) {
+                    return slot;
+                }
+                if (offsets[slot] < offsets[oldest]) {
+                    oldest = slot;
+                }
+            }
+            clear(oldest);
+            sizeEvictions.increment();
+            return oldest;
+        }
+
+        /**
+         * Drops entries from the head until the head is at least limit,
+         * taking each one still indexed out of the index.
+         */
+        private void evictUntil(long limit) {
+            while (head < limit && head < tail) {
+                int position = position(head);
+                int remaining = capacity - position;
+                if (remaining < HEADER_BYTES || slab.getInt(position + 4) == PADDING) {
+                    head += remaining;
+                    continue;
+                }
+                int hash = slab.getInt(position);
+                int home = hash & slotMask;
+                for (int i = 0; i < PROBE_LIMIT; i++) {
+                    int slot = (home + i) & slotMask;
+                    if (offsets[slot] == head + 1) {
+                        clear(slot);
+                        sizeEvictions.increment();
+                        break;
+                    }
+                }
+                head += HEADER_BYTES + slab.getInt(position + 4) + slab.getInt(position + 8);
+            }
+            if (head > tail) {
+                head = tail;
+            }
+        }
+
+        private void clear(int slot) {
+            offsets[slot] = 0;
+            hashes[slot] = 0;
+            entries--;
+        }
+
+        private boolean keyEquals(int position, byte[] key) {
+            if (slab.getInt(position + 4) != key.length) {
+                return false;
+            }
+            int start = position + HEADER_BYTES;
+            for (int i = 0; i < key.length; i++) {
+                if (slab.get(start + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void read(int position, byte[] into) {
+            view.position(position);
+            view.get(into);
+        }
+
+        private void write(int position, byte[] from) {
+            view.position(position);
+            view.put(from);
+        }
+
+        private int position(long offset) {
+            return (int) (offset % capacity);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.nginx.test;
+
+import org.apache.catalina.tribes.ByteMessage;
+import org.apache.catalina.tribes.Channel;
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelListener;
+import org.apache.catalina.tribes.Member;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends LocalCache writes and invalidations to the other Tomcat node over
+ * the cluster's Tribes channel, and applies the ones it sends
+ *
+ * Request threads only put the update on a bounded queue; one sender
+ * thread drains it and ships up to maxBatch updates per message. When the
+ * queue is full the update is dropped and counted: the peer then serves
+ * its older copy until the entry expires. Messages go out as raw
+ * ByteMessages, so Tribes neither serializes nor deserializes them and
+ * SimpleTcpCluster (which only accepts ClusterMessages) ignores them.
+ *
+ * Message layout: MAGIC, update count, then per update the op byte, key,
+ * version and, for writes, the value as length-prefixed UTF-8.
+ */
+public class PeerCacheReplicator implements ChannelListener {
+
+    private static final int MAGIC = 0x4E54_4331; // "NTC1"
+    private static final byte OP_WRITE = 1;
+    private static final byte OP_INVALIDATE = 2;
+
+    private static final int SEND_OPTIONS = Channel.SEND_OPTIONS_BYTE_MESSAGE | Channel.SEND_OPTIONS_ASYNCHRONOUS;
+
+    private final Channel channel;
+    private final LocalCache cache;
+    private final BlockingQueue<Update> queue;
+    private final int maxBatch;
+    private final Thread sender;
+    private volatile boolean running = true;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+
+    public PeerCacheReplicator(Channel channel, LocalCache cache, int queueSize, int maxBatch) {
+        this.channel = channel;
+        this.cache = cache;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.maxBatch = maxBatch;
+        this.sender = new Thread(this::sendLoop, "peer-cache-sender");
+        this.sender.setDaemon(true);
+    }
+
+    public void start() {
+        channel.addChannelListener(this);
+        cache.setReplicator(this);
+        sender.start();
+    }
+
+    public void stop() {
+        cache.setReplicator(null);
+        channel.removeChannelListener(this);
+        running = false;
+        sender.interrupt();
+        try {
+            sender.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void replicateWrite(String key, String value, long version) {
+        offer(new Update(OP_WRITE, key, value, version));
+    }
+
+    void replicateInvalidate(String key, long version) {
+        offer(new Update(OP_INVALIDATE, key, null, version));
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getSendFailureCount() {
+        return sendFailures.sum();
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public int getPeerCount() {
+        return channel.getMembers().length;
+    }
+
+    private void offer(Update update) {
+        if (!queue.offer(update)) {
+            dropped.increment();
+        }
+    }
+
+    private void sendLoop() {
+        List<Update> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            try {
+                Update first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                send(batch);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(List<Update> batch) {
+        Member[] peers = channel.getMembers();
+        if (peers.length == 0) {
+            // Nobody to tell; a peer that joins later starts empty anyway
+            return;
+        }
+        try {
+            channel.send(peers, new ByteMessage(encode(batch)), SEND_OPTIONS);
+            sent.add(batch.size());
+        } catch (ChannelException | IOException e) {
+            sendFailures.add(batch.size());
+            System.err.println("[PeerCacheReplicator] Failed to send " + batch.size() + " updates: " + e.getMessage());
+        }
+    }
+
+    private static byte[] encode(List<Update> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * batch.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(batch.size());
+        for (Update update : batch) {
+            out.writeByte(update.op);
+            writeString(out, update.key);
+            out.writeLong(update.version);
+            if (update.op == OP_WRITE) {
+                writeString(out, update.value);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Truncated string of length " + length);
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean accept(Serializable msg, Member sender) {
+        if (!(msg instanceof ByteMessage)) {
+            return false;
+        }
+        byte[] bytes = ((ByteMessage) msg).getMessage();
+        return bytes != null && bytes.length >= 8
+                && ((bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF)) == MAGIC;
+    }
+
+    /**
+     * Runs on a Tribes receiver thread.
+     */
+    @Override
+    public void messageReceived(Serializable msg, Member sender) {
+        byte[] bytes = ((ByteMessage) msg).getMessage();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 4, bytes.length - 4))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte op = in.readByte();
+                String key = readString(in);
+                long version = in.readLong();
+                if (op == OP_WRITE) {
+                    cache.applyPeerWrite(key, readString(in), version);
+                } else if (op == OP_INVALIDATE) {
+                    cache.applyPeerInvalidate(key, version);
+                } else {
+                    throw new IOException("Unknown op " + op);
+                }
+                received.increment();
+            }
+        } catch (IOException e) {
+            System.err.println("[PeerCacheReplicator] Dropping message from " + sender.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static final class Update {
+        final byte op;
+        final String key;
+        final String value;
+        final long version;
+
+        Update(byte op, String key, String value, long version) {
+            this.op = op;
+            this.key = key;
+            this.value = value;
+            this.version = version;
+        }
+    }
+}
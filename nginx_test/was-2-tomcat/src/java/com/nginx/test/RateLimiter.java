@@ -0,0 +1,231 @@
+package com.nginx.test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-client, per-route token buckets for RateLimitFilter
+ *
+ * Each bucket is a single "theoretical arrival time" (GCRA, as in
+ * TraceSampler), so refill is lazy: nothing runs between requests. Buckets
+ * live in a fixed-size table split into independently locked stripes.
+ * A client is found by hashing its address characters together with the
+ * route, and only the few slots after its home slot are probed, which
+ * needs no tombstones: a slot whose client has been idle longer than the
+ * idle timeout is simply reused, and when all probed slots are busy the
+ * least recently seen one is evicted. Memory is allocated once up front
+ * and checking a request allocates nothing.
+ */
+public class RateLimiter {
+
+    private static final int PROBE_LIMIT = 8;
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final int slotMask;
+    private final long idleNanos;
+
+    // Per route; 0 interval means the route is not limited
+    private final long[] intervalNanos = new long[Route.count()];
+    private final long[] burstNanos = new long[Route.count()];
+
+    private final LongAdder[] allowed = new LongAdder[Route.count()];
+    private final LongAdder[] limited = new LongAdder[Route.count()];
+    private final LongAdder idleEvictions = new LongAdder();
+    private final LongAdder capacityEvictions = new LongAdder();
+
+    /**
+     * @param stripes        number of independently locked stripes (power of two)
+     * @param slotsPerStripe clients tracked per stripe (power of two)
+     * @param idleMs         idle time after which a client's slot may be reused
+     */
+    public RateLimiter(int stripes, int slotsPerStripe, long idleMs) {
+        if (Integer.bitCount(stripes) != 1 || Integer.bitCount(slotsPerStripe) != 1
+                || slotsPerStripe < PROBE_LIMIT) {
+            throw new IllegalArgumentException("stripes and slotsPerStripe must be powers of two, slotsPerStripe >= "
+                    + PROBE_LIMIT + ": " + stripes + ", " + slotsPerStripe);
+        }
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(slotsPerStripe);
+        }
+        this.stripeMask = stripes - 1;
+        this.slotMask = slotsPerStripe - 1;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+        for (int i = 0; i < Route.count(); i++) {
+            allowed[i] = new LongAdder();
+            limited[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Sets the sustained rate and burst size for a route; a rate of 0
+     * disables limiting for it.
+     */
+    public void setLimit(Route route, double ratePerSecond, int burst) {
+        int index = route.ordinal();
+        if (ratePerSecond <= 0) {
+            intervalNanos[index] = 0;
+            burstNanos[index] = 0;
+            return;
+        }
+        long interval = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        intervalNanos[index] = interval;
+        burstNanos[index] = interval * Math.max(1, burst);
+    }
+
+    public boolean isLimited(Route route) {
+        return intervalNanos[route.ordinal()] > 0;
+    }
+
+    /**
+     * Takes a token for the client on this route. Returns 0 when the
+     * request may proceed, otherwise the nanoseconds until a token is
+     * available again.
+     */
+    public long acquire(Route route, CharSequence client, int start, int end) {
+        int index = route.ordinal();
+        long interval = intervalNanos[index];
+        if (interval == 0) {
+            allowed[index].increment();
+            return 0;
+        }
+
+        long key = key(route, client, start, end);
+        long now = System.nanoTime();
+        Stripe stripe = stripes[(int) (key >>> 32) & stripeMask];
+        long wait;
+        synchronized (stripe) {
+            int slot = stripe.find(key, (int) key & slotMask, now);
+            // A new client, or one taking over a slot, starts with a full bucket
+            long arrival = stripe.keys[slot] == key ? stripe.arrivals[slot] : now;
+            stripe.keys[slot] = key;
+            stripe.lastSeen[slot] = now;
+
+            long next = Math.max(arrival, now) + interval;
+            wait = next - now - burstNanos[index];
+            if (wait <= 0) {
+                stripe.arrivals[slot] = next;
+            }
+        }
+
+        if (wait <= 0) {
+            allowed[index].increment();
+            return 0;
+        }
+        limited[index].increment();
+        return wait;
+    }
+
+    /**
+     * 64-bit FNV-1a over the address characters, salted with the route and
+     * finished with a murmur mix. 0 marks an empty slot.
+     */
+    private static long key(Route route, CharSequence client, int start, int end) {
+        long hash = 0xcbf29ce484222325L ^ route.ordinal();
+        for (int i = start; i < end; i++) {
+            hash ^= client.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    private final class Stripe {
+        final long[] keys;
+        final long[] arrivals;
+        final long[] lastSeen;
+
+        Stripe(int slots) {
+            keys = new long[slots];
+            arrivals = new long[slots];
+            lastSeen = new long[slots];
+        }
+
+        /**
+         * Returns the slot holding key, or the slot it should take over:
+         * an empty one, else one idle past the timeout, else the least
+         * recently seen of the probed slots.
+         */
+        int find(long key, int home, long now) {
+            int free = -1;
+            boolean freeWasIdle = false;
+            int oldest = home;
+            for (int i = 0; i < PROBE_LIMIT; i++) {
+                int slot = (home + i) & slotMask;
+                long slotKey = keys[slot];
+                if (slotKey == key) {
+                    return slot;
+                }
+                if (free < 0) {
+                    if (slotKey == 0) {
+                        free = slot;
+                    } else if (now - lastSeen[slot] > idleNanos) {
+                        free = slot;
+                        freeWasIdle = true;
+                    }
+                }
+                if (lastSeen[slot] - lastSeen[oldest] < 0) {
+                    oldest = slot;
+                }
+            }
+            if (free >= 0) {
+                if (freeWasIdle) {
+                    idleEvictions.increment();
+                }
+                return free;
+            }
+            capacityEvictions.increment();
+            return oldest;
+        }
+
+        int active(long now) {
+            int count = 0;
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != 0 && now - lastSeen[slot] <= idleNanos) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    public long getAllowedCount(Route route) {
+        return allowed[route.ordinal()].sum();
+    }
+
+    public long getLimitedCount(Route route) {
+        return limited[route.ordinal()].sum();
+    }
+
+    public long getIdleEvictionCount() {
+        return idleEvictions.sum();
+    }
+
+    public long getCapacityEvictionCount() {
+        return capacityEvictions.sum();
+    }
+
+    /**
+     * Client/route buckets seen within the idle timeout. Walks the whole
+     * table, so it is meant for scrapes rather than request threads.
+     */
+    public int getActiveClientCount() {
+        long now = System.nanoTime();
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.active(now);
+            }
+        }
+        return count;
+    }
+
+    public int getCapacity() {
+        return stripes.length * (slotMask + 1);
+    }
+}
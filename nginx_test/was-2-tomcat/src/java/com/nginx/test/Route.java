@@ -0,0 +1,69 @@
+package com.nginx.test;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Route templates used as the "route" label on request metrics
+ * Keeps label cardinality fixed: cache keys and unknown paths never
+ * become label values.
+ */
+public enum Route {
+
+    HEALTH("/health"),
+    METRICS("/metrics"),
+    API_INFO("/api/info"),
+    API_CACHE("/api/cache/{key}"),
+    API_CACHE_MULTI("/api/cache"),
+    API_MESSAGE("/api/message"),
+    OTHER("other");
+
+    private static final Route[] VALUES = values();
+
+    private final String template;
+
+    Route(String template) {
+        this.template = template;
+    }
+
+    public String template() {
+        return template;
+    }
+
+    public static int count() {
+        return VALUES.length;
+    }
+
+    public static Route byIndex(int index) {
+        return VALUES[index];
+    }
+
+    /**
+     * Resolves the template from the servlet mapping (see web.xml) without
+     * allocating.
+     */
+    public static Route of(HttpServletRequest request) {
+        String servletPath = request.getServletPath();
+        if (servletPath.startsWith("/health")) {
+            return HEALTH;
+        }
+        if (servletPath.startsWith("/metrics")) {
+            return METRICS;
+        }
+        if ("/api".equals(servletPath)) {
+            String pathInfo = request.getPathInfo();
+            if (pathInfo == null || pathInfo.equals("/") || pathInfo.equals("/info")) {
+                return API_INFO;
+            }
+            if (pathInfo.startsWith("/cache/")) {
+                return API_CACHE;
+            }
+            if (pathInfo.equals("/cache")) {
+                return API_CACHE_MULTI;
+            }
+            if (pathInfo.equals("/message")) {
+                return API_MESSAGE;
+            }
+        }
+        return OTHER;
+    }
+}
@@ -0,0 +1,107 @@
+package com.nginx.test;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Head sampler for TracingFilter
+ *
+ * Upstream decisions (traceparent flags, X-B3-Sampled) are always honored.
+ * New root traces are sampled with a fixed probability and then capped by
+ * a token bucket, so a traffic spike cannot multiply tracing cost. The
+ * bucket is a single CAS on a "theoretical arrival time" (GCRA), which is
+ * equivalent to a bucket of maxPerSecond tokens refilled continuously.
+ */
+public class TraceSampler {
+
+    private final double probability;
+    private final long intervalNanos;
+    private final long burstNanos;
+    // Starts one burst in the past, i.e. with a full bucket
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime() - 1_000_000_000L);
+
+    private final LongAdder upstreamSampled = new LongAdder();
+    private final LongAdder upstreamDropped = new LongAdder();
+    private final LongAdder rootSampled = new LongAdder();
+    private final LongAdder rootDroppedByProbability = new LongAdder();
+    private final LongAdder rootDroppedByRateLimit = new LongAdder();
+
+    /**
+     * @param probability  chance that a new root trace is sampled (0.0 - 1.0)
+     * @param maxPerSecond cap on sampled root traces per second; 0 disables the cap
+     */
+    public TraceSampler(double probability, int maxPerSecond) {
+        this.probability = Math.max(0.0, Math.min(1.0, probability));
+        this.intervalNanos = maxPerSecond > 0 ? 1_000_000_000L / maxPerSecond : 0;
+        // A full second of tokens may be spent at once
+        this.burstNanos = 1_000_000_000L;
+    }
+
+    /**
+     * Records and returns the decision for a trace that arrived with an
+     * explicit sampled flag.
+     */
+    public boolean upstream(boolean sampled) {
+        if (sampled) {
+            upstreamSampled.increment();
+        } else {
+            upstreamDropped.increment();
+        }
+        return sampled;
+    }
+
+    /**
+     * Decides whether a new root trace is sampled.
+     */
+    public boolean sampleRoot() {
+        if (probability < 1.0 && ThreadLocalRandom.current().nextDouble() >= probability) {
+            rootDroppedByProbability.increment();
+            return false;
+        }
+        if (intervalNanos > 0 && !tryAcquire()) {
+            rootDroppedByRateLimit.increment();
+            return false;
+        }
+        rootSampled.increment();
+        return true;
+    }
+
+    private boolean tryAcquire() {
+        for (;;) {
+            long now = System.nanoTime();
+            long arrival = theoreticalArrival.get();
+            long next = Math.max(arrival, now - burstNanos) + intervalNanos;
+            if (next - now > 0) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+
+    public double getProbability() {
+        return probability;
+    }
+
+    public long getUpstreamSampledCount() {
+        return upstreamSampled.sum();
+    }
+
+    public long getUpstreamDroppedCount() {
+        return upstreamDropped.sum();
+    }
+
+    public long getRootSampledCount() {
+        return rootSampled.sum();
+    }
+
+    public long getRootDroppedByProbabilityCount() {
+        return rootDroppedByProbability.sum();
+    }
+
+    public long getRootDroppedByRateLimitCount() {
+        return rootDroppedByRateLimit.sum();
+    }
+}
@@ -0,0 +1,50 @@
+package com.nginx.test;
+
+import org.apache.catalina.ha.CatalinaCluster;
+import org.apache.catalina.ha.ClusterListener;
+import org.apache.catalina.ha.ClusterMessage;
+import org.apache.catalina.tribes.Channel;
+
+/**
+ * Hands the cluster's Tribes channel to the webapp
+ *
+ * Declared as a ClusterListener inside the Cluster element of server.xml.
+ * It takes no cluster messages itself; it only remembers the cluster it
+ * was added to, so that PeerCacheReplicator can put its own listener on
+ * the same GroupChannel instead of opening a second one. Loaded from
+ * $CATALINA_BASE/lib (the module's *-executor.jar), which is what makes
+ * the static field visible to the webapp.
+ */
+public class TribesChannelListener extends ClusterListener {
+
+    private static volatile CatalinaCluster current;
+
+    /**
+     * The channel of the cluster this listener was declared in, or null
+     * when there is none (e.g. server.xml without a Cluster).
+     */
+    public static Channel channel() {
+        CatalinaCluster cluster = current;
+        return cluster != null ? cluster.getChannel() : null;
+    }
+
+    @Override
+    public void setCluster(CatalinaCluster cluster) {
+        CatalinaCluster previous = this.cluster;
+        super.setCluster(cluster);
+        if (cluster != null) {
+            current = cluster;
+        } else if (current == previous) {
+            current = null;
+        }
+    }
+
+    @Override
+    public boolean accept(ClusterMessage msg) {
+        return false;
+    }
+
+    @Override
+    public void messageReceived(ClusterMessage msg) {
+    }
+}
@@ -0,0 +1,226 @@
+package com.nginx.test.session;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.Loader;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.ManagerBase;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Session manager backed by the Redis Cluster, replacing DeltaManager
+ * replication between WAS-1 and WAS-2
+ *
+ * Nothing is kept across requests: a request carrying a session id loads
+ * the session from Redis on first use (one HGETALL), and the session is
+ * dropped from local memory once its last request on this node ends. Any
+ * node can therefore serve any session without sticky routing, and a
+ * request that never calls getSession() costs no Redis round trip.
+ *
+ * Changes are written back once per request by RedisSessionValve (see
+ * RedisSessionStore for what a save writes). Expiry is the key's TTL, so
+ * session listeners are not told about sessions that time out.
+ *
+ * Configured in context.xml. Loaded from $CATALINA_BASE/lib together with
+ * JedisClusterFactory; the connection attributes are the same as for the
+ * redis/cluster resource, but the pool is this manager's own.
+ */
+public class RedisSessionManager extends ManagerBase {
+
+    private final RedisSessionStore store = new RedisSessionStore();
+    // Session accessed by the current request, for RedisSessionValve
+    private final ThreadLocal<RedisSession> accessed = new ThreadLocal<>();
+    private RedisSessionValve valve;
+
+    public void setHost(String host) {
+        store.setProperty("host", host);
+    }
+
+    public void setMaxTotal(String maxTotal) {
+        store.setProperty("maxTotal", maxTotal);
+    }
+
+    public void setMaxIdle(String maxIdle) {
+        store.setProperty("maxIdle", maxIdle);
+    }
+
+    public void setMinIdle(String minIdle) {
+        store.setProperty("minIdle", minIdle);
+    }
+
+    public void setMaxWaitMillis(String maxWaitMillis) {
+        store.setProperty("maxWaitMillis", maxWaitMillis);
+    }
+
+    public void setConnectionTimeout(String connectionTimeout) {
+        store.setProperty("connectionTimeout", connectionTimeout);
+    }
+
+    public void setSoTimeout(String soTimeout) {
+        store.setProperty("soTimeout", soTimeout);
+    }
+
+    public String getKeyPrefix() {
+        return store.getKeyPrefix();
+    }
+
+    public void setKeyPrefix(String keyPrefix) {
+        store.setKeyPrefix(keyPrefix);
+    }
+
+    public long getLoadCount() {
+        return store.getLoadCount();
+    }
+
+    public long getLoadMissCount() {
+        return store.getLoadMissCount();
+    }
+
+    public long getSaveCount() {
+        return store.getSaveCount();
+    }
+
+    public long getAttributesWritten() {
+        return store.getAttributesWritten();
+    }
+
+    public long getBytesWritten() {
+        return store.getBytesWritten();
+    }
+
+    @Override
+    public String getName() {
+        return "RedisSessionManager";
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        super.startInternal();
+        store.setManager(this);
+        store.start();
+        valve = new RedisSessionValve(this);
+        getContext().getPipeline().addValve(valve);
+        System.out.println("[RedisSessionManager] Sessions stored in Redis under " + store.getKeyPrefix());
+        setState(LifecycleState.STARTING);
+    }
+
+    @Override
+    protected void stopInternal() throws LifecycleException {
+        setState(LifecycleState.STOPPING);
+        if (valve != null) {
+            getContext().getPipeline().removeValve(valve);
+            valve = null;
+        }
+        // Sessions live on in Redis
+        sessions.clear();
+        store.stop();
+        super.stopInternal();
+    }
+
+    @Override
+    public Session findSession(String id) throws IOException {
+        if (id == null) {
+            return null;
+        }
+        Session session = sessions.get(id);
+        if (session != null) {
+            return session;
+        }
+        try {
+            session = store.load(id);
+        } catch (IOException e) {
+            // Treated as no session rather than failing the request
+            System.err.println("[RedisSessionManager] " + e.getMessage() + ": " + e.getCause());
+            return null;
+        }
+        if (session == null) {
+            return null;
+        }
+        Session existing = sessions.putIfAbsent(id, session);
+        return existing != null ? existing : session;
+    }
+
+    @Override
+    public Session createEmptySession() {
+        return new RedisSession(this);
+    }
+
+    /**
+     * Invalidated or given a new id: the Redis key goes too.
+     */
+    @Override
+    public void remove(Session session, boolean update) {
+        super.remove(session, update);
+        try {
+            store.remove(session.getIdInternal());
+        } catch (IOException e) {
+            System.err.println("[RedisSessionManager] " + e.getMessage() + ": " + e.getCause());
+        }
+    }
+
+    /**
+     * Redis expires sessions itself. Locally this only drops sessions that
+     * were loaded but are not in use by any request.
+     */
+    @Override
+    public void processExpires() {
+        for (Session session : sessions.values()) {
+            if (!((RedisSession) session).isInUse()) {
+                sessions.remove(session.getIdInternal(), session);
+            }
+        }
+    }
+
+    // Sessions are already in Redis; nothing to persist on restart
+
+    @Override
+    public void load() {
+    }
+
+    @Override
+    public void unload() {
+    }
+
+    void accessed(RedisSession session) {
+        accessed.set(session);
+    }
+
+    void clearAccessed() {
+        accessed.remove();
+    }
+
+    RedisSession takeAccessed() {
+        RedisSession session = accessed.get();
+        accessed.remove();
+        return session;
+    }
+
+    void save(RedisSession session) {
+        if (!session.isLive()) {
+            return;
+        }
+        try {
+            store.save(session);
+        } catch (IOException e) {
+            System.err.println("[RedisSessionManager] " + e.getMessage() + ": " + e.getCause());
+        }
+    }
+
+    /**
+     * Called when the last request on this node using the session ends.
+     */
+    void release(RedisSession session) {
+        sessions.remove(session.getIdInternal(), session);
+    }
+
+    ClassLoader getClassLoader() {
+        Loader loader = getContext() != null ? getContext().getLoader() : null;
+        return loader != null ? loader.getClassLoader() : getClass().getClassLoader();
+    }
+
+    Pattern getAllowedClassPattern() {
+        return getSessionAttributeValueClassNamePattern();
+    }
+}
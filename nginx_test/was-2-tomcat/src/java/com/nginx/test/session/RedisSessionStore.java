@@ -0,0 +1,296 @@
+package com.nginx.test.session;
+
+import com.nginx.test.factory.JedisClusterFactory;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.Store;
+
+import redis.clients.jedis.ClusterPipeline;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.ConnectionPool;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Session store keeping one Redis hash per session
+ *
+ * Field "m" holds creation time, last access and max inactive interval;
+ * each attribute is its own "a:&lt;name&gt;" field encoded by SessionCodec.
+ * A save only writes the metadata and the attributes that changed, and
+ * deletes removed ones, as one pipelined round trip that also resets the
+ * key's TTL to the session's max inactive interval. Expired sessions are
+ * left for Redis to evict.
+ */
+public class RedisSessionStore implements Store {
+
+    private static final byte[] METADATA_FIELD = "m".getBytes(StandardCharsets.UTF_8);
+    private static final String ATTRIBUTE_PREFIX = "a:";
+
+    private final Map<String, String> config = new HashMap<>();
+    private final PropertyChangeSupport support = new PropertyChangeSupport(this);
+
+    private String keyPrefix = "tomcat:session:";
+    private Manager manager;
+    private volatile JedisCluster cluster;
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadMisses = new LongAdder();
+    private final LongAdder saves = new LongAdder();
+    private final LongAdder attributesWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    /**
+     * Connection attribute as understood by JedisClusterFactory
+     * (host, maxTotal, connectionTimeout, soTimeout, ...).
+     */
+    public void setProperty(String name, String value) {
+        config.put(name, value);
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    public void setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+    }
+
+    @Override
+    public Manager getManager() {
+        return manager;
+    }
+
+    @Override
+    public void setManager(Manager manager) {
+        Manager oldManager = this.manager;
+        this.manager = manager;
+        support.firePropertyChange("manager", oldManager, manager);
+    }
+
+    public void start() {
+        cluster = JedisClusterFactory.createCluster(config);
+    }
+
+    public void stop() {
+        JedisCluster current = cluster;
+        cluster = null;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public long getLoadMissCount() {
+        return loadMisses.sum();
+    }
+
+    public long getSaveCount() {
+        return saves.sum();
+    }
+
+    public long getAttributesWritten() {
+        return attributesWritten.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Reads the session hash in one HGETALL. Attribute values are handed
+     * to the session still encoded.
+     */
+    @Override
+    public Session load(String id) throws IOException {
+        loads.increment();
+        Map<byte[], byte[]> hash;
+        try {
+            hash = cluster().hgetAll(key(id));
+        } catch (JedisException e) {
+            throw new IOException("Failed to load session " + id, e);
+        }
+
+        byte[] metadata = null;
+        Map<String, byte[]> attributes = new HashMap<>();
+        for (Map.Entry<byte[], byte[]> field : hash.entrySet()) {
+            String name = new String(field.getKey(), StandardCharsets.UTF_8);
+            if (name.startsWith(ATTRIBUTE_PREFIX)) {
+                attributes.put(name.substring(ATTRIBUTE_PREFIX.length()), field.getValue());
+            } else if (name.equals("m")) {
+                metadata = field.getValue();
+            }
+        }
+        // No metadata: missing, or only a partial write of an expired key
+        if (metadata == null) {
+            loadMisses.increment();
+            return null;
+        }
+
+        RedisSession session = (RedisSession) manager.createEmptySession();
+        session.restore(id, SessionCodec.decodeMetadata(metadata), attributes);
+        if (session.isExpired(System.currentTimeMillis())) {
+            loadMisses.increment();
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Writes the session's metadata and changed attributes, deletes its
+     * removed attributes and refreshes the key's TTL.
+     */
+    @Override
+    public void save(Session session) throws IOException {
+        RedisSession redisSession = (RedisSession) session;
+        String id = redisSession.getIdInternal();
+        List<String> dirty = redisSession.takeDirty();
+        List<String> removed = redisSession.takeRemoved();
+
+        try {
+            Map<byte[], byte[]> fields = new HashMap<>();
+            // The access being saved counts as the last one
+            byte[] metadata = SessionCodec.encodeMetadata(redisSession.getCreationTimeInternal(),
+                    redisSession.getThisAccessedTimeInternal(), redisSession.getMaxInactiveInterval());
+            fields.put(METADATA_FIELD, metadata);
+            long bytes = metadata.length;
+            for (String name : dirty) {
+                Object value = redisSession.valueOf(name);
+                if (value == null) {
+                    continue;
+                }
+                byte[] encoded;
+                try {
+                    encoded = SessionCodec.encode(value);
+                } catch (NotSerializableException e) {
+                    // Same as StandardManager: such attributes stay on this node only
+                    System.err.println("[RedisSessionStore] Not storing attribute " + name +
+                            " of session " + id + ": " + e.getMessage());
+                    continue;
+                }
+                fields.put(field(name), encoded);
+                bytes += encoded.length;
+            }
+
+            byte[] key = key(id);
+            Response<Long> written;
+            try (ClusterPipeline pipeline = cluster().pipelined()) {
+                if (!removed.isEmpty()) {
+                    byte[][] removedFields = new byte[removed.size()][];
+                    for (int i = 0; i < removedFields.length; i++) {
+                        removedFields[i] = field(removed.get(i));
+                    }
+                    pipeline.hdel(key, removedFields);
+                }
+                written = pipeline.hset(key, fields);
+                int maxInactiveInterval = redisSession.getMaxInactiveInterval();
+                if (maxInactiveInterval > 0) {
+                    pipeline.pexpire(key, maxInactiveInterval * 1000L);
+                } else {
+                    pipeline.persist(key);
+                }
+                pipeline.sync();
+            }
+            // Surfaces an error reply
+            written.get();
+
+            saves.increment();
+            attributesWritten.add(fields.size() - 1);
+            bytesWritten.add(bytes);
+        } catch (JedisException | IOException e) {
+            redisSession.untake(dirty, removed);
+            throw new IOException("Failed to save session " + id, e);
+        }
+    }
+
+    @Override
+    public void remove(String id) throws IOException {
+        try {
+            cluster().del(key(id));
+        } catch (JedisException e) {
+            throw new IOException("Failed to remove session " + id, e);
+        }
+    }
+
+    /**
+     * Session ids found by SCAN on every node. Replicas answer with the
+     * same keys as their primary, hence the set.
+     */
+    @Override
+    public String[] keys() throws IOException {
+        Set<String> ids = new HashSet<>();
+        ScanParams params = new ScanParams().match(keyPrefix + "*").count(1000);
+        for (Map.Entry<String, ConnectionPool> node : cluster().getClusterNodes().entrySet()) {
+            try (Connection connection = node.getValue().getResource()) {
+                Jedis jedis = new Jedis(connection);
+                String cursor = ScanParams.SCAN_POINTER_START;
+                do {
+                    ScanResult<String> page = jedis.scan(cursor, params);
+                    for (String key : page.getResult()) {
+                        ids.add(key.substring(keyPrefix.length()));
+                    }
+                    cursor = page.getCursor();
+                } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+            } catch (JedisException e) {
+                System.err.println("[RedisSessionStore] Skipping node " + node.getKey() + " in keys(): " + e.getMessage());
+            }
+        }
+        return ids.toArray(new String[0]);
+    }
+
+    @Override
+    public int getSize() throws IOException {
+        return keys().length;
+    }
+
+    @Override
+    public void clear() throws IOException {
+        for (String id : keys()) {
+            remove(id);
+        }
+    }
+
+    @Override
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        support.addPropertyChangeListener(listener);
+    }
+
+    @Override
+    public void removePropertyChangeListener(PropertyChangeListener listener) {
+        support.removePropertyChangeListener(listener);
+    }
+
+    private JedisCluster cluster() throws IOException {
+        JedisCluster current = cluster;
+        if (current == null) {
+            throw new IOException("Session store is not started");
+        }
+        return current;
+    }
+
+    private byte[] key(String id) {
+        return (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] field(String name) {
+        return (ATTRIBUTE_PREFIX + name).getBytes(StandardCharsets.UTF_8);
+    }
+}
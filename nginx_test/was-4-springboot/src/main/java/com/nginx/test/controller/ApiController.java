@@ -1,16 +1,33 @@
 package com.nginx.test.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.RuntimeJsonMappingException;
 import com.nginx.test.service.CacheService;
 import com.nginx.test.service.MessageService;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 @RestController
@@ -20,6 +37,13 @@ public class ApiController {
 
     private final CacheService cacheService;
     private final MessageService messageService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${cache.multi-get.max-keys:1000}")
+    private int maxMultiGetKeys;
+
+    @Value("${cache.bulk-write.batch-size:500}")
+    private int bulkWriteBatchSize;
 
     @GetMapping("/info")
     public ResponseEntity<Map<String, Object>> getInfo() {
@@ -81,6 +105,92 @@ public class ApiController {
         return ResponseEntity.ok(result);
     }
 
+    @GetMapping("/cache")
+    public ResponseEntity<StreamingResponseBody> getCacheMany(@RequestParam(defaultValue = "") String keys) {
+        return multiGet(Arrays.stream(keys.split(",")).filter(key -> !key.isEmpty()).toList());
+    }
+
+    /**
+     * Same as GET /api/cache?keys=..., for key lists too long for a URL.
+     */
+    @PostMapping("/cache")
+    public ResponseEntity<StreamingResponseBody> postCacheMany(@RequestBody Map<String, Object> body) {
+        if (!(body.get("keys") instanceof List<?> keys)) {
+            return multiGetError("Expected {\"keys\": [...]}");
+        }
+        return multiGet(keys.stream().map(String::valueOf).filter(key -> !key.isEmpty()).toList());
+    }
+
+    private ResponseEntity<StreamingResponseBody> multiGet(List<String> keys) {
+        if (keys.isEmpty()) {
+            return multiGetError("No keys given");
+        }
+        if (keys.size() > maxMultiGetKeys) {
+            return multiGetError(keys.size() + " keys, at most " + maxMultiGetKeys + " per request");
+        }
+        log.info("Cache MGET request for {} keys", keys.size());
+
+        List<CacheService.SlotBatch> batches = cacheService.multiGet(keys);
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(out -> writeMultiGet(out, keys.size(), batches));
+    }
+
+    /**
+     * Results are grouped by hash slot, each slot written and flushed as
+     * soon as its MGET is answered; every result names its key.
+     */
+    private void writeMultiGet(OutputStream out, int count, List<CacheService.SlotBatch> batches)
+            throws IOException {
+        int found = 0;
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(out)) {
+            json.writeStartObject();
+            json.writeStringField("operation", "MGET");
+            json.writeNumberField("count", count);
+            json.writeArrayFieldStart("results");
+            for (CacheService.SlotBatch batch : batches) {
+                List<String> values = null;
+                String error = null;
+                try {
+                    values = batch.values().join();
+                } catch (CompletionException e) {
+                    error = e.getCause() != null ? e.getCause().toString() : e.toString();
+                    log.error("Cache MGET error: keys={}, error={}", batch.keys().size(), error);
+                }
+                for (int i = 0; i < batch.keys().size(); i++) {
+                    json.writeStartObject();
+                    json.writeStringField("key", batch.keys().get(i));
+                    if (error == null) {
+                        String value = values.get(i);
+                        json.writeStringField("value", value);
+                        json.writeBooleanField("found", value != null);
+                        found += value != null ? 1 : 0;
+                    } else {
+                        json.writeBooleanField("found", false);
+                        json.writeStringField("error", error);
+                    }
+                    json.writeEndObject();
+                }
+                json.flush();
+            }
+            json.writeEndArray();
+            json.writeNumberField("found", found);
+            json.writeStringField("source", "redis-cluster");
+            json.writeBooleanField("success", true);
+            json.writeEndObject();
+        }
+    }
+
+    private ResponseEntity<StreamingResponseBody> multiGetError(String error) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("operation", "MGET");
+        result.put("success", false);
+        result.put("error", error);
+        return ResponseEntity.badRequest()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(out -> out.write(objectMapper.writeValueAsBytes(result)));
+    }
+
     @PutMapping("/cache/{key}")
     public ResponseEntity<Map<String, Object>> setCache(
             @PathVariable String key,
@@ -103,6 +213,154 @@ public class ApiController {
         return ResponseEntity.ok(result);
     }
 
+    /**
+     * Bulk write: a JSON array of {"key", "value", "ttl"} objects, or the
+     * same objects as NDJSON, one per line. The body is read as a stream,
+     * bulkWriteBatchSize items at a time; each batch goes to Redis as one
+     * pipelined round trip per node (CacheService.setAll) and its
+     * statuses are streamed back before the next batch is read.
+     *
+     * Handled on the request thread rather than as a StreamingResponseBody:
+     * an async request would be cut off by the async request timeout
+     * (30s by default) while a long priming stream is still being read.
+     */
+    @PutMapping("/cache")
+    public void setCacheMany(InputStream body, HttpServletResponse response) throws IOException {
+        log.info("Cache bulk SET request");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        writeBulkSet(body, response.getOutputStream());
+    }
+
+    /**
+     * Every result carries the item's position in the body; items that
+     * are not valid writes are answered right away, ahead of their batch.
+     */
+    private void writeBulkSet(InputStream body, OutputStream out) throws IOException {
+        long succeeded = 0;
+        long failed = 0;
+        String error = null;
+        List<CacheService.CacheWrite> batch = new ArrayList<>(bulkWriteBatchSize);
+        List<Integer> batchIndexes = new ArrayList<>(bulkWriteBatchSize);
+
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(out);
+             MappingIterator<Map<String, Object>> items = objectMapper.readerForMapOf(Object.class).readValues(body)) {
+            json.writeStartObject();
+            json.writeStringField("operation", "MSET");
+            json.writeArrayFieldStart("results");
+            int index = 0;
+            while (true) {
+                Map<String, Object> item;
+                try {
+                    if (!items.hasNextValue()) {
+                        break;
+                    }
+                    item = items.nextValue();
+                } catch (JsonProcessingException | RuntimeJsonMappingException e) {
+                    // Items up to here are still written
+                    error = "Malformed item " + index + ": " + e.getMessage();
+                    break;
+                }
+                String invalid = invalidWrite(item);
+                if (invalid != null) {
+                    writeItemResult(json, index, item != null ? item.get("key") : null, invalid);
+                    failed++;
+                } else {
+                    batch.add(toCacheWrite(item));
+                    batchIndexes.add(index);
+                    if (batch.size() == bulkWriteBatchSize) {
+                        int written = writeBatch(json, batch, batchIndexes);
+                        succeeded += written;
+                        failed += batch.size() - written;
+                        batch.clear();
+                        batchIndexes.clear();
+                    }
+                }
+                index++;
+            }
+            if (!batch.isEmpty()) {
+                int written = writeBatch(json, batch, batchIndexes);
+                succeeded += written;
+                failed += batch.size() - written;
+            }
+            json.writeEndArray();
+            json.writeNumberField("count", succeeded + failed);
+            json.writeNumberField("succeeded", succeeded);
+            json.writeNumberField("failed", failed);
+            json.writeStringField("destination", "redis-cluster");
+            json.writeBooleanField("success", error == null);
+            if (error != null) {
+                json.writeStringField("error", error);
+            }
+            json.writeEndObject();
+        }
+        log.info("Cache bulk SET done: succeeded={}, failed={}", succeeded, failed);
+    }
+
+    /**
+     * Why the item is not a valid write, or null if it is. Key and value
+     * must be strings, numbers or booleans; a value that is missing is
+     * "", as for PUT /api/cache/{key}, but an explicit null is rejected.
+     */
+    private static String invalidWrite(Map<String, Object> item) {
+        if (item == null) {
+            return "Expected {\"key\", \"value\", \"ttl\" > 0}, got null";
+        }
+        Object key = item.get("key");
+        if (!isScalar(key) || key.toString().isEmpty()) {
+            return "Expected {\"key\", \"value\", \"ttl\" > 0}";
+        }
+        if (item.containsKey("value") && !isScalar(item.get("value"))) {
+            return "Value must be a string, number or boolean";
+        }
+        Object ttl = item.get("ttl");
+        if (ttl != null && !(ttl instanceof Number number && number.longValue() > 0)) {
+            return "ttl must be a number of seconds > 0";
+        }
+        return null;
+    }
+
+    private static boolean isScalar(Object value) {
+        return value instanceof String || value instanceof Number || value instanceof Boolean;
+    }
+
+    /**
+     * For items that passed invalidWrite(); value and ttl default as for
+     * PUT /api/cache/{key}.
+     */
+    private static CacheService.CacheWrite toCacheWrite(Map<String, Object> item) {
+        Object value = item.get("value");
+        long ttl = item.get("ttl") instanceof Number number ? number.longValue() : 3600L;
+        return new CacheService.CacheWrite(item.get("key").toString(), value != null ? value.toString() : "", ttl);
+    }
+
+    /**
+     * Sends the batch, writes its results and returns how many succeeded.
+     */
+    private int writeBatch(JsonGenerator json, List<CacheService.CacheWrite> batch, List<Integer> indexes)
+            throws IOException {
+        List<CompletableFuture<String>> results = cacheService.setAll(batch);
+        int succeeded = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            String error = results.get(i).join();
+            writeItemResult(json, indexes.get(i), batch.get(i).key(), error);
+            succeeded += error == null ? 1 : 0;
+        }
+        json.flush();
+        return succeeded;
+    }
+
+    private static void writeItemResult(JsonGenerator json, int index, Object key, String error) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("index", index);
+        json.writeStringField("key", key != null ? key.toString() : null);
+        json.writeBooleanField("success", error == null);
+        if (error != null) {
+            json.writeStringField("error", error);
+        }
+        json.writeEndObject();
+    }
+
     @DeleteMapping("/cache/{key}")
     public ResponseEntity<Map<String, Object>> deleteCache(@PathVariable String key) {
         log.info("Cache DELETE request for key: {}", key);
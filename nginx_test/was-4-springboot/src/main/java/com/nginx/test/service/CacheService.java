@@ -1,24 +1,154 @@
 package com.nginx.test.service;
 
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.SlotHash;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class CacheService {
 
+    private static final int MAX_TRACKED_LOAD_TIMES = 10_000;
+
     private final StringRedisTemplate redisTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${spring.data.redis.timeout:2000ms}")
+    private Duration commandTimeout;
+
+    @Value("${cache.get-batching.enabled:false}")
+    private boolean getBatching;
+
+    @Value("${cache.get-batching.max-keys:128}")
+    private int getBatchMaxKeys;
+
+    @Value("${cache.get-batching.max-in-flight:4}")
+    private int getBatchMaxInFlight;
+
+    @Value("${cache.read-through.beta:1.0}")
+    private double refreshAheadBeta;
 
+    @Value("${cache.read-through.refresh-threads:4}")
+    private int refreshThreads;
+
+    // Own connections on the template's cluster client: for multiGet(),
+    // batched get() and getOrLoad(), and for setAll(), which flushes by hand
+    // and so must not share with anyone
+    private volatile StatefulRedisClusterConnection<String, String> clusterConnection;
+    private volatile StatefulRedisClusterConnection<String, String> bulkConnection;
+    // Shares clusterConnection; null until the first get() with batching on
+    private volatile GetBatcher getBatcher;
+
+    // getOrLoad(): the load running for each key, which other misses wait on
+    private final ConcurrentMap<String, CompletableFuture<String>> loads = new ConcurrentHashMap<>();
+    // Last load time per key for refresh-ahead, capped; other keys use the mean.
+    // In nanoseconds: a sub-millisecond loader would otherwise count as 0 and never refresh ahead
+    private final ConcurrentMap<String, Long> loadNanos = new ConcurrentHashMap<>();
+    private final LongAdder loadNanosTotal = new LongAdder();
+    private final LongAdder loadCount = new LongAdder();
+    private ThreadPoolExecutor refreshExecutor;
+    private Counter readThroughHits;
+    private Counter readThroughRefreshAhead;
+    private Counter readThroughMisses;
+    private Counter readThroughCoalesced;
+    private Timer loadTimer;
+
+    /**
+     * Keys of one hash slot and their values (null where missing), in the
+     * same order.
+     */
+    public record SlotBatch(List<String> keys, CompletableFuture<List<String>> values) {
+    }
+
+    public record CacheWrite(String key, String value, long ttlSeconds) {
+    }
+
+    /**
+     * Source of truth behind getOrLoad(): the value for key, or null when
+     * there is none (which is not cached).
+     */
+    @FunctionalInterface
+    public interface CacheLoader {
+        String load(String key);
+    }
+
+    // ttlMillis as PTTL reports it: -1 without expiry
+    private record CachedValue(String value, long ttlMillis) {
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        refreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1024), runnable -> {
+                    Thread thread = new Thread(runnable, "cache-refresh-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        refreshExecutor.allowCoreThreadTimeOut(true);
+
+        readThroughHits = readThroughCounter("hit");
+        readThroughRefreshAhead = readThroughCounter("refresh_ahead");
+        readThroughMisses = readThroughCounter("miss");
+        readThroughCoalesced = readThroughCounter("coalesced");
+        loadTimer = Timer.builder("cache.read_through.load")
+                .description("Time taken by getOrLoad() loaders, misses and refreshes alike")
+                .register(meterRegistry);
+    }
+
+    private Counter readThroughCounter(String result) {
+        return Counter.builder("cache.read_through.requests")
+                .description("getOrLoad() calls: served from Redis (hit), served from Redis while starting an "
+                        + "early refresh (refresh_ahead), loaded (miss), or waiting on another call's load "
+                        + "(coalesced)")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * With cache.get-batching.enabled, concurrent calls share round trips
+     * through a GetBatcher (cluster only).
+     */
     public String get(String key) {
         try {
-            String value = redisTemplate.opsForValue().get(key);
+            GetBatcher batcher = getBatching ? getBatcher() : null;
+            String value = batcher != null ? batcher.get(key).join() : redisTemplate.opsForValue().get(key);
             log.debug("Cache GET: key={}, found={}", key, value != null);
             return value;
         } catch (Exception e) {
@@ -27,6 +157,193 @@ public class CacheService {
         }
     }
 
+    /**
+     * Reads keys with one MGET per hash slot, all sent before any reply is
+     * awaited: Lettuce writes each MGET to the connection of the node that
+     * owns the slot, so every node gets its share as one pipelined batch
+     * and the nodes answer in parallel. Each batch completes on its own,
+     * letting the caller stream results as they come in.
+     */
+    public List<SlotBatch> multiGet(List<String> keys) {
+        StatefulRedisClusterConnection<String, String> connection = clusterConnection();
+        if (connection == null) {
+            // Not a cluster: a single MGET covers every key
+            return List.of(new SlotBatch(keys, CompletableFuture.supplyAsync(
+                    () -> redisTemplate.opsForValue().multiGet(keys))));
+        }
+
+        Map<Integer, List<String>> bySlot = new LinkedHashMap<>();
+        for (String key : keys) {
+            bySlot.computeIfAbsent(SlotHash.getSlot(key), slot -> new ArrayList<>()).add(key);
+        }
+        List<SlotBatch> batches = new ArrayList<>(bySlot.size());
+        for (List<String> slotKeys : bySlot.values()) {
+            CompletableFuture<List<String>> values = connection.async()
+                    .mget(slotKeys.toArray(String[]::new))
+                    .toCompletableFuture()
+                    .thenApply(found -> found.stream().map(value -> value.getValueOrElse(null)).toList())
+                    .orTimeout(commandTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            batches.add(new SlotBatch(slotKeys, values));
+        }
+        log.debug("Cache MGET: keys={}, slots={}", keys.size(), batches.size());
+        return batches;
+    }
+
+    /**
+     * Read-through get: on a miss, loader's value is cached for ttl and
+     * returned. Concurrent misses for a key share one load; only the first
+     * runs loader, on its own thread, and the others wait for its value.
+     * The first reads Redis again once it holds the load, since one that
+     * just finished may already have cached the key.
+     *
+     * Hits refresh ahead of expiry the XFetch way: a hit starts a reload in
+     * the background with probability rising as the key nears its expiry,
+     * i.e. when -delta * beta * ln(random) reaches the remaining TTL, delta
+     * being how long the last load of the key took. Slow-to-load and
+     * popular keys are therefore refreshed earlier, and a hot key is usually
+     * reloaded before it expires rather than by a request that missed. A
+     * larger cache.read-through.beta refreshes earlier.
+     */
+    public String getOrLoad(String key, Duration ttl, CacheLoader loader) {
+        CachedValue cached = readWithTtl(key);
+        if (cached != null && cached.value() != null) {
+            if (shouldRefreshEarly(key, cached.ttlMillis()) && refreshAhead(key, ttl, loader)) {
+                readThroughRefreshAhead.increment();
+            } else {
+                readThroughHits.increment();
+            }
+            return cached.value();
+        }
+
+        CompletableFuture<String> load = new CompletableFuture<>();
+        CompletableFuture<String> running = loads.putIfAbsent(key, load);
+        if (running != null) {
+            readThroughCoalesced.increment();
+            log.debug("Cache load coalesced: key={}", key);
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+        try {
+            // A load that finished between the GET above and putIfAbsent() has already cached the key
+            CachedValue current = readWithTtl(key);
+            String value;
+            if (current != null && current.value() != null) {
+                readThroughHits.increment();
+                value = current.value();
+            } else {
+                readThroughMisses.increment();
+                value = loadAndCache(key, ttl, loader);
+            }
+            load.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loads.remove(key, load);
+        }
+    }
+
+    /**
+     * GET and PTTL, which Lettuce pipelines on the connection of the node
+     * owning the key. Null when Redis could not be read, which callers
+     * treat as a miss.
+     */
+    private CachedValue readWithTtl(String key) {
+        try {
+            StatefulRedisClusterConnection<String, String> connection = clusterConnection();
+            if (connection == null) {
+                String value = redisTemplate.opsForValue().get(key);
+                Long ttlMillis = value != null ? redisTemplate.getExpire(key, TimeUnit.MILLISECONDS) : null;
+                return new CachedValue(value, ttlMillis != null ? ttlMillis : -1);
+            }
+            CompletableFuture<String> value = connection.async().get(key).toCompletableFuture();
+            CompletableFuture<Long> ttlMillis = connection.async().pttl(key).toCompletableFuture();
+            return new CachedValue(
+                    value.orTimeout(commandTimeout.toMillis(), TimeUnit.MILLISECONDS).join(),
+                    ttlMillis.orTimeout(commandTimeout.toMillis(), TimeUnit.MILLISECONDS).join());
+        } catch (Exception e) {
+            log.error("Cache GET error: key={}, error={}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean shouldRefreshEarly(String key, long ttlMillis) {
+        if (ttlMillis < 0) {
+            // No expiry (-1), or expired since the GET (-2)
+            return false;
+        }
+        Long delta = loadNanos.get(key);
+        if (delta == null) {
+            long count = loadCount.sum();
+            if (count == 0) {
+                return false;
+            }
+            delta = loadNanosTotal.sum() / count;
+        }
+        // 1 - nextDouble() is in (0, 1], keeping ln() finite
+        double lead = -delta * refreshAheadBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return lead >= TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Reloads key on refreshExecutor unless a load of it is already
+     * running. False when no refresh was started.
+     */
+    private boolean refreshAhead(String key, Duration ttl, CacheLoader loader) {
+        CompletableFuture<String> load = new CompletableFuture<>();
+        if (loads.putIfAbsent(key, load) != null) {
+            return false;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    load.complete(loadAndCache(key, ttl, loader));
+                } catch (RuntimeException e) {
+                    log.warn("Cache refresh-ahead error: key={}, error={}", key, e.getMessage());
+                    load.completeExceptionally(e);
+                } finally {
+                    loads.remove(key, load);
+                }
+            });
+            log.debug("Cache refresh-ahead: key={}", key);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The key is still cached; a later hit tries again
+            loads.remove(key, load);
+            load.completeExceptionally(e);
+            return false;
+        }
+    }
+
+    private String loadAndCache(String key, Duration ttl, CacheLoader loader) {
+        long start = System.nanoTime();
+        String value = loader.load(key);
+        long elapsedNanos = System.nanoTime() - start;
+        loadTimer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+
+        loadNanosTotal.add(elapsedNanos);
+        loadCount.increment();
+        if (loadNanos.size() < MAX_TRACKED_LOAD_TIMES || loadNanos.containsKey(key)) {
+            loadNanos.put(key, elapsedNanos);
+        }
+
+        if (value != null) {
+            try {
+                redisTemplate.opsForValue().set(key, value, ttl);
+                log.debug("Cache load: key={}, ttl={}, loadMicros={}", key, ttl.toSeconds(),
+                        TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+            } catch (Exception e) {
+                // The loaded value is still good to return
+                log.error("Cache SET error: key={}, error={}", key, e.getMessage());
+            }
+        }
+        return value;
+    }
+
     public void set(String key, String value, long ttlSeconds) {
         try {
             redisTemplate.opsForValue().set(key, value, Duration.ofSeconds(ttlSeconds));
@@ -37,6 +354,63 @@ public class CacheService {
         }
     }
 
+    /**
+     * Writes items as SET key value EX ttl, one pipelined batch per call:
+     * with auto-flush off, each command is queued on the connection of
+     * the node owning its key and one flush hands every node its share of
+     * the batch in a single write, so nodes work through their pipelines
+     * in parallel. Callers size the batches. The futures complete with
+     * null on success or the error message, in the order of items.
+     */
+    public List<CompletableFuture<String>> setAll(List<CacheWrite> items) {
+        StatefulRedisClusterConnection<String, String> connection = bulkConnection();
+        if (connection == null) {
+            return setAllPipelined(items);
+        }
+
+        List<CompletableFuture<String>> results = new ArrayList<>(items.size());
+        // Another batch flushing in between would only split this one, but
+        // keeps each request's batches whole
+        synchronized (connection) {
+            for (CacheWrite item : items) {
+                results.add(connection.async()
+                        .set(item.key(), item.value(), SetArgs.Builder.ex(item.ttlSeconds()))
+                        .toCompletableFuture()
+                        .orTimeout(commandTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                        .handle((reply, error) -> error == null ? null : error.toString()));
+            }
+            connection.flushCommands();
+        }
+        log.debug("Cache SET batch: items={}", items.size());
+        return results;
+    }
+
+    /**
+     * Without a cluster: one executePipelined() round trip, which fails
+     * as a whole.
+     */
+    private List<CompletableFuture<String>> setAllPipelined(List<CacheWrite> items) {
+        String error = null;
+        try {
+            redisTemplate.executePipelined((RedisCallback<Object>) redis -> {
+                for (CacheWrite item : items) {
+                    redis.stringCommands().set(item.key().getBytes(StandardCharsets.UTF_8),
+                            item.value().getBytes(StandardCharsets.UTF_8),
+                            Expiration.seconds(item.ttlSeconds()), RedisStringCommands.SetOption.upsert());
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Cache SET batch error: items={}, error={}", items.size(), e.getMessage());
+            error = String.valueOf(e.getMessage());
+        }
+        List<CompletableFuture<String>> results = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            results.add(CompletableFuture.completedFuture(error));
+        }
+        return results;
+    }
+
     public boolean delete(String key) {
         try {
             Boolean deleted = redisTemplate.delete(key);
@@ -48,6 +422,80 @@ public class CacheService {
         }
     }
 
+    private StatefulRedisClusterConnection<String, String> clusterConnection() {
+        StatefulRedisClusterConnection<String, String> connection = clusterConnection;
+        if (connection == null) {
+            synchronized (this) {
+                if (clusterConnection == null) {
+                    clusterConnection = connect();
+                }
+                connection = clusterConnection;
+            }
+        }
+        return connection;
+    }
+
+    private GetBatcher getBatcher() {
+        GetBatcher batcher = getBatcher;
+        if (batcher == null) {
+            StatefulRedisClusterConnection<String, String> connection = clusterConnection();
+            if (connection == null) {
+                return null;
+            }
+            synchronized (this) {
+                if (getBatcher == null) {
+                    getBatcher = new GetBatcher(connection.async(), getBatchMaxKeys, getBatchMaxInFlight,
+                            commandTimeout, meterRegistry);
+                }
+                batcher = getBatcher;
+            }
+        }
+        return batcher;
+    }
+
+    private StatefulRedisClusterConnection<String, String> bulkConnection() {
+        StatefulRedisClusterConnection<String, String> connection = bulkConnection;
+        if (connection == null) {
+            synchronized (this) {
+                if (bulkConnection == null) {
+                    bulkConnection = connect();
+                    if (bulkConnection != null) {
+                        bulkConnection.setAutoFlushCommands(false);
+                    }
+                }
+                connection = bulkConnection;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * A new connection on the template's RedisClusterClient, or null when
+     * Redis is not a cluster.
+     */
+    private StatefulRedisClusterConnection<String, String> connect() {
+        if (redisTemplate.getConnectionFactory() instanceof LettuceConnectionFactory factory) {
+            AbstractRedisClient client = factory.getRequiredNativeClient();
+            if (client instanceof RedisClusterClient clusterClient) {
+                return clusterClient.connect();
+            }
+        }
+        return null;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdown();
+        }
+        if (clusterConnection != null) {
+            clusterConnection.close();
+        }
+        if (bulkConnection != null) {
+            bulkConnection.close();
+        }
+    }
+
     public Map<String, Object> healthCheck() {
         Map<String, Object> status = new HashMap<>();
         try {
@@ -0,0 +1,142 @@
+package com.nginx.test.service;
+
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.cluster.SlotHash;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Turns concurrent single-key GETs into batched reads.
+ *
+ * At most maxInFlight batches are outstanding at any time. A GET that
+ * finds one free sends right away, so at low traffic every GET is still
+ * a plain GET with no added wait. Otherwise it queues, and when a batch
+ * completes the keys queued meanwhile (up to maxBatch) go out as the next
+ * one: one MGET per hash slot, written back to back so each node gets its
+ * share as one pipelined batch. The time keys wait to be batched is the
+ * time Redis takes to answer the batches ahead of them, which only grows
+ * with load.
+ */
+class GetBatcher {
+
+    private final RedisAdvancedClusterAsyncCommands<String, String> commands;
+    private final int maxBatch;
+    private final int maxInFlight;
+    private final Duration timeout;
+
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Counter batches;
+    private final DistributionSummary batchSize;
+
+    private record Pending(String key, CompletableFuture<String> value) {
+    }
+
+    GetBatcher(RedisAdvancedClusterAsyncCommands<String, String> commands, int maxBatch, int maxInFlight,
+               Duration timeout, MeterRegistry meterRegistry) {
+        this.commands = commands;
+        this.maxBatch = maxBatch;
+        this.maxInFlight = maxInFlight;
+        this.timeout = timeout;
+        this.batches = Counter.builder("cache.get.batches")
+                .description("Batched reads sent for single-key cache GETs")
+                .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("cache.get.batch.size")
+                .description("Keys per batched read")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Completes with the value of key, or null where it does not exist.
+     */
+    CompletableFuture<String> get(String key) {
+        CompletableFuture<String> value = new CompletableFuture<>();
+        queue.add(new Pending(key, value));
+        dispatch();
+        return value.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch() {
+        while (!queue.isEmpty() && tryAcquire()) {
+            List<Pending> batch = new ArrayList<>();
+            Pending next;
+            while (batch.size() < maxBatch && (next = queue.poll()) != null) {
+                batch.add(next);
+            }
+            if (batch.isEmpty()) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            send(batch).whenComplete((ignored, error) -> {
+                inFlight.decrementAndGet();
+                // After the release, so a GET queued while it was taken is never stranded
+                dispatch();
+            });
+        }
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private CompletableFuture<Void> send(List<Pending> batch) {
+        batches.increment();
+        batchSize.record(batch.size());
+        if (batch.size() == 1) {
+            Pending only = batch.get(0);
+            return commands.get(only.key()).toCompletableFuture()
+                    .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .whenComplete((value, error) -> complete(only, value, error))
+                    .handle((value, error) -> null);
+        }
+
+        Map<Integer, List<Pending>> bySlot = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            bySlot.computeIfAbsent(SlotHash.getSlot(pending.key()), slot -> new ArrayList<>()).add(pending);
+        }
+        List<CompletableFuture<?>> replies = new ArrayList<>(bySlot.size());
+        for (List<Pending> slotBatch : bySlot.values()) {
+            String[] keys = slotBatch.stream().map(Pending::key).toArray(String[]::new);
+            // Bounded even if a node never answers, which would otherwise keep the batch in flight for good
+            replies.add(commands.mget(keys).toCompletableFuture()
+                    .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .whenComplete((values, error) -> {
+                        for (int i = 0; i < slotBatch.size(); i++) {
+                            KeyValue<String, String> found = values != null ? values.get(i) : null;
+                            complete(slotBatch.get(i), found != null ? found.getValueOrElse(null) : null, error);
+                        }
+                    }));
+        }
+        return CompletableFuture.allOf(replies.toArray(CompletableFuture[]::new))
+                .handle((ignored, error) -> null);
+    }
+
+    private static void complete(Pending pending, String value, Throwable error) {
+        if (error != null) {
+            pending.value().completeExceptionally(error);
+        } else {
+            pending.value().complete(value);
+        }
+    }
+}